@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.benchmark;
+
+import com.android.ddmlib.IDevice;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Creates {@link IDevice} instances that are always online and whose port forwards are
+ * no-ops. Pointing the first forwarded port at a {@link FakeViewServer}, with the
+ * hierarchyviewer.forward.firstPort system property, routes the loaders to the fake server.
+ * <p/>A proxy is used rather than an implementation of the interface so that the benchmark
+ * does not depend on the exact ddmlib version.
+ */
+class FakeDevice {
+    static IDevice create(final String serialNumber) {
+        return (IDevice) Proxy.newProxyInstance(IDevice.class.getClassLoader(),
+                new Class<?>[] { IDevice.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getSerialNumber".equals(name) || "toString".equals(name)) {
+                    return serialNumber;
+                } else if ("getState".equals(name)) {
+                    return IDevice.DeviceState.ONLINE;
+                } else if ("isOnline".equals(name)) {
+                    return true;
+                } else if ("equals".equals(name)) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                }
+                return getDefaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static Object getDefaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return '\0';
+        } else if (type == float.class) {
+            return 0.0f;
+        } else if (type == double.class) {
+            return 0.0;
+        }
+        return null;
+    }
+}
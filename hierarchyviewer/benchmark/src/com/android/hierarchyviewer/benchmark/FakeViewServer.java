@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.benchmark;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.imageio.ImageIO;
+
+/**
+ * Local stand-in for the view server running on a device. It listens on a loopback port
+ * and answers LIST, DUMP, CAPTURE, CAPTURE_LAYERS, PROFILE, SERVER and PROTOCOL like the
+ * real server does: one command per connection, closed once the reply is written.
+ * <p/>Every window holds the same synthetic hierarchy, whose number of nodes and depth are
+ * configurable. Replies are generated once, in {@link #start()}, so that serving them costs
+ * as little as possible.
+ */
+public class FakeViewServer {
+    private static final String SERVER_VERSION = "4";
+    private static final String PROTOCOL_VERSION = "4";
+
+    private static final String[] CLASS_NAMES = {
+        "android.widget.LinearLayout",
+        "android.widget.FrameLayout",
+        "android.widget.RelativeLayout",
+        "android.widget.TextView",
+        "android.widget.ImageView",
+        "android.widget.Button",
+    };
+
+    private final int nodeCount;
+    private final int depth;
+
+    private int windowCount = 4;
+    private int propertyCount = 8;
+    private int captureWidth = 320;
+    private int captureHeight = 480;
+    private int layerCount = 8;
+    private long replyDelay;
+
+    private byte[] listReply;
+    private byte[] dumpReply;
+    private byte[] captureReply;
+    private byte[] layersReply;
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private volatile boolean running;
+
+    private int generatedNodes;
+
+    /**
+     * @param nodeCount number of views in the hierarchy of each window
+     * @param depth maximum depth of the hierarchy, the root being at depth 1
+     */
+    public FakeViewServer(int nodeCount, int depth) {
+        this.nodeCount = Math.max(1, nodeCount);
+        this.depth = Math.max(1, depth);
+    }
+
+    public void setWindowCount(int windowCount) {
+        this.windowCount = windowCount;
+    }
+
+    /**
+     * Sets the number of properties added to each view on top of the ones read by
+     * {@link com.android.hierarchyviewer.scene.ViewNode#decode()}.
+     */
+    public void setPropertyCount(int propertyCount) {
+        this.propertyCount = propertyCount;
+    }
+
+    public void setCaptureSize(int width, int height) {
+        captureWidth = width;
+        captureHeight = height;
+    }
+
+    public void setLayerCount(int layerCount) {
+        this.layerCount = layerCount;
+    }
+
+    /**
+     * Sets the time, in milliseconds, the server waits before replying to a command, to
+     * simulate the round trip through adb.
+     */
+    public void setReplyDelay(long replyDelay) {
+        this.replyDelay = replyDelay;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getDumpSize() {
+        return dumpReply.length;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the hash code of the windows listed by the server.
+     */
+    public int getWindowHashCode(int index) {
+        return 0x43e00000 + index * 0x100;
+    }
+
+    public void start() throws IOException {
+        listReply = createList();
+        dumpReply = createDump();
+        captureReply = encodePng(createImage(captureWidth, captureHeight, 0));
+        layersReply = createLayers();
+
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Fake view server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        running = true;
+        executor.execute(new Runnable() {
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Empty
+        }
+        executor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (SocketException e) {
+                // The server socket was closed
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "utf-8"));
+            // Idle connections kept by the client are closed without a command
+            String command = in.readLine();
+            if (command == null) {
+                return;
+            }
+
+            byte[] reply = getReply(command.trim());
+            if (replyDelay > 0) {
+                Thread.sleep(replyDelay);
+            }
+
+            OutputStream out = socket.getOutputStream();
+            out.write(reply);
+            out.flush();
+        } catch (IOException e) {
+            // The client went away
+        } catch (InterruptedException e) {
+            // The server is stopping
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Empty
+            }
+        }
+    }
+
+    private byte[] getReply(String command) {
+        int index = command.indexOf(' ');
+        String name = index == -1 ? command : command.substring(0, index);
+
+        if ("LIST".equalsIgnoreCase(name)) {
+            return listReply;
+        } else if ("DUMP".equalsIgnoreCase(name)) {
+            return dumpReply;
+        } else if ("CAPTURE".equalsIgnoreCase(name)) {
+            return captureReply;
+        } else if ("CAPTURE_LAYERS".equalsIgnoreCase(name)) {
+            return layersReply;
+        } else if ("PROFILE".equalsIgnoreCase(name)) {
+            // Measure, layout and draw times in nanoseconds
+            return encode("1250000 830000 4120000\n");
+        } else if ("SERVER".equalsIgnoreCase(name)) {
+            return encode(SERVER_VERSION + "\n");
+        } else if ("PROTOCOL".equalsIgnoreCase(name)) {
+            return encode(PROTOCOL_VERSION + "\n");
+        }
+        return encode("FAIL\n");
+    }
+
+    private byte[] createList() {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < windowCount; i++) {
+            list.append(Integer.toHexString(getWindowHashCode(i)));
+            list.append(" com.example.fake/com.example.fake.Activity").append(i).append('\n');
+        }
+        list.append("DONE.\n");
+        return encode(list.toString());
+    }
+
+    private byte[] createDump() {
+        // Smallest fan-out that lets a tree of the requested depth hold every node
+        int fanOut = 1;
+        while (fanOut < nodeCount && getCapacity(fanOut) < nodeCount) {
+            fanOut++;
+        }
+
+        StringBuilder dump = new StringBuilder(nodeCount * (200 + propertyCount * 24));
+        generatedNodes = 0;
+        appendNode(dump, 0, fanOut, 0, 0, captureWidth, captureHeight);
+        dump.append("DONE.\n");
+        return encode(dump.toString());
+    }
+
+    private long getCapacity(int fanOut) {
+        long capacity = 0;
+        long level = 1;
+        for (int i = 0; i < depth && capacity < nodeCount; i++) {
+            capacity += level;
+            level *= fanOut;
+        }
+        return capacity;
+    }
+
+    private void appendNode(StringBuilder dump, int level, int fanOut, int left, int top,
+            int width, int height) {
+        int index = generatedNodes++;
+
+        for (int i = 0; i < level; i++) {
+            dump.append(' ');
+        }
+        dump.append(CLASS_NAMES[index % CLASS_NAMES.length]).append('@');
+        dump.append(Integer.toHexString(0x44000000 + index * 0x20));
+
+        appendProperty(dump, "mID", index % 3 == 0 ? "id/view_" + index : "NO_ID");
+        appendProperty(dump, "layout:mLeft", left);
+        appendProperty(dump, "layout:mTop", top);
+        appendProperty(dump, "layout:getWidth()", width);
+        appendProperty(dump, "layout:getHeight()", height);
+        appendProperty(dump, "scrolling:mScrollX", 0);
+        appendProperty(dump, "scrolling:mScrollY", 0);
+        appendProperty(dump, "padding:mPaddingLeft", 2);
+        appendProperty(dump, "padding:mPaddingRight", 2);
+        appendProperty(dump, "padding:mPaddingTop", 2);
+        appendProperty(dump, "padding:mPaddingBottom", 2);
+        appendProperty(dump, "layout:layout_leftMargin", 0);
+        appendProperty(dump, "layout:layout_rightMargin", 0);
+        appendProperty(dump, "layout:layout_topMargin", 0);
+        appendProperty(dump, "layout:layout_bottomMargin", 0);
+        appendProperty(dump, "layout:getBaseline()", -1);
+        appendProperty(dump, "drawing:willNotDraw()", index % 2 == 0 ? "true" : "false");
+        appendProperty(dump, "focus:hasFocus()", index == 0 ? "true" : "false");
+        for (int i = 0; i < propertyCount; i++) {
+            if (i % 4 == 3) {
+                // Lengths count UTF-16 characters, not the UTF-8 bytes sent on the wire
+                appendProperty(dump, "text:mText" + i, "P\u00e2t\u00e9 n\u00b0" + index);
+            } else {
+                appendProperty(dump, "misc:mProperty" + i, index * 31 + i);
+            }
+        }
+        dump.append('\n');
+
+        if (level + 1 >= depth) {
+            return;
+        }
+
+        int children = Math.min(fanOut, nodeCount - generatedNodes);
+        for (int i = 0; i < children && generatedNodes < nodeCount; i++) {
+            int childHeight = Math.max(1, height / Math.max(1, children));
+            appendNode(dump, level + 1, fanOut, 0, i * childHeight, width, childHeight);
+        }
+    }
+
+    private static void appendProperty(StringBuilder dump, String name, int value) {
+        appendProperty(dump, name, String.valueOf(value));
+    }
+
+    private static void appendProperty(StringBuilder dump, String name, String value) {
+        dump.append(' ').append(name).append('=').append(value.length()).append(',');
+        dump.append(value);
+    }
+
+    private byte[] createLayers() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(captureWidth);
+        out.writeInt(captureHeight);
+
+        int layerHeight = Math.max(1, captureHeight / Math.max(1, layerCount));
+        for (int i = 0; i < layerCount; i++) {
+            byte[] data = encodePng(createImage(captureWidth, layerHeight, i + 1));
+            out.write(1);
+            out.writeUTF("layer" + i);
+            out.write(1);
+            out.writeInt(0);
+            out.writeInt(i * layerHeight);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        out.write(2);
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static BufferedImage createImage(int width, int height, int seed) {
+        BufferedImage image = new BufferedImage(Math.max(1, width), Math.max(1, height),
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(0x3d, 0x6f, 0xb8 - seed * 8),
+                0, height, new Color(0xe6, 0xe6, 0xe6)));
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.DARK_GRAY);
+        for (int y = 8; y < height; y += 24) {
+            g.drawLine(8, y, width - 8, y);
+        }
+        g.dispose();
+        return image;
+    }
+
+    private static byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(String reply) {
+        try {
+            return reply.getBytes("utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.benchmark;
+
+import com.android.ddmlib.IDevice;
+import com.android.hierarchyviewer.device.DeviceConnectionPool;
+import com.android.hierarchyviewer.device.ViewServerClient;
+import com.android.hierarchyviewer.device.Window;
+import com.android.hierarchyviewer.scene.CaptureLoader;
+import com.android.hierarchyviewer.scene.SnapshotLoader;
+import com.android.hierarchyviewer.scene.ViewHierarchyLoader;
+import com.android.hierarchyviewer.scene.ViewHierarchyScene;
+import com.android.hierarchyviewer.scene.WindowsLoader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the loaders of the scene package against a {@link FakeViewServer}. Each
+ * benchmark is warmed up then run repeatedly for a fixed time on the calling thread; the
+ * throughput, the latency percentiles and the allocation rate of that thread are reported.
+ * <p/>Benchmarks named after a loader method go through the loopback socket, the ones
+ * ending in "parse" only parse a reply already in memory, so transport and parsing costs
+ * can be told apart. Results can be appended to a CSV file to be tracked over time.
+ */
+public class LoaderBenchmark {
+    private static final String SERIAL_NUMBER = "fake-viewserver";
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private int nodeCount = 1000;
+    private int depth = 12;
+    private int windowCount = 4;
+    private int propertyCount = 8;
+    private long replyDelay = 0;
+    private long warmupTime = 2000;
+    private long measureTime = 5000;
+    private Pattern filter;
+    private File resultsFile;
+
+    /** Keeps the results of the benchmarks alive so that they are not optimized away. */
+    private volatile int sink;
+
+    public static void main(String[] args) {
+        LoaderBenchmark benchmark = new LoaderBenchmark();
+        if (!benchmark.parseArgs(args)) {
+            printHelpAndExit();
+        }
+
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+
+        boolean result = false;
+        try {
+            result = benchmark.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.exit(result ? 0 : 1);
+    }
+
+    private static void printHelpAndExit() {
+        System.out.println("Usage: hierarchyviewer-benchmark [options]");
+        System.out.println("");
+        System.out.println("Options:");
+        System.out.println("  --nodes <count>       Views in each window (default 1000)");
+        System.out.println("  --depth <depth>       Maximum depth of the hierarchy (default 12)");
+        System.out.println("  --windows <count>     Windows listed by the server (default 4)");
+        System.out.println("  --properties <count>  Extra properties per view (default 8)");
+        System.out.println("  --delay <ms>          Server reply delay (default 0)");
+        System.out.println("  --warmup <seconds>    Warm up time per benchmark (default 2)");
+        System.out.println("  --time <seconds>      Measured time per benchmark (default 5)");
+        System.out.println("  --filter <regex>      Only run the matching benchmarks");
+        System.out.println("  --results <file>      Append the results to a CSV file");
+        System.exit(1);
+    }
+
+    private boolean parseArgs(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    return false;
+                }
+                String value = args[++i];
+
+                if ("--nodes".equals(arg)) {
+                    nodeCount = Integer.parseInt(value);
+                } else if ("--depth".equals(arg)) {
+                    depth = Integer.parseInt(value);
+                } else if ("--windows".equals(arg)) {
+                    windowCount = Integer.parseInt(value);
+                } else if ("--properties".equals(arg)) {
+                    propertyCount = Integer.parseInt(value);
+                } else if ("--delay".equals(arg)) {
+                    replyDelay = Long.parseLong(value);
+                } else if ("--warmup".equals(arg)) {
+                    warmupTime = (long) (Double.parseDouble(value) * 1000);
+                } else if ("--time".equals(arg)) {
+                    measureTime = (long) (Double.parseDouble(value) * 1000);
+                } else if ("--filter".equals(arg)) {
+                    filter = Pattern.compile(value, Pattern.CASE_INSENSITIVE);
+                } else if ("--results".equals(arg)) {
+                    resultsFile = new File(value);
+                } else {
+                    return false;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private boolean run() throws Exception {
+        final FakeViewServer server = new FakeViewServer(nodeCount, depth);
+        server.setWindowCount(windowCount);
+        server.setPropertyCount(propertyCount);
+        server.setReplyDelay(replyDelay);
+        server.start();
+
+        // The forward of the only device gets the first port, which is the fake server's
+        System.setProperty("hierarchyviewer.forward.firstPort",
+                String.valueOf(server.getPort()));
+        System.setProperty("hierarchyviewer.forward.portCount", "1");
+
+        final IDevice device = FakeDevice.create(SERIAL_NUMBER);
+        final Window window = new Window("Fake", server.getWindowHashCode(0));
+        final File layersFile = File.createTempFile("hierarchyviewer-benchmark", ".psd");
+        layersFile.deleteOnExit();
+        final File snapshotFile = File.createTempFile("hierarchyviewer-benchmark", ".hvs");
+        snapshotFile.deleteOnExit();
+
+        final byte[] dump = ViewServerClient.getInstance().dump(device, window).get();
+        final String[] list = new String(
+                ViewServerClient.getInstance().list(device).get(), "utf-8").split("\n");
+        final String[] windowLines = Arrays.copyOf(list, list.length - 1);
+        final ViewHierarchyScene dumpScene =
+                ViewHierarchyLoader.loadScene(new ByteArrayInputStream(dump));
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new Benchmark("WindowsLoader.loadWindows") {
+            int run() {
+                Window[] windows = WindowsLoader.loadWindows(device, 4, 4);
+                return check(windows != null && windows.length == windowCount);
+            }
+        });
+        benchmarks.add(new Benchmark("WindowsLoader.parse") {
+            int run() {
+                Window[] windows = WindowsLoader.parseWindows(windowLines, 4);
+                return check(windows != null && windows.length == windowCount);
+            }
+        });
+        benchmarks.add(new Benchmark("ViewHierarchyLoader.loadScene") {
+            int run() {
+                return checkScene(ViewHierarchyLoader.loadScene(device, window));
+            }
+        });
+        benchmarks.add(new Benchmark("ViewHierarchyLoader.parse") {
+            int run() throws Exception {
+                return checkScene(ViewHierarchyLoader.loadScene(new ByteArrayInputStream(dump)));
+            }
+        });
+        benchmarks.add(new Benchmark("ViewHierarchyLoader.parallel.parse") {
+            int run() throws Exception {
+                return checkScene(ViewHierarchyLoader.loadScene(new ByteArrayInputStream(dump),
+                        true));
+            }
+        });
+        benchmarks.add(new Benchmark("SnapshotLoader.saveSnapshot") {
+            int run() {
+                return check(SnapshotLoader.saveSnapshot(dumpScene, snapshotFile));
+            }
+        });
+        benchmarks.add(new Benchmark("SnapshotLoader.loadSnapshot") {
+            int run() throws Exception {
+                if (snapshotFile.length() == 0 &&
+                        !SnapshotLoader.saveSnapshot(dumpScene, snapshotFile)) {
+                    return check(false);
+                }
+                return checkScene(SnapshotLoader.loadSnapshot(snapshotFile));
+            }
+        });
+        benchmarks.add(new Benchmark("ViewServerClient.dump") {
+            int run() throws Exception {
+                return check(ViewServerClient.getInstance().dump(device, window).get().length ==
+                        dump.length);
+            }
+        });
+        benchmarks.add(new Benchmark("CaptureLoader.loadCapture") {
+            int run() {
+                return check(CaptureLoader.loadCapture(device, window,
+                        "android.widget.LinearLayout@44000000") != null);
+            }
+        });
+        benchmarks.add(new Benchmark("CaptureLoader.saveLayers") {
+            int run() {
+                return check(CaptureLoader.saveLayers(device, window, layersFile));
+            }
+        });
+
+        PrintStream out = System.out;
+        out.println(String.format("%1$d nodes, depth %2$d, %3$d bytes per dump",
+                server.getNodeCount(), depth, server.getDumpSize()));
+        out.println(String.format("%1$-32s %2$10s %3$9s %4$9s %5$9s %6$9s %7$10s %8$10s",
+                "Benchmark", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "MB/s",
+                "KB/op"));
+
+        boolean result = true;
+        try {
+            for (Benchmark benchmark : benchmarks) {
+                if (filter != null && !filter.matcher(benchmark.name).find()) {
+                    continue;
+                }
+
+                Result r;
+                // The loaders log to the standard output
+                System.setOut(new PrintStream(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                    }
+                }));
+                try {
+                    r = measure(benchmark);
+                } finally {
+                    System.setOut(out);
+                }
+
+                if (r == null) {
+                    out.println(String.format("%1$-32s failed", benchmark.name));
+                    result = false;
+                    continue;
+                }
+
+                out.println(String.format(
+                        "%1$-32s %2$10.1f %3$9.3f %4$9.3f %5$9.3f %6$9.3f %7$10s %8$10s",
+                        benchmark.name, r.getThroughput(), r.getPercentile(0.50),
+                        r.getPercentile(0.90), r.getPercentile(0.99), r.getPercentile(1.0),
+                        r.allocatedBytes < 0 ? "n/a" :
+                                String.format("%.1f", r.getAllocationRate() / 1024 / 1024),
+                        r.allocatedBytes < 0 ? "n/a" :
+                                String.format("%.1f", r.getAllocationPerOp() / 1024)));
+                if (resultsFile != null) {
+                    appendResult(benchmark, r);
+                }
+            }
+        } finally {
+            DeviceConnectionPool.evictAll();
+            ViewServerClient.shutdown();
+            server.stop();
+        }
+
+        return result;
+    }
+
+    private Result measure(Benchmark benchmark) {
+        try {
+            long end = System.currentTimeMillis() + warmupTime;
+            while (System.currentTimeMillis() < end) {
+                sink += benchmark.run();
+            }
+
+            long[] latencies = new long[1024];
+            int count = 0;
+
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            end = start + measureTime * 1000000;
+
+            long now = start;
+            while (now < end) {
+                sink += benchmark.run();
+                long time = System.nanoTime();
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = time - now;
+                now = time;
+            }
+
+            long allocatedAfter = getAllocatedBytes();
+
+            Result result = new Result(Arrays.copyOf(latencies, count), now - start);
+            if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+                result.allocatedBytes = allocatedAfter - allocatedBefore;
+            }
+            return result;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private void appendResult(Benchmark benchmark, Result r) throws IOException {
+        boolean newFile = !resultsFile.exists();
+        PrintWriter writer = new PrintWriter(new FileWriter(resultsFile, true));
+        try {
+            if (newFile) {
+                writer.println("date,benchmark,nodes,depth,properties,delay,ops/s," +
+                        "p50 ms,p90 ms,p99 ms,max ms,bytes/s,bytes/op");
+            }
+            writer.println(String.format(
+                    "%1$s,%2$s,%3$d,%4$d,%5$d,%6$d,%7$.2f,%8$.4f,%9$.4f,%10$.4f,%11$.4f," +
+                    "%12$.0f,%13$.0f",
+                    new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date()),
+                    benchmark.name, nodeCount, depth, propertyCount, replyDelay,
+                    r.getThroughput(), r.getPercentile(0.50), r.getPercentile(0.90),
+                    r.getPercentile(0.99), r.getPercentile(1.0),
+                    r.allocatedBytes < 0 ? -1.0 : r.getAllocationRate(),
+                    r.allocatedBytes < 0 ? -1.0 : r.getAllocationPerOp()));
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static int check(boolean success) {
+        if (!success) {
+            throw new IllegalStateException("Unexpected result");
+        }
+        return 1;
+    }
+
+    private int checkScene(ViewHierarchyScene scene) {
+        check(scene.getRoot() != null && scene.getNodes().size() == nodeCount);
+        return scene.getNodes().size();
+    }
+
+    private static abstract class Benchmark {
+        final String name;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Runs a single operation.
+         *
+         * @return a value depending on the result of the operation
+         */
+        abstract int run() throws Exception;
+    }
+
+    private static class Result {
+        /** Sorted latencies in nanoseconds. */
+        final long[] latencies;
+        final long elapsedTime;
+        long allocatedBytes = -1;
+
+        Result(long[] latencies, long elapsedTime) {
+            Arrays.sort(latencies);
+            this.latencies = latencies;
+            this.elapsedTime = elapsedTime;
+        }
+
+        double getThroughput() {
+            return latencies.length * 1e9 / elapsedTime;
+        }
+
+        /**
+         * Returns the latency, in milliseconds, under which the specified fraction of the
+         * operations completed.
+         */
+        double getPercentile(double fraction) {
+            if (latencies.length == 0) {
+                return 0.0;
+            }
+            int index = (int) Math.ceil(fraction * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e6;
+        }
+
+        double getAllocationRate() {
+            return allocatedBytes * 1e9 / elapsedTime;
+        }
+
+        double getAllocationPerOp() {
+            return latencies.length == 0 ? 0.0 : (double) allocatedBytes / latencies.length;
+        }
+    }
+}
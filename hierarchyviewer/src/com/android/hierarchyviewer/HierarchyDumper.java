@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer;
+
+import com.android.ddmlib.IDevice;
+import com.android.hierarchyviewer.device.DeviceBridge;
+import com.android.hierarchyviewer.device.ViewServerClient;
+import com.android.hierarchyviewer.device.Window;
+import com.android.hierarchyviewer.scene.ProfilesLoader;
+import com.android.hierarchyviewer.scene.SnapshotLoader;
+import com.android.hierarchyviewer.scene.VersionLoader;
+import com.android.hierarchyviewer.scene.ViewHierarchyLoader;
+import com.android.hierarchyviewer.scene.ViewHierarchyScene;
+import com.android.hierarchyviewer.scene.WindowsLoader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Dumps the view hierarchy of every window of several devices to a directory, without
+ * user interface. The windows of the devices are listed in parallel, then all the dumps are
+ * fetched through {@link ViewServerClient} and handled as they arrive by a single thread,
+ * whatever the number of devices. The number of dumps in flight is bounded both overall
+ * and per device so that no view server gets flooded.
+ * <p/>Dumps are saved as sent by the view server, or as snapshots with their profiles, see
+ * {@link SnapshotLoader}. Snapshots are parsed and saved on a pool of threads, which tell
+ * the thread handling the replies when they are done through the same queue as the replies.
+ */
+class HierarchyDumper {
+    // Stages of a job, see Job#handle()
+    private static final int DUMPING = 0;
+    private static final int PARSING = 1;
+    private static final int PROFILING = 2;
+    private static final int SAVING = 3;
+
+    private final List<IDevice> devices;
+    private final File directory;
+    private final List<Pattern> windowFilters;
+    private final int maxJobs;
+    private final int maxJobsPerDevice;
+    private final boolean snapshots;
+
+    private final AtomicInteger dumpCount = new AtomicInteger();
+    private final AtomicInteger failureCount = new AtomicInteger();
+
+    // Parses and saves the snapshots
+    private ExecutorService savers;
+
+    HierarchyDumper(List<IDevice> devices, File directory, List<Pattern> windowFilters,
+            int maxJobs, int maxJobsPerDevice, boolean snapshots) {
+        this.devices = devices;
+        this.directory = directory;
+        this.windowFilters = windowFilters;
+        this.maxJobs = Math.max(1, maxJobs);
+        this.maxJobsPerDevice = Math.max(1, maxJobsPerDevice);
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * Dumps all the matching windows.
+     *
+     * @return true if every window was dumped
+     */
+    boolean dump() throws InterruptedException {
+        final List<DeviceWindows> deviceWindows = new ArrayList<DeviceWindows>();
+        ExecutorService executor = Executors.newFixedThreadPool(maxJobs);
+        try {
+            List<Callable<Object>> listTasks = new ArrayList<Callable<Object>>();
+            for (final IDevice device : devices) {
+                final DeviceWindows windows = new DeviceWindows(device);
+                deviceWindows.add(windows);
+                listTasks.add(new Callable<Object>() {
+                    public Object call() {
+                        windows.load();
+                        return null;
+                    }
+                });
+            }
+            waitFor(executor.invokeAll(listTasks));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        try {
+            dumpWindows(deviceWindows);
+        } catch (IOException e) {
+            failureCount.incrementAndGet();
+            e.printStackTrace();
+        }
+
+        System.out.println(String.format("Dumped %1$d windows from %2$d devices to %3$s",
+                dumpCount.get(), devices.size(), directory));
+        return failureCount.get() == 0;
+    }
+
+    /**
+     * Fetches the dumps of the listed windows, and saves each one once its reply arrived.
+     */
+    private void dumpWindows(List<DeviceWindows> deviceWindows)
+            throws IOException, InterruptedException {
+        ViewServerClient client = ViewServerClient.getInstance();
+        BlockingQueue<Future<byte[]>> completion = new LinkedBlockingQueue<Future<byte[]>>();
+        Map<Future<byte[]>, Job> jobs = new HashMap<Future<byte[]>, Job>();
+        if (snapshots) {
+            savers = Executors.newFixedThreadPool(
+                    Math.min(maxJobs, Runtime.getRuntime().availableProcessors()));
+        }
+        try {
+            while (true) {
+                // Start one more dump per device in turn, while there is room for them
+                boolean started = true;
+                while (started && jobs.size() < maxJobs) {
+                    started = false;
+                    for (DeviceWindows windows : deviceWindows) {
+                        if (jobs.size() < maxJobs && windows.jobCount < maxJobsPerDevice &&
+                                !windows.queue.isEmpty()) {
+                            Job job = new Job(windows, windows.queue.removeFirst());
+                            jobs.put(client.sendCommand(windows.device,
+                                    "DUMP " + job.window.encode(), completion), job);
+                            windows.jobCount++;
+                            started = true;
+                        }
+                    }
+                }
+                if (jobs.isEmpty()) {
+                    break;
+                }
+
+                Future<byte[]> reply = completion.take();
+                Job job = jobs.remove(reply);
+                Future<byte[]> next = job.handle(reply, completion);
+                if (next != null) {
+                    jobs.put(next, job);
+                } else {
+                    job.windows.jobCount--;
+                }
+            }
+        } finally {
+            for (Future<byte[]> reply : jobs.keySet()) {
+                reply.cancel(false);
+            }
+            if (savers != null) {
+                savers.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Runs a step of a job on the pool of savers. The future is added to the completion
+     * queue once the step is done, like the replies of the view servers.
+     */
+    private Future<byte[]> submit(Callable<byte[]> step,
+            final BlockingQueue<Future<byte[]>> completion) {
+        FutureTask<byte[]> future = new FutureTask<byte[]>(step) {
+            @Override
+            protected void done() {
+                completion.add(this);
+            }
+        };
+        savers.execute(future);
+        return future;
+    }
+
+    private void waitFor(List<Future<Object>> futures) throws InterruptedException {
+        for (Future<Object> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failureCount.incrementAndGet();
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    private boolean accept(Window window) {
+        if (windowFilters.isEmpty()) {
+            return true;
+        }
+        for (Pattern filter : windowFilters) {
+            if (filter.matcher(window.getTitle()).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getFileName(Window window) {
+        return window.getTitle().replaceAll("[^a-zA-Z0-9._-]", "_") + "-" +
+                window.encode() + (snapshots ? ".hvs" : ".txt");
+    }
+
+    private static boolean saveDump(byte[] dump, File file) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(dump);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                // Empty
+            }
+        }
+    }
+
+    /**
+     * Returns the first line of a reply, or null if it is empty.
+     */
+    private static String getFirstLine(byte[] reply) throws IOException {
+        if (reply.length == 0) {
+            return null;
+        }
+        String text = new String(reply, "utf-8");
+        int end = text.indexOf('\n');
+        return end == -1 ? text : text.substring(0, end);
+    }
+
+    private class DeviceWindows {
+        final IDevice device;
+        final LinkedList<Window> queue = new LinkedList<Window>();
+        File deviceDirectory;
+        // Number of dumps in flight, only used by the thread saving them
+        int jobCount;
+
+        DeviceWindows(IDevice device) {
+            this.device = device;
+        }
+
+        void load() {
+            if (!DeviceBridge.isViewServerRunning(device)) {
+                DeviceBridge.startViewServer(device);
+            }
+
+            int protocol = DeviceBridge.getProtocolVersion(device);
+            int server = DeviceBridge.getServerVersion(device);
+            if (protocol == -1 || server == -1) {
+                protocol = VersionLoader.loadProtocolVersion(device);
+                server = VersionLoader.loadServerVersion(device);
+            }
+
+            Window[] windows = WindowsLoader.loadWindows(device, protocol, server);
+            if (windows == null) {
+                System.err.println("Could not list the windows of " + device.getSerialNumber());
+                failureCount.incrementAndGet();
+                return;
+            }
+            if (windows.length == 0) {
+                System.err.println("No window found on " + device.getSerialNumber());
+                failureCount.incrementAndGet();
+                return;
+            }
+
+            deviceDirectory = new File(directory, device.getSerialNumber());
+            if (!deviceDirectory.isDirectory() && !deviceDirectory.mkdirs()) {
+                System.err.println("Could not create " + deviceDirectory);
+                failureCount.incrementAndGet();
+                return;
+            }
+
+            for (Window window : windows) {
+                if (accept(window)) {
+                    queue.add(window);
+                }
+            }
+        }
+    }
+
+    /**
+     * Dump of a window, followed for a snapshot by the profiles of its views.
+     */
+    private class Job {
+        final DeviceWindows windows;
+        final Window window;
+        int stage = DUMPING;
+
+        // Set by the savers, and read once their step is taken from the completion queue
+        ViewHierarchyScene scene;
+        boolean saved;
+
+        Job(DeviceWindows windows, Window window) {
+            this.windows = windows;
+            this.window = window;
+        }
+
+        /**
+         * Handles the end of the last step of the job: the reply to a command sent for the
+         * window, or the parsing or saving of its snapshot.
+         *
+         * @return the future of the next step, or null once the window is saved or failed
+         */
+        Future<byte[]> handle(Future<byte[]> reply, BlockingQueue<Future<byte[]>> completion)
+                throws InterruptedException {
+            final File file = new File(windows.deviceDirectory, getFileName(window));
+            try {
+                switch (stage) {
+                    case DUMPING:
+                        final byte[] dump = reply.get();
+                        if (!snapshots) {
+                            return finish(saveDump(dump, file));
+                        }
+                        stage = PARSING;
+                        return submit(new Callable<byte[]>() {
+                            public byte[] call() throws IOException {
+                                scene = ViewHierarchyLoader.loadScene(
+                                        new ByteArrayInputStream(dump),
+                                        HierarchyViewer.isParallelParsingEnabled());
+                                if (scene.getRoot() != null &&
+                                        !HierarchyViewer.isProfilingEnabled()) {
+                                    scene.setProfiles(new double[] { 0.0, 0.0, 0.0 });
+                                    saved = SnapshotLoader.saveSnapshot(scene, file);
+                                }
+                                return null;
+                            }
+                        }, completion);
+                    case PARSING:
+                        reply.get();
+                        if (scene.getRoot() == null || !HierarchyViewer.isProfilingEnabled()) {
+                            return finish(saved);
+                        }
+                        stage = PROFILING;
+                        return ViewServerClient.getInstance().sendCommand(windows.device,
+                                "PROFILE " + window.encode() + " " + scene.getRoot(),
+                                completion);
+                    case PROFILING:
+                        double[] profiles = null;
+                        try {
+                            profiles = ProfilesLoader.parseProfiles(getFirstLine(reply.get()));
+                        } catch (ExecutionException e) {
+                            // Like ProfilesLoader, the snapshot is saved without profiles
+                        }
+                        scene.setProfiles(profiles);
+                        stage = SAVING;
+                        return submit(new Callable<byte[]>() {
+                            public byte[] call() {
+                                saved = SnapshotLoader.saveSnapshot(scene, file);
+                                return null;
+                            }
+                        }, completion);
+                    default:
+                        reply.get();
+                        return finish(saved);
+                }
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return finish(false);
+        }
+
+        private Future<byte[]> finish(boolean success) {
+            if (success) {
+                dumpCount.incrementAndGet();
+            } else {
+                System.err.println("Could not dump " + window + " from " +
+                        windows.device.getSerialNumber());
+                failureCount.incrementAndGet();
+            }
+            return null;
+        }
+    }
+}
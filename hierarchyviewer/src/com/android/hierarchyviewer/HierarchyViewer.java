@@ -26,17 +26,27 @@ import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
 
 public class HierarchyViewer {
     private static final CharSequence OS_WINDOWS = "Windows";
     private static final CharSequence OS_MACOSX = "Mac OS X";
 
     private static boolean sProfilingEnabled = true;
+    private static boolean sDumpSnapshots = false;
+    private static boolean sParallelParsingEnabled = false;
 
     public static boolean isProfilingEnabled() {
         return sProfilingEnabled;
     }
 
+    public static boolean isParallelParsingEnabled() {
+        return sParallelParsingEnabled;
+    }
+
     private static void initUserInterface() {
         System.setProperty("apple.laf.useScreenMenuBar", "true");
         System.setProperty("apple.awt.brushMetalLook", "true");
@@ -95,6 +105,60 @@ public class HierarchyViewer {
         DeviceBridge.terminate();
     }
 
+    private static void dumpHierarchies(String deviceNames, String directory,
+            List<String> windowFilters) {
+        List<IDevice> devices = selectDevices(deviceNames);
+        if (devices.isEmpty()) {
+            System.out.println("The selected devices do not exist");
+            DeviceBridge.terminate();
+            System.exit(1);
+        }
+
+        List<Pattern> filters = new ArrayList<Pattern>();
+        for (String filter : windowFilters) {
+            filters.add(Pattern.compile(filter, Pattern.CASE_INSENSITIVE));
+        }
+
+        boolean result = false;
+        try {
+            result = new HierarchyDumper(devices, new File(directory), filters,
+                    Integer.getInteger("hierarchyviewer.dump.jobs", 16),
+                    Integer.getInteger("hierarchyviewer.dump.jobsPerDevice", 2),
+                    sDumpSnapshots).dump();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            for (IDevice device : devices) {
+                DeviceBridge.removeDeviceForward(device);
+            }
+            DeviceBridge.terminate();
+        }
+        System.exit(result ? 0 : 1);
+    }
+
+    private static List<IDevice> selectDevices(String deviceNames) {
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        List<IDevice> devices = new ArrayList<IDevice>();
+        if (DeviceBridge.getDevices() == null) {
+            return devices;
+        }
+
+        boolean all = "all".equalsIgnoreCase(deviceNames);
+        List<String> names = Arrays.asList(deviceNames.toLowerCase().split(","));
+        for (IDevice device : DeviceBridge.getDevices()) {
+            if (all ? device.isOnline() :
+                    names.contains(device.getSerialNumber().toLowerCase())) {
+                devices.add(device);
+            }
+        }
+        return devices;
+    }
+
     private static IDevice selectDevice(String deviceName) {
         try {
             Thread.sleep(500);
@@ -114,6 +178,11 @@ public class HierarchyViewer {
     public static void main(String[] args) {
         DeviceBridge.initDebugBridge();
 
+        // Hierarchies are dumped once all the options are read
+        String dumpDevices = null;
+        String dumpDirectory = null;
+        List<String> windowFilters = new ArrayList<String>();
+
         if (args.length > 0) {
             for (int i = 0; i < args.length; i++) {
                 String arg = args[i];
@@ -122,11 +191,25 @@ public class HierarchyViewer {
                     System.out.println("Options:");
                     System.out.println("  --help\t\t\t Show this help message and exit");
                     System.out.println("  --no-profiling\t Disable views profiling");
+                    System.out.println("  --parallel-parsing\t Parse the view hierarchies " +
+                            "on all the cores, once\n\t\t\t received, instead of while " +
+                            "they are received");
+                    System.out.println("  --snapshots\t\t Save the hierarchies dumped with " +
+                            "--dump as\n\t\t\t snapshots instead of text");
                     System.out.println("  --devices\t\t\t Show the list of available devices");
                     System.out.println("  --psd [device] <file>\t Export psd and exit");
+                    System.out.println("  --dump <all|device[,device...]> <directory> " +
+                            "[window filter...]");
+                    System.out.println("\t\t\t Dump the view hierarchy of every window " +
+                            "matching one of\n\t\t\t the filters (all windows if none) " +
+                            "to files and exit");
                     System.exit(0);
                 } else if ("--no-profiling".equalsIgnoreCase(arg)) {
                     sProfilingEnabled = false;
+                } else if ("--parallel-parsing".equalsIgnoreCase(arg)) {
+                    sParallelParsingEnabled = true;
+                } else if ("--snapshots".equalsIgnoreCase(arg)) {
+                    sDumpSnapshots = true;
                 } else if ("--devices".equalsIgnoreCase(arg)) {
                     listDevices();
                     System.exit(0);
@@ -145,10 +228,26 @@ public class HierarchyViewer {
                     }
                     outputPsd(device, file);
                     System.exit(0);
+                } else if ("--dump".equalsIgnoreCase(arg)) {
+                    if (i >= args.length - 2) {
+                        System.out.println("You must specify devices and an output directory " +
+                                "with --dump");
+                        System.exit(1);
+                    }
+                    dumpDevices = args[++i];
+                    dumpDirectory = args[++i];
+                    // The filters end at the next option
+                    while (i < args.length - 1 && !args[i + 1].startsWith("--")) {
+                        windowFilters.add(args[++i]);
+                    }
                 }
             }
         }
 
+        if (dumpDevices != null) {
+            dumpHierarchies(dumpDevices, dumpDirectory, windowFilters);
+        }
+
         initUserInterface();
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
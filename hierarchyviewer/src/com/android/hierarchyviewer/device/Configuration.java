@@ -19,6 +19,21 @@ package com.android.hierarchyviewer.device;
 public class Configuration {
     public static final int DEFAULT_SERVER_PORT = 4939;
 
+    // Local ports forwarded to devices are taken from a range starting at DEFAULT_SERVER_PORT
+    public static final int DEFAULT_FORWARD_PORT_COUNT = 256;
+    public static final int DEFAULT_MAX_FORWARDS = 64;
+
+    // Timeouts of view server requests, in milliseconds. The read timeout bounds the silence
+    // between two chunks of a reply, the request timeout bounds the whole request, except
+    // for dumps and captures which may take any time to transfer
+    public static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+    public static final int DEFAULT_READ_TIMEOUT = 10000;
+    public static final int DEFAULT_REQUEST_TIMEOUT = 30000;
+
+    // Delay after which an idempotent command that got no reply yet is sent again on a second
+    // connection, in milliseconds. 0 disables hedging
+    public static final int DEFAULT_HEDGE_DELAY = 0;
+
     // These codes must match the auto-generated codes in IWindowManager.java
     // See IWindowManager.aidl as well
     public static final int SERVICE_CODE_START_SERVER = 1;
@@ -34,8 +34,19 @@ import java.util.regex.Pattern;
 public class DeviceBridge {
     private static AndroidDebugBridge bridge;
 
-    private static final HashMap<IDevice, Integer> devicePortMap = new HashMap<IDevice, Integer>();
-    private static int nextLocalPort = Configuration.DEFAULT_SERVER_PORT;
+    private static final PortForwardManager forwards = new PortForwardManager(
+            Integer.getInteger("hierarchyviewer.forward.firstPort",
+                    Configuration.DEFAULT_SERVER_PORT),
+            Integer.getInteger("hierarchyviewer.forward.portCount",
+                    Configuration.DEFAULT_FORWARD_PORT_COUNT),
+            Integer.getInteger("hierarchyviewer.forward.max",
+                    Configuration.DEFAULT_MAX_FORWARDS));
+
+    private static final HashMap<String, ViewServerState> serverStateMap =
+            new HashMap<String, ViewServerState>();
+
+    private static final Pattern SERVICE_CALL_RESULT_PATTERN =
+            Pattern.compile(".*?\\([0-9]{8} ([0-9]{8}).*");
 
     public static void initDebugBridge() {
         if (bridge == null) {
@@ -62,6 +73,13 @@ public class DeviceBridge {
     }
 
     public static boolean isViewServerRunning(IDevice device) {
+        synchronized (serverStateMap) {
+            ViewServerState state = serverStateMap.get(device.getSerialNumber());
+            if (state != null && state.running != null) {
+                return state.running;
+            }
+        }
+
         initDebugBridge();
         final boolean[] result = new boolean[1];
         try {
@@ -69,10 +87,15 @@ public class DeviceBridge {
                 device.executeShellCommand(buildIsServerRunningShellCommand(),
                         new BooleanResultReader(result));
                 if (!result[0]) {
-                    if (VersionLoader.loadProtocolVersion(device) > 2) {
+                    if (loadViewServerVersions(device) > 2) {
                         result[0] = true;
                     }
                 }
+                if (!result[0]) {
+                    // Connections opened while the server was down are closed by adb
+                    DeviceConnectionPool.evict(device);
+                }
+                setViewServerRunning(device, result[0]);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -86,6 +109,95 @@ public class DeviceBridge {
         return result[0];
     }
 
+    /**
+     * Returns the cached protocol version of the view server running on the device, or -1
+     * if it is not known yet.
+     */
+    public static int getProtocolVersion(IDevice device) {
+        synchronized (serverStateMap) {
+            ViewServerState state = serverStateMap.get(device.getSerialNumber());
+            return state == null ? -1 : state.protocolVersion;
+        }
+    }
+
+    /**
+     * Returns the cached version of the view server running on the device, or -1 if it is
+     * not known yet.
+     */
+    public static int getServerVersion(IDevice device) {
+        synchronized (serverStateMap) {
+            ViewServerState state = serverStateMap.get(device.getSerialNumber());
+            return state == null ? -1 : state.serverVersion;
+        }
+    }
+
+    /**
+     * Caches the versions reported by the view server of the device. A server that answers
+     * is running, so this also updates the running state.
+     */
+    public static void setViewServerVersions(IDevice device, int protocolVersion,
+            int serverVersion) {
+        synchronized (serverStateMap) {
+            ViewServerState state = getViewServerState(device);
+            state.protocolVersion = protocolVersion;
+            state.serverVersion = serverVersion;
+            state.running = true;
+        }
+    }
+
+    /**
+     * Forgets everything cached about the view server of the device. Must be called when
+     * the device connects, disconnects or changes state.
+     */
+    public static void invalidateViewServerState(IDevice device) {
+        synchronized (serverStateMap) {
+            serverStateMap.remove(device.getSerialNumber());
+        }
+    }
+
+    private static void setViewServerRunning(IDevice device, boolean running) {
+        synchronized (serverStateMap) {
+            ViewServerState state = getViewServerState(device);
+            state.running = running;
+            if (!running) {
+                state.protocolVersion = -1;
+                state.serverVersion = -1;
+            }
+        }
+    }
+
+    private static ViewServerState getViewServerState(IDevice device) {
+        ViewServerState state = serverStateMap.get(device.getSerialNumber());
+        if (state == null) {
+            state = new ViewServerState();
+            serverStateMap.put(device.getSerialNumber(), state);
+        }
+        return state;
+    }
+
+    /**
+     * Asks the view server for its protocol and server versions in a single round trip and
+     * caches them if it answered.
+     *
+     * @return the protocol version, or -1 if the server did not answer
+     */
+    private static int loadViewServerVersions(IDevice device) {
+        ViewServerPipeline pipeline = new ViewServerPipeline(device);
+        int protocol = pipeline.addCommand("PROTOCOL");
+        int server = pipeline.addCommand("SERVER");
+        pipeline.execute();
+
+        String[] protocolReply = pipeline.getReply(protocol);
+        String[] serverReply = pipeline.getReply(server);
+        if (protocolReply == null || protocolReply.length == 0) {
+            return -1;
+        }
+
+        int protocolVersion = VersionLoader.parseVersion(protocolReply);
+        setViewServerVersions(device, protocolVersion, VersionLoader.parseVersion(serverReply));
+        return protocolVersion;
+    }
+
     public static boolean startViewServer(IDevice device) {
         return startViewServer(device, Configuration.DEFAULT_SERVER_PORT);
     }
@@ -97,6 +209,11 @@ public class DeviceBridge {
             if (device.isOnline()) {
                 device.executeShellCommand(buildStartServerShellCommand(port),
                         new BooleanResultReader(result));
+                DeviceConnectionPool.evict(device);
+                invalidateViewServerState(device);
+                if (result[0]) {
+                    setViewServerRunning(device, true);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -117,6 +234,11 @@ public class DeviceBridge {
             if (device.isOnline()) {
                 device.executeShellCommand(buildStopServerShellCommand(),
                         new BooleanResultReader(result));
+                DeviceConnectionPool.evict(device);
+                invalidateViewServerState(device);
+                if (result[0]) {
+                    setViewServerRunning(device, false);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -131,69 +253,33 @@ public class DeviceBridge {
     }
 
     public static void terminate() {
+        DeviceConnectionPool.evictAll();
+        ViewServerClient.shutdown();
         AndroidDebugBridge.terminate();
     }
 
     /**
      * Sets up a just-connected device to work with the view server.
-     * <p/>This starts a port forwarding between a local port and a port on the device.
+     * <p/>The port forwarding between a local port and a port on the device is only created
+     * when the device is first used. This forgets any forward left from a previous session
+     * of the device, adb drops them when a device goes offline.
      * @param device
      */
     public static void setupDeviceForward(IDevice device) {
-        synchronized (devicePortMap) {
-            if (device.getState() == IDevice.DeviceState.ONLINE) {
-                int localPort = nextLocalPort++;
-                try {
-                    device.createForward(localPort, Configuration.DEFAULT_SERVER_PORT);
-                    devicePortMap.put(device, localPort);
-                } catch (TimeoutException e) {
-                    Log.e("hierarchy", "Timeout setting up port forwarding for " + device);
-                } catch (AdbCommandRejectedException e) {
-                    Log.e("hierarchy", String.format(
-                            "Adb rejected forward command for device %1$s: %2$s",
-                            device, e.getMessage()));
-                } catch (IOException e) {
-                    Log.e("hierarchy", String.format(
-                            "Failed to create forward for device %1$s: %2$s",
-                            device, e.getMessage()));
-                }
-            }
-        }
+        forwards.reset(device);
     }
 
     public static void removeDeviceForward(IDevice device) {
-        synchronized (devicePortMap) {
-            final Integer localPort = devicePortMap.get(device);
-            if (localPort != null) {
-                try {
-                    device.removeForward(localPort, Configuration.DEFAULT_SERVER_PORT);
-                    devicePortMap.remove(device);
-                } catch (TimeoutException e) {
-                    Log.e("hierarchy", "Timeout removing port forwarding for " + device);
-                } catch (AdbCommandRejectedException e) {
-                    Log.e("hierarchy", String.format(
-                            "Adb rejected remove-forward command for device %1$s: %2$s",
-                            device, e.getMessage()));
-                } catch (IOException e) {
-                    Log.e("hierarchy", String.format(
-                            "Failed to remove forward for device %1$s: %2$s",
-                            device, e.getMessage()));
-                }
-            }
-        }
+        DeviceConnectionPool.evict(device);
+        forwards.release(device);
     }
 
     public static int getDeviceLocalPort(IDevice device) {
-        synchronized (devicePortMap) {
-            Integer port = devicePortMap.get(device);
-            if (port != null) {
-                return port;
-            }
-
+        int port = forwards.getPort(device);
+        if (port == -1) {
             Log.e("hierarchy", "Missing forwarded port for " + device.getSerialNumber());
-            return -1;
         }
-
+        return port;
     }
 
     private static String buildStartServerShellCommand(int port) {
@@ -220,8 +306,7 @@ public class DeviceBridge {
         @Override
         public void processNewLines(String[] strings) {
             if (strings.length > 0) {
-                Pattern pattern = Pattern.compile(".*?\\([0-9]{8} ([0-9]{8}).*");
-                Matcher matcher = pattern.matcher(strings[0]);
+                Matcher matcher = SERVICE_CALL_RESULT_PATTERN.matcher(strings[0]);
                 if (matcher.matches()) {
                     if (Integer.parseInt(matcher.group(1)) == 1) {
                         mResult[0] = true;
@@ -234,4 +319,10 @@ public class DeviceBridge {
             return false;
         }
     }
+
+    private static class ViewServerState {
+        Boolean running;
+        int protocolVersion = -1;
+        int serverVersion = -1;
+    }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.device;
+
+import com.android.ddmlib.IDevice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Future;
+
+/**
+ * A socket connected to the view server of a device through its forwarded local port.
+ * Connections are handed out by {@link DeviceConnectionPool} and must be given back to it
+ * with {@link DeviceConnectionPool#release(DeviceConnection)} once the command is done.
+ */
+public class DeviceConnection {
+    private final IDevice device;
+    private final Socket socket;
+    private final BufferedInputStream input;
+
+    private BufferedReader in;
+    private BufferedWriter out;
+
+    private long lastUsedTime;
+    // The view server closes the connection after answering a command
+    private boolean used;
+
+    /** Thread the connection is lent to, see {@link DeviceConnectionPool#cancel(Thread)}. */
+    Thread owner;
+    /** Closes the connection once the request deadline has passed. */
+    Future<?> deadline;
+    volatile boolean expired;
+
+    DeviceConnection(IDevice device, int port, int connectTimeout, int readTimeout)
+            throws IOException {
+        this.device = device;
+
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("127.0.0.1", port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            input = new BufferedInputStream(socket.getInputStream());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        lastUsedTime = System.currentTimeMillis();
+    }
+
+    public IDevice getDevice() {
+        return device;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return input;
+    }
+
+    public BufferedReader getReader() throws IOException {
+        if (in == null) {
+            in = new BufferedReader(new InputStreamReader(input, "utf-8"));
+        }
+        return in;
+    }
+
+    public BufferedWriter getWriter() throws IOException {
+        if (out == null) {
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        }
+        return out;
+    }
+
+    public void sendCommand(String command) throws IOException {
+        used = true;
+        DeviceConnectionPool.startDeadline(this, command);
+        BufferedWriter writer = getWriter();
+        writer.write(command);
+        writer.newLine();
+        writer.flush();
+        lastUsedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true if a command was sent on the connection, which can then not be reused.
+     */
+    boolean isUsed() {
+        return used;
+    }
+
+    long getLastUsedTime() {
+        return lastUsedTime;
+    }
+
+    /**
+     * Waits for the server to start replying, or to close the connection, without consuming
+     * anything from the reply.
+     *
+     * @return false if nothing arrived within the timeout
+     */
+    boolean awaitReply(int timeout) throws IOException {
+        if (input.available() > 0 || (in != null && in.ready())) {
+            return true;
+        }
+
+        int previousTimeout = socket.getSoTimeout();
+        try {
+            socket.setSoTimeout(timeout);
+            input.mark(1);
+            input.read();
+            input.reset();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(previousTimeout);
+            }
+        }
+    }
+
+    /**
+     * Returns true if an idle connection can no longer carry a command. adb accepts the
+     * connection even when the view server is not running and closes it from the device
+     * side later, which the socket only reports once it is read.
+     */
+    boolean isStale() {
+        if (socket.isClosed()) {
+            return true;
+        }
+
+        try {
+            if (input.available() > 0) {
+                // The server never speaks first
+                return true;
+            }
+            return awaitReply(1);
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    public void close() {
+        DeviceConnectionPool.returned(this);
+        try {
+            if (out != null) {
+                out.close();
+            }
+            if (in != null) {
+                in.close();
+            }
+            socket.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.device;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps connections to the view server of each device open so that commands do not pay
+ * for the TCP and adb forward setup. The view server closes a connection once it has
+ * answered a command, so only connections that never carried one are kept: the pool is
+ * topped up in the background with fresh connections after each connection it hands out,
+ * and connections given back after a command are closed.
+ * <p/>A command whose reply is short gets a deadline when it is sent, after which its
+ * connection is closed. Dumps and captures can take any time to transfer and are only
+ * bounded by the read timeout, the longest silence allowed while a reply arrives. Any
+ * connection handed out can also be closed from another thread with
+ * {@link #cancel(Thread)}. In both cases a blocked reader then fails with an
+ * {@link IOException} instead of hanging.
+ */
+public class DeviceConnectionPool {
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+    private static final long IDLE_TIMEOUT = 30 * 1000;
+    private static final int HEDGE_POLL_INTERVAL = 10;
+
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(
+            "hierarchyviewer.connectTimeout", Configuration.DEFAULT_CONNECT_TIMEOUT);
+    static final int READ_TIMEOUT = Integer.getInteger(
+            "hierarchyviewer.readTimeout", Configuration.DEFAULT_READ_TIMEOUT);
+    private static final int REQUEST_TIMEOUT = Integer.getInteger(
+            "hierarchyviewer.requestTimeout", Configuration.DEFAULT_REQUEST_TIMEOUT);
+    private static final int HEDGE_DELAY = Integer.getInteger(
+            "hierarchyviewer.hedgeDelay", Configuration.DEFAULT_HEDGE_DELAY);
+
+    /** Commands that can safely be sent twice. */
+    private static final String[] IDEMPOTENT_COMMANDS = {
+        "LIST", "DUMP", "PROFILE", "SERVER", "PROTOCOL"
+    };
+
+    /** Commands whose replies are only bounded by the read timeout. */
+    private static final String[] UNBOUNDED_COMMANDS = {
+        "DUMP", "CAPTURE", "CAPTURE_LAYERS"
+    };
+
+    private static final HashMap<IDevice, LinkedList<DeviceConnection>> idleConnections =
+            new HashMap<IDevice, LinkedList<DeviceConnection>>();
+    private static final HashSet<DeviceConnection> lentConnections =
+            new HashSet<DeviceConnection>();
+
+    private static final ExecutorService warmer = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ViewServer connection warmer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final ScheduledExecutorService watchdog =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ViewServer watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public static DeviceConnection acquire(IDevice device) throws IOException {
+        DeviceConnection connection = pollFresh(device);
+        if (connection == null) {
+            connection = open(device);
+        }
+        warmUp(device);
+        lend(connection);
+        return connection;
+    }
+
+    /**
+     * Acquires a connection and sends the specified command on it.
+     * <p/>When hedging is enabled, with the hierarchyviewer.hedgeDelay system property, an
+     * idempotent command that got no reply within the delay is sent again on a second
+     * connection. The connection that starts replying first is returned, the other one is
+     * closed.
+     */
+    public static DeviceConnection send(IDevice device, String command) throws IOException {
+        DeviceConnection connection = acquire(device);
+        try {
+            connection.sendCommand(command);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+
+        if (HEDGE_DELAY <= 0 || !isIdempotent(command) ||
+                connection.awaitReply(HEDGE_DELAY)) {
+            return connection;
+        }
+
+        DeviceConnection hedge = null;
+        try {
+            hedge = acquire(device);
+            hedge.sendCommand(command);
+        } catch (IOException e) {
+            // Hedging is best effort, keep waiting for the first connection
+            if (hedge != null) {
+                hedge.close();
+            }
+            return connection;
+        }
+        Log.d("hierarchy", "Hedging " + command + " on " + device.getSerialNumber());
+
+        try {
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException(command + " was cancelled");
+                }
+                if (connection.awaitReply(HEDGE_POLL_INTERVAL)) {
+                    hedge.close();
+                    return connection;
+                }
+                if (hedge.awaitReply(HEDGE_POLL_INTERVAL)) {
+                    connection.close();
+                    return hedge;
+                }
+            }
+        } catch (IOException e) {
+            connection.close();
+            hedge.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes every connection currently lent to the specified thread, which makes any
+     * request it is blocked on fail.
+     */
+    public static void cancel(Thread thread) {
+        List<DeviceConnection> cancelled = new ArrayList<DeviceConnection>();
+        synchronized (lentConnections) {
+            for (DeviceConnection connection : lentConnections) {
+                if (connection.owner == thread) {
+                    cancelled.add(connection);
+                }
+            }
+        }
+        closeAll(cancelled);
+    }
+
+    /**
+     * Gives back a connection acquired from the pool. It is closed if a command was sent on
+     * it, and kept for a later command otherwise.
+     */
+    public static void release(DeviceConnection connection) {
+        if (connection == null) {
+            return;
+        }
+
+        returned(connection);
+        if (!connection.expired && !connection.isUsed() &&
+                !connection.getSocket().isClosed()) {
+            synchronized (idleConnections) {
+                LinkedList<DeviceConnection> connections = getIdle(connection.getDevice());
+                if (connections.size() < MAX_IDLE_CONNECTIONS) {
+                    connections.addFirst(connection);
+                    return;
+                }
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Closes every idle connection to the specified device. Called when the device goes
+     * away or when its port forward is removed.
+     */
+    public static void evict(IDevice device) {
+        List<DeviceConnection> evicted;
+        synchronized (idleConnections) {
+            evicted = idleConnections.remove(device);
+        }
+        closeAll(evicted);
+    }
+
+    /**
+     * Returns true if a connection to the specified device is lent, in which case its port
+     * forward must be kept.
+     */
+    static boolean isBusy(IDevice device) {
+        synchronized (lentConnections) {
+            for (DeviceConnection connection : lentConnections) {
+                if (connection.getDevice() == device) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static void evictAll() {
+        List<DeviceConnection> evicted = new ArrayList<DeviceConnection>();
+        synchronized (idleConnections) {
+            for (LinkedList<DeviceConnection> connections : idleConnections.values()) {
+                evicted.addAll(connections);
+            }
+            idleConnections.clear();
+        }
+        closeAll(evicted);
+    }
+
+    private static DeviceConnection open(IDevice device) throws IOException {
+        int port = DeviceBridge.getDeviceLocalPort(device);
+        if (port == -1) {
+            throw new IOException("No forwarded port for " + device.getSerialNumber());
+        }
+        return new DeviceConnection(device, port, CONNECT_TIMEOUT, READ_TIMEOUT);
+    }
+
+    private static void lend(DeviceConnection connection) {
+        connection.owner = Thread.currentThread();
+        synchronized (lentConnections) {
+            lentConnections.add(connection);
+        }
+    }
+
+    /**
+     * Returns how long the reply to a command may take, in milliseconds, or 0 if it is
+     * only bounded by the read timeout.
+     */
+    static int getRequestTimeout(String command) {
+        return REQUEST_TIMEOUT > 0 && !isAnyOf(command, UNBOUNDED_COMMANDS) ?
+                REQUEST_TIMEOUT : 0;
+    }
+
+    /**
+     * Called when a command is sent on a lent connection, to close it once the reply is
+     * overdue.
+     */
+    static void startDeadline(final DeviceConnection connection, final String command) {
+        final int timeout = getRequestTimeout(command);
+        if (timeout <= 0 || connection.deadline != null) {
+            return;
+        }
+        connection.deadline = watchdog.schedule(new Runnable() {
+            public void run() {
+                Log.w("hierarchy", getName(command) + " to " + connection.getDevice() +
+                        " timed out after " + timeout + " ms");
+                connection.expired = true;
+                connection.close();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when a connection comes back to the pool or is closed.
+     */
+    static void returned(DeviceConnection connection) {
+        synchronized (lentConnections) {
+            if (!lentConnections.remove(connection)) {
+                return;
+            }
+        }
+        connection.owner = null;
+        if (connection.deadline != null) {
+            connection.deadline.cancel(false);
+            connection.deadline = null;
+        }
+    }
+
+    private static boolean isIdempotent(String command) {
+        return isAnyOf(command, IDEMPOTENT_COMMANDS);
+    }
+
+    private static boolean isAnyOf(String command, String[] names) {
+        String name = getName(command);
+        for (String candidate : names) {
+            if (candidate.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first word of a command.
+     */
+    static String getName(String command) {
+        int index = command.indexOf(' ');
+        return index == -1 ? command : command.substring(0, index);
+    }
+
+    private static DeviceConnection pollFresh(IDevice device) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            DeviceConnection connection;
+            synchronized (idleConnections) {
+                LinkedList<DeviceConnection> connections = idleConnections.get(device);
+                if (connections == null || connections.isEmpty()) {
+                    return null;
+                }
+                connection = connections.removeFirst();
+            }
+
+            if (now - connection.getLastUsedTime() < IDLE_TIMEOUT && !connection.isStale()) {
+                return connection;
+            }
+            connection.close();
+        }
+    }
+
+    private static void warmUp(final IDevice device) {
+        warmer.execute(new Runnable() {
+            public void run() {
+                synchronized (idleConnections) {
+                    if (getIdle(device).size() >= MAX_IDLE_CONNECTIONS) {
+                        return;
+                    }
+                }
+
+                if (!device.isOnline()) {
+                    return;
+                }
+
+                try {
+                    release(open(device));
+                } catch (IOException e) {
+                    Log.d("hierarchy", "Could not pre-connect to " + device + ": " +
+                            e.getMessage());
+                }
+            }
+        });
+    }
+
+    private static LinkedList<DeviceConnection> getIdle(IDevice device) {
+        LinkedList<DeviceConnection> connections = idleConnections.get(device);
+        if (connections == null) {
+            connections = new LinkedList<DeviceConnection>();
+            idleConnections.put(device, connections);
+        }
+        return connections;
+    }
+
+    private static void closeAll(List<DeviceConnection> connections) {
+        if (connections != null) {
+            for (DeviceConnection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+}
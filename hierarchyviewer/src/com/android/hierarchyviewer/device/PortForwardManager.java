@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.device;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.TimeoutException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Allocates the local ports forwarded to the view server of each device. Forwards are
+ * created the first time a device is used, their ports come from a bounded range and are
+ * recycled once the forward goes away. When more than the configured number of forwards
+ * exist, the least recently used one whose device has no request in flight is removed.
+ * <p/>Adb is never called with the lock of the manager held: the forward of a device is a
+ * future, created by the first thread asking for it while the others wait on it, so that
+ * a slow device does not hold up the ports of the other devices.
+ */
+class PortForwardManager {
+    private static final int MAX_FORWARD_ATTEMPTS = 3;
+
+    private final int maxForwards;
+
+    /** Forwarded port of each device, in least recently used first order. */
+    private final LinkedHashMap<IDevice, Future<Integer>> devicePortMap =
+            new LinkedHashMap<IDevice, Future<Integer>>(16, 0.75f, true);
+    private final LinkedList<Integer> freePorts = new LinkedList<Integer>();
+
+    PortForwardManager(int firstPort, int portCount, int maxForwards) {
+        this.maxForwards = Math.max(1, Math.min(maxForwards, portCount));
+        for (int i = 0; i < portCount; i++) {
+            freePorts.add(firstPort + i);
+        }
+    }
+
+    /**
+     * Returns the local port forwarded to the device, creating the forward if needed.
+     *
+     * @return the local port or -1 if the forward could not be created
+     */
+    int getPort(final IDevice device) {
+        FutureTask<Integer> created = null;
+        Future<Integer> forward;
+        Map<IDevice, Future<Integer>> evicted = null;
+        synchronized (this) {
+            forward = devicePortMap.get(device);
+            if (forward == null) {
+                if (device.getState() != IDevice.DeviceState.ONLINE) {
+                    return -1;
+                }
+                evicted = removeEldest();
+                created = new FutureTask<Integer>(new Callable<Integer>() {
+                    public Integer call() {
+                        return createForward(device);
+                    }
+                });
+                forward = created;
+                devicePortMap.put(device, forward);
+            }
+        }
+
+        if (created != null) {
+            for (Map.Entry<IDevice, Future<Integer>> entry : evicted.entrySet()) {
+                removeForward(entry.getKey(), entry.getValue());
+            }
+            created.run();
+        }
+
+        int port = getPort(forward);
+        if (port == -1 && !Thread.currentThread().isInterrupted()) {
+            synchronized (this) {
+                // Lets the next request try again
+                if (devicePortMap.get(device) == forward) {
+                    devicePortMap.remove(device);
+                }
+            }
+        }
+        return port;
+    }
+
+    /**
+     * Removes the forward of the device, if any, and recycles its port.
+     */
+    void release(IDevice device) {
+        Future<Integer> forward;
+        synchronized (this) {
+            forward = devicePortMap.remove(device);
+        }
+        if (forward != null) {
+            removeForward(device, forward);
+        }
+    }
+
+    /**
+     * Forgets the forward of the device without asking adb to remove it, for instance
+     * because adb already dropped it when the device went offline.
+     */
+    void reset(IDevice device) {
+        Future<Integer> forward;
+        synchronized (this) {
+            forward = devicePortMap.remove(device);
+        }
+        if (forward != null) {
+            DeviceConnectionPool.evict(device);
+            recycle(getPort(forward));
+        }
+    }
+
+    /**
+     * Takes out of the map the least recently used forwards, until there is room for a new
+     * one. The forwards of devices with requests in flight, or still being created, are
+     * kept, even if that exceeds the maximum for a while.
+     */
+    private Map<IDevice, Future<Integer>> removeEldest() {
+        Map<IDevice, Future<Integer>> evicted = new LinkedHashMap<IDevice, Future<Integer>>();
+        Iterator<Map.Entry<IDevice, Future<Integer>>> eldest =
+                devicePortMap.entrySet().iterator();
+        while (devicePortMap.size() >= maxForwards && eldest.hasNext()) {
+            Map.Entry<IDevice, Future<Integer>> entry = eldest.next();
+            if (entry.getValue().isDone() && !DeviceConnectionPool.isBusy(entry.getKey())) {
+                evicted.put(entry.getKey(), entry.getValue());
+                eldest.remove();
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Creates the forward of the device on the first port that adb accepts.
+     *
+     * @return the local port or -1 if the forward could not be created
+     */
+    private int createForward(IDevice device) {
+        List<Integer> ports = takePorts(MAX_FORWARD_ATTEMPTS);
+        int forwardedPort = -1;
+        for (int localPort : ports) {
+            if (forwardedPort == -1 && createForward(device, localPort)) {
+                forwardedPort = localPort;
+            } else if (forwardedPort == -1) {
+                // The port may be taken by another process, try it again last
+                synchronized (this) {
+                    freePorts.addLast(localPort);
+                }
+            } else {
+                recycle(localPort);
+            }
+        }
+        return forwardedPort;
+    }
+
+    private synchronized List<Integer> takePorts(int count) {
+        List<Integer> ports = new ArrayList<Integer>(count);
+        while (ports.size() < count && !freePorts.isEmpty()) {
+            ports.add(freePorts.removeFirst());
+        }
+        return ports;
+    }
+
+    private synchronized void recycle(int port) {
+        if (port != -1) {
+            freePorts.addFirst(port);
+        }
+    }
+
+    private static int getPort(Future<Integer> forward) {
+        try {
+            return forward.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e("hierarchy", "Failed to create forward: " + e.getCause());
+        }
+        return -1;
+    }
+
+    private void removeForward(IDevice device, Future<Integer> forward) {
+        int port = getPort(forward);
+        if (port != -1) {
+            removeForward(device, port);
+        }
+    }
+
+    private boolean createForward(IDevice device, int localPort) {
+        try {
+            device.createForward(localPort, Configuration.DEFAULT_SERVER_PORT);
+            return true;
+        } catch (TimeoutException e) {
+            Log.e("hierarchy", "Timeout setting up port forwarding for " + device);
+        } catch (AdbCommandRejectedException e) {
+            Log.e("hierarchy", String.format(
+                    "Adb rejected forward command for device %1$s: %2$s",
+                    device, e.getMessage()));
+        } catch (IOException e) {
+            Log.e("hierarchy", String.format(
+                    "Failed to create forward for device %1$s: %2$s",
+                    device, e.getMessage()));
+        }
+        return false;
+    }
+
+    private void removeForward(IDevice device, int localPort) {
+        DeviceConnectionPool.evict(device);
+        try {
+            device.removeForward(localPort, Configuration.DEFAULT_SERVER_PORT);
+        } catch (TimeoutException e) {
+            Log.e("hierarchy", "Timeout removing port forwarding for " + device);
+        } catch (AdbCommandRejectedException e) {
+            Log.e("hierarchy", String.format(
+                    "Adb rejected remove-forward command for device %1$s: %2$s",
+                    device, e.getMessage()));
+        } catch (IOException e) {
+            Log.e("hierarchy", String.format(
+                    "Failed to remove forward for device %1$s: %2$s",
+                    device, e.getMessage()));
+        }
+        // Even if adb failed, the forward is dropped along with the device
+        recycle(localPort);
+    }
+}
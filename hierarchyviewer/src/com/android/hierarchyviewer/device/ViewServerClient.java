@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.device;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Non-blocking view server client. Every request, whatever the device, is served by a
+ * single selector thread and completes a {@link Future} holding the raw reply, so fetching
+ * from many devices at once does not need one thread per request.
+ * <p/>The view server closes the session once it has answered a command, which is what
+ * marks the end of a reply. A request fails with a {@link SocketTimeoutException} when its
+ * reply stops arriving for longer than the read timeout of {@link DeviceConnectionPool},
+ * or, for the commands that have one, when it is not answered within the request timeout.
+ */
+public class ViewServerClient {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Callable<byte[]> NO_OP = new Callable<byte[]>() {
+        public byte[] call() {
+            return null;
+        }
+    };
+
+    private static ViewServerClient sInstance;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Request> pendingRequests =
+            new ConcurrentLinkedQueue<Request>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private volatile boolean running = true;
+
+    public static synchronized ViewServerClient getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new ViewServerClient();
+        }
+        return sInstance;
+    }
+
+    private ViewServerClient() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "ViewServer selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Future<byte[]> list(IDevice device) {
+        return sendCommand(device, "LIST");
+    }
+
+    public Future<byte[]> dump(IDevice device, Window window) {
+        return sendCommand(device, "DUMP " + window.encode());
+    }
+
+    public Future<byte[]> capture(IDevice device, Window window, String params) {
+        return sendCommand(device, "CAPTURE " + window.encode() + " " + params);
+    }
+
+    public Future<byte[]> profile(IDevice device, Window window, String params) {
+        return sendCommand(device, "PROFILE " + window.encode() + " " + params);
+    }
+
+    public Future<byte[]> sendCommand(IDevice device, String command) {
+        return sendCommand(device, command, null);
+    }
+
+    /**
+     * Sends a command, and adds its future to a queue once it is done, successfully or not,
+     * so that a single thread can wait for the replies of many requests.
+     */
+    public Future<byte[]> sendCommand(IDevice device, String command,
+            BlockingQueue<Future<byte[]>> completion) {
+        return sendCommand(DeviceBridge.getDeviceLocalPort(device), command, completion);
+    }
+
+    public Future<byte[]> sendCommand(int port, String command) {
+        return sendCommand(port, command, null);
+    }
+
+    private Future<byte[]> sendCommand(int port, String command,
+            BlockingQueue<Future<byte[]>> completion) {
+        Request request = new Request(port, command, completion);
+        if (port == -1) {
+            request.fail(new IOException("No forwarded port for command " + command));
+        } else if (!running) {
+            request.fail(new IOException("The view server client is shut down"));
+        } else {
+            pendingRequests.add(request);
+            selector.wakeup();
+        }
+        return request;
+    }
+
+    public static synchronized void shutdown() {
+        if (sInstance != null) {
+            sInstance.running = false;
+            sInstance.selector.wakeup();
+            sInstance = null;
+        }
+    }
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select(getSelectTimeout());
+                registerPendingRequests();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+
+                long now = System.currentTimeMillis();
+                for (SelectionKey key : selector.keys()) {
+                    Request request = (Request) key.attachment();
+                    if (request.isCancelled()) {
+                        closeKey(key);
+                    } else if (request.getDeadline() <= now) {
+                        request.fail(new SocketTimeoutException(
+                                request.name + " timed out on port " + request.port));
+                        closeKey(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e("hierarchy", "View server selector failed: " + e.getMessage());
+        } catch (ClosedSelectorException e) {
+            // Empty
+        } finally {
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                ((Request) key.attachment()).fail(new IOException("Client shut down"));
+                closeKey(key);
+            }
+            Request request;
+            while ((request = pendingRequests.poll()) != null) {
+                request.fail(new IOException("Client shut down"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Empty
+            }
+        }
+    }
+
+    /**
+     * Returns how long to wait for the next deadline, 0 meaning forever.
+     */
+    private long getSelectTimeout() {
+        long deadline = Long.MAX_VALUE;
+        for (SelectionKey key : selector.keys()) {
+            deadline = Math.min(deadline, ((Request) key.attachment()).getDeadline());
+        }
+        if (deadline == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+    private void registerPendingRequests() {
+        Request request;
+        while ((request = pendingRequests.poll()) != null) {
+            if (request.isCancelled()) {
+                continue;
+            }
+
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(new InetSocketAddress("127.0.0.1", request.port))) {
+                    channel.register(selector, SelectionKey.OP_WRITE, request);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, request);
+                }
+            } catch (IOException e) {
+                request.fail(e);
+                close(channel);
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        Request request = (Request) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (key.isWritable()) {
+                channel.write(request.command);
+                if (!request.command.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                readBuffer.clear();
+                int count = channel.read(readBuffer);
+                if (count == -1) {
+                    request.complete();
+                    closeKey(key);
+                } else if (count > 0) {
+                    request.lastActivity = System.currentTimeMillis();
+                    readBuffer.flip();
+                    request.append(readBuffer);
+                }
+            }
+        } catch (IOException e) {
+            request.fail(e);
+            closeKey(key);
+        }
+    }
+
+    private static void closeKey(SelectionKey key) {
+        key.cancel();
+        close((SocketChannel) key.channel());
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Empty
+            }
+        }
+    }
+
+    private class Request extends FutureTask<byte[]> {
+        final int port;
+        final String name;
+        final ByteBuffer command;
+        final long deadline;
+        long lastActivity;
+        private final BlockingQueue<Future<byte[]>> completion;
+        private final ByteArrayOutputStream reply = new ByteArrayOutputStream(BUFFER_SIZE);
+        private final byte[] chunk = new byte[4096];
+
+        Request(int port, String command, BlockingQueue<Future<byte[]>> completion) {
+            super(NO_OP);
+            this.port = port;
+            this.completion = completion;
+            this.name = DeviceConnectionPool.getName(command);
+            this.command = ByteBuffer.wrap(encode(command + "\n"));
+            lastActivity = System.currentTimeMillis();
+            int timeout = DeviceConnectionPool.getRequestTimeout(command);
+            this.deadline = timeout > 0 ? lastActivity + timeout : Long.MAX_VALUE;
+        }
+
+        /**
+         * Returns the time at which the request fails, as the reply is overdue or stalled.
+         */
+        long getDeadline() {
+            if (DeviceConnectionPool.READ_TIMEOUT <= 0) {
+                return deadline;
+            }
+            return Math.min(deadline, lastActivity + DeviceConnectionPool.READ_TIMEOUT);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            // Lets the selector thread close the channel of the cancelled request
+            selector.wakeup();
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            if (completion != null) {
+                completion.add(this);
+            }
+        }
+
+        void append(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                int count = Math.min(buffer.remaining(), chunk.length);
+                buffer.get(chunk, 0, count);
+                reply.write(chunk, 0, count);
+            }
+        }
+
+        void complete() {
+            set(reply.toByteArray());
+        }
+
+        void fail(IOException e) {
+            setException(e);
+        }
+    }
+
+    private static byte[] encode(String command) {
+        try {
+            return command.getBytes("utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.device;
+
+import com.android.ddmlib.IDevice;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends several text commands to the view server of a device back-to-back, before reading
+ * any reply, then reads the replies in the order the commands were added. Replies of
+ * independent commands therefore cost a single round trip.
+ * <p/>The view server answers a single command per session, so every command is written
+ * on its own connection from the {@link DeviceConnectionPool}.
+ */
+public class ViewServerPipeline {
+    private final IDevice device;
+    private final List<Command> commands = new ArrayList<Command>();
+
+    public ViewServerPipeline(IDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Queues a command whose reply is a single line, such as PROTOCOL or SERVER.
+     *
+     * @return the index of the reply to pass to {@link #getReply(int)}
+     */
+    public int addCommand(String command) {
+        return addCommand(command, false);
+    }
+
+    /**
+     * Queues a command whose reply spans several lines terminated by "DONE.", such as LIST.
+     *
+     * @return the index of the reply to pass to {@link #getReply(int)}
+     */
+    public int addMultiLineCommand(String command) {
+        return addCommand(command, true);
+    }
+
+    private int addCommand(String command, boolean multiLine) {
+        commands.add(new Command(command, multiLine));
+        return commands.size() - 1;
+    }
+
+    /**
+     * Writes all the queued commands then reads all the replies. A command that fails is
+     * given an empty reply; the other commands are not affected.
+     */
+    public void execute() {
+        for (Command command : commands) {
+            try {
+                command.connection = DeviceConnectionPool.acquire(device);
+                command.connection.sendCommand(command.command);
+            } catch (IOException e) {
+                command.failed = true;
+            }
+        }
+
+        for (Command command : commands) {
+            try {
+                if (!command.failed) {
+                    command.readReply();
+                }
+            } catch (IOException e) {
+                command.failed = true;
+            } finally {
+                DeviceConnectionPool.release(command.connection);
+                command.connection = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the lines of the reply to the specified command, without the final "DONE."
+     * line, or null if the command could not be sent or its reply could not be read.
+     */
+    public String[] getReply(int index) {
+        Command command = commands.get(index);
+        if (command.failed) {
+            return null;
+        }
+        return command.reply.toArray(new String[command.reply.size()]);
+    }
+
+    private static class Command {
+        final String command;
+        final boolean multiLine;
+        final List<String> reply = new ArrayList<String>();
+
+        DeviceConnection connection;
+        boolean failed;
+
+        Command(String command, boolean multiLine) {
+            this.command = command;
+            this.multiLine = multiLine;
+        }
+
+        void readReply() throws IOException {
+            BufferedReader in = connection.getReader();
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (multiLine && "DONE.".equalsIgnoreCase(line)) {
+                    break;
+                }
+                reply.add(line);
+                if (!multiLine) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -17,8 +17,9 @@
 package com.android.hierarchyviewer.scene;
 
 import com.android.ddmlib.IDevice;
+import com.android.hierarchyviewer.device.DeviceConnection;
+import com.android.hierarchyviewer.device.DeviceConnectionPool;
 import com.android.hierarchyviewer.device.Window;
-import com.android.hierarchyviewer.device.DeviceBridge;
 import com.android.hierarchyviewer.ui.util.PsdFile;
 
 import java.awt.Graphics2D;
@@ -26,35 +27,24 @@ import java.awt.Image;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import javax.imageio.ImageIO;
 
 public class CaptureLoader {
     public static boolean saveLayers(IDevice device, Window window, File file) {
-        Socket socket = null;
-        DataInputStream in = null;
-        BufferedWriter out = null;
+        DeviceConnection connection = null;
         boolean result = false;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
+            connection = DeviceConnectionPool.send(device,
+                    "CAPTURE_LAYERS " + window.encode());
 
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-
-            out.write("CAPTURE_LAYERS " + window.encode());
-            out.newLine();
-            out.flush();
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(connection.getInputStream()));
 
             int width = in.readInt();
             int height = in.readInt();
@@ -70,19 +60,7 @@ public class CaptureLoader {
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
+            DeviceConnectionPool.release(connection);
         }
 
         return result;
@@ -127,39 +105,17 @@ public class CaptureLoader {
     }
 
     public static Image loadCapture(IDevice device, Window window, String params) {
-        Socket socket = null;
-        BufferedInputStream in = null;
-        BufferedWriter out = null;
+        DeviceConnection connection = null;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
-
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new BufferedInputStream(socket.getInputStream());
+            connection = DeviceConnectionPool.send(device,
+                    "CAPTURE " + window.encode() + " " + params);
 
-            out.write("CAPTURE " + window.encode() + " " + params);
-            out.newLine();
-            out.flush();
-
-            return ImageIO.read(in);
+            return ImageIO.read(new BufferedInputStream(connection.getInputStream()));
         } catch (IOException e) {
             // Empty
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
+            DeviceConnectionPool.release(connection);
         }
 
         return null;
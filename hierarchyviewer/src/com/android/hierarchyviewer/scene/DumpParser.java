@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the reply to a DUMP command straight from the UTF-8 byte stream. Each view is a
+ * line made of its indentation, its name and its properties, written as
+ * <code>name=length,value</code> and separated by spaces.
+ * <p/>Bytes are read into a single reusable buffer and scanned in place. The names and
+ * values of the properties are interned in a {@link SymbolTable} shared by all the views of
+ * the dump, and each view only keeps their ids. Views with the same properties, usually
+ * views of the same class, also share the array of name ids. Only the properties backing
+ * the fields of the view are decoded while scanning.
+ * <p/>The length of a value counts UTF-16 characters, not bytes, so values are measured
+ * while they are scanned. Values may therefore contain spaces or line breaks.
+ * <p/>A parser can also read a range of a dump already in memory, without copying it, see
+ * {@link ParallelDumpParser}.
+ */
+class DumpParser implements NodeReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] DONE = { 'D', 'O', 'N', 'E', '.' };
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    /** Start of the bytes that must be kept when the buffer is refilled, or -1. */
+    private int mark = -1;
+
+    private final SymbolTable symbols = new SymbolTable();
+    /** Field backed by each symbol used as a name, -1 for none, -2 if not looked up yet. */
+    private int[] symbolFields = new int[0];
+
+    private final Map<NameList, int[]> nameLists = new HashMap<NameList, int[]>();
+    private final NameList lookup = new NameList();
+    private int[] names = new int[128];
+    private int[] values = new int[128];
+    private int propertyCount;
+
+    private int depth;
+    private long nameHash;
+    private boolean done;
+
+    DumpParser(InputStream in) {
+        this.in = in;
+        buffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Creates a parser reading the bytes of a dump between start and end. The array is
+     * scanned in place and never modified.
+     */
+    DumpParser(byte[] data, int start, int end) {
+        in = null;
+        buffer = data;
+        position = start;
+        limit = end;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns true if the parser stopped at the DONE marker that ends a dump, rather than
+     * at the end of its input.
+     */
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns the symbol table holding the properties of the views read so far.
+     */
+    SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Returns the arrays of name ids shared by the views read so far.
+     */
+    Collection<int[]> getNameLists() {
+        return nameLists.values();
+    }
+
+    public ViewNode nextNode() throws IOException {
+        while (true) {
+            if (!ensure(1)) {
+                return null;
+            }
+
+            int count = 0;
+            while (ensure(1) && buffer[position] == ' ') {
+                position++;
+                count++;
+            }
+            if (!ensure(1)) {
+                return null;
+            }
+
+            byte b = buffer[position];
+            if (b == '\n' || b == '\r') {
+                // Blank line
+                position++;
+                continue;
+            }
+
+            if (isDoneMarker()) {
+                done = true;
+                return null;
+            }
+
+            ViewNode node = new ViewNode();
+            node.name = readToken();
+            node.contentHash = nameHash;
+            depth = count;
+
+            propertyCount = 0;
+            if (skipSpaces()) {
+                do {
+                    readProperty(node);
+                } while (skipSpaces());
+            }
+            node.setProperties(symbols, getNames(), copyValues());
+            node.decode();
+            return node;
+        }
+    }
+
+    /**
+     * Skips the spaces after a token.
+     *
+     * @return true if another property follows, false at the end of the line or stream
+     */
+    private boolean skipSpaces() throws IOException {
+        while (ensure(1)) {
+            byte b = buffer[position];
+            if (b == ' ' || b == '\r') {
+                position++;
+            } else if (b == '\n') {
+                position++;
+                return false;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isDoneMarker() throws IOException {
+        if (!ensure(DONE.length)) {
+            return false;
+        }
+        for (int i = 0; i < DONE.length; i++) {
+            if ((buffer[position + i] & ~0x20) != (DONE[i] & ~0x20)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the bytes up to the next space or line break as a string, and hashes them.
+     */
+    private String readToken() throws IOException {
+        int length = 0;
+        while (ensure(length + 1)) {
+            byte b = buffer[position + length];
+            if (b == ' ' || b == '\n' || b == '\r') {
+                break;
+            }
+            length++;
+        }
+        nameHash = SymbolTable.hash(buffer, position, length);
+        String token;
+        try {
+            token = new String(buffer, position, length, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        position += length;
+        return token;
+    }
+
+    /**
+     * Scans a single property, interns its name and value and decodes it if it backs a
+     * field of the view.
+     */
+    private void readProperty(ViewNode node) throws IOException {
+        // Name, without its category prefix
+        int length = 0;
+        int nameStart = 0;
+        while (ensure(length + 1)) {
+            byte b = buffer[position + length];
+            if (b == '=') {
+                break;
+            } else if (b == ':') {
+                nameStart = length + 1;
+            } else if (b == ' ' || b == '\n') {
+                throw new IOException("Malformed property in " + node.name);
+            }
+            length++;
+        }
+        if (!ensure(length + 1)) {
+            throw new IOException("Truncated property in " + node.name);
+        }
+
+        int name = symbols.intern(buffer, position + nameStart, length - nameStart);
+        position += length + 1;
+
+        // Length of the value, in UTF-16 characters
+        int valueLength = 0;
+        while (true) {
+            if (!ensure(1)) {
+                throw new IOException("Truncated property in " + node.name);
+            }
+            byte b = buffer[position++];
+            if (b == ',') {
+                break;
+            } else if (b < '0' || b > '9') {
+                throw new IOException("Malformed property length in " + node.name);
+            }
+            valueLength = valueLength * 10 + (b - '0');
+        }
+
+        // Offsets relative to the mark stay valid when the buffer is refilled
+        mark = position;
+        int count = 0;
+        while (count < valueLength || (ensure(1) && isContinuation(buffer[position]))) {
+            if (!ensure(1)) {
+                throw new IOException("Truncated property in " + node.name);
+            }
+            count += getCharCount(buffer[position++]);
+        }
+        int valueStart = mark;
+        mark = -1;
+
+        int field = getField(name);
+        if (field != -1) {
+            node.setField(field, buffer, valueStart, position);
+        }
+        int value = symbols.intern(buffer, valueStart, position - valueStart);
+        addProperty(name, value);
+        node.contentHash = ViewNode.mixHash(ViewNode.mixHash(node.contentHash,
+                symbols.getHash(name)), symbols.getHash(value));
+    }
+
+    /**
+     * Returns the index of the field of {@link ViewNode} backed by the property with the
+     * specified name, or -1.
+     */
+    private int getField(int name) {
+        if (name >= symbolFields.length) {
+            int length = symbolFields.length;
+            symbolFields = Arrays.copyOf(symbolFields, Math.max(name + 1, length * 2));
+            Arrays.fill(symbolFields, length, symbolFields.length, -2);
+        }
+        if (symbolFields[name] == -2) {
+            symbolFields[name] = ViewNode.getField(symbols.get(name));
+        }
+        return symbolFields[name];
+    }
+
+    private void addProperty(int name, int value) {
+        if (propertyCount == names.length) {
+            names = Arrays.copyOf(names, propertyCount * 2);
+            values = Arrays.copyOf(values, propertyCount * 2);
+        }
+        names[propertyCount] = name;
+        values[propertyCount] = value;
+        propertyCount++;
+    }
+
+    /**
+     * Returns the name ids of the properties of the current view, shared with the previous
+     * views that had the same properties in the same order.
+     */
+    private int[] getNames() {
+        lookup.set(names, propertyCount);
+        int[] shared = nameLists.get(lookup);
+        if (shared == null) {
+            shared = Arrays.copyOf(names, propertyCount);
+            nameLists.put(new NameList(shared), shared);
+        }
+        return shared;
+    }
+
+    private int[] copyValues() {
+        return Arrays.copyOf(values, propertyCount);
+    }
+
+    /**
+     * Makes sure at least count bytes are available from the current position, compacting
+     * the buffer and reading more from the stream if needed. The bytes after the mark, if
+     * any, are kept.
+     *
+     * @return false if the stream ended first
+     */
+    private boolean ensure(int count) throws IOException {
+        if (limit - position >= count) {
+            return true;
+        }
+        if (in == null) {
+            // Range of an array, which is shared and cannot be compacted
+            return false;
+        }
+
+        int keep = mark == -1 ? position : mark;
+        int needed = position - keep + count;
+        if (needed > buffer.length) {
+            byte[] larger = new byte[Math.max(needed, buffer.length * 2)];
+            System.arraycopy(buffer, keep, larger, 0, limit - keep);
+            buffer = larger;
+        } else if (keep > 0) {
+            System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+        }
+        limit -= keep;
+        position -= keep;
+        if (mark != -1) {
+            mark = 0;
+        }
+
+        while (limit - position < count) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xc0) == 0x80;
+    }
+
+    /**
+     * Returns the number of UTF-16 characters started by the specified UTF-8 byte.
+     */
+    private static int getCharCount(byte b) {
+        if (isContinuation(b)) {
+            return 0;
+        }
+        // Code points outside of the BMP take a surrogate pair
+        return (b & 0xf8) == 0xf0 ? 2 : 1;
+    }
+
+    /**
+     * A list of name ids, used as the key of the name lists shared between views.
+     */
+    private static class NameList {
+        private int[] ids;
+        private int count;
+
+        NameList() {
+        }
+
+        NameList(int[] ids) {
+            set(ids, ids.length);
+        }
+
+        void set(int[] ids, int count) {
+            this.ids = ids;
+            this.count = count;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof NameList)) {
+                return false;
+            }
+            NameList other = (NameList) obj;
+            if (count != other.count) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (ids[i] != other.ids[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 1;
+            for (int i = 0; i < count; i++) {
+                hash = 31 * hash + ids[i];
+            }
+            return hash;
+        }
+    }
+}
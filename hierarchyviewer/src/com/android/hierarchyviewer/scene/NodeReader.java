@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import java.io.IOException;
+
+/**
+ * Reads the views of a dump in order, along with their indentation, which gives the
+ * structure of the hierarchy.
+ */
+interface NodeReader {
+    /**
+     * Reads the next view.
+     *
+     * @return the view or null at the end of the dump
+     */
+    ViewNode nextNode() throws IOException;
+
+    /**
+     * Returns the indentation of the last view returned by {@link #nextNode()}.
+     */
+    int getDepth();
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses a whole dump held in memory on several threads. The dump is split into chunks at
+ * the lines of views, which are each the start of a subtree, and the chunks are parsed
+ * concurrently by {@link DumpParser}s on a fork-join pool. The views are then returned in
+ * the order of the dump, with their indentation, so that the hierarchy is stitched back
+ * together as if the dump had been read by a single parser.
+ * <p/>Each chunk interns its properties in its own symbol table; the tables are merged into
+ * the one of the first chunk once all of them are parsed.
+ * <p/>Values may contain line breaks, so a chunk may start inside a value. The chunk before
+ * it then ends with a truncated property and is parsed again along with the next one. If
+ * that keeps failing, the dump is parsed by a single parser.
+ */
+class ParallelDumpParser implements NodeReader {
+    // Dumps are not split into chunks smaller than this
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+    // Chunks per thread, so that threads done early can take over the remaining chunks
+    private static final int CHUNKS_PER_THREAD = 4;
+    // Attempts at joining the chunks that could not be parsed with the next ones
+    private static final int MAX_JOINS = 3;
+
+    private final byte[] data;
+    private final int length;
+
+    private Chunk[] chunks;
+    private int chunkIndex;
+    private int nodeIndex = -1;
+
+    ParallelDumpParser(byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+    }
+
+    /**
+     * Parses the whole dump. Must be called before the views are read.
+     */
+    void parse() throws IOException {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int count = Math.min(length / MIN_CHUNK_SIZE, pool.getParallelism() * CHUNKS_PER_THREAD);
+        chunks = split(Math.max(count, 1));
+        parseChunks(pool);
+
+        for (int i = 0; i < MAX_JOINS && chunks.length > 1 && hasErrors(); i++) {
+            chunks = joinFailedChunks();
+            parseChunks(pool);
+        }
+
+        if (hasErrors()) {
+            Chunk chunk = new Chunk(0, length);
+            chunk.parse();
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+            chunks = new Chunk[] { chunk };
+        }
+
+        mergeSymbols();
+    }
+
+    public ViewNode nextNode() {
+        while (chunkIndex < chunks.length) {
+            Chunk chunk = chunks[chunkIndex];
+            if (++nodeIndex < chunk.nodes.size()) {
+                return chunk.nodes.get(nodeIndex);
+            }
+            if (chunk.parser.isDone()) {
+                break;
+            }
+            chunkIndex++;
+            nodeIndex = -1;
+        }
+        return null;
+    }
+
+    public int getDepth() {
+        return chunks[chunkIndex].depths[nodeIndex];
+    }
+
+    /**
+     * Parses the chunks that were not parsed yet.
+     */
+    private void parseChunks(ForkJoinPool pool) {
+        List<Chunk> pending = new ArrayList<Chunk>();
+        for (Chunk chunk : chunks) {
+            if (chunk.parser == null) {
+                pending.add(chunk);
+            }
+        }
+        if (pending.size() == 1) {
+            pending.get(0).parse();
+        } else if (!pending.isEmpty()) {
+            pool.invoke(new ParseTask(pending.toArray(new Chunk[pending.size()]), 0,
+                    pending.size()));
+        }
+    }
+
+    /**
+     * Returns true if one of the chunks before the end of the dump could not be parsed.
+     */
+    private boolean hasErrors() {
+        for (Chunk chunk : chunks) {
+            if (chunk.error != null) {
+                return true;
+            }
+            if (chunk.parser.isDone()) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces each chunk that could not be parsed, and the chunk after it, by a single
+     * chunk, which is not parsed yet.
+     */
+    private Chunk[] joinFailedChunks() {
+        List<Chunk> result = new ArrayList<Chunk>(chunks.length);
+        for (int i = 0; i < chunks.length; i++) {
+            Chunk chunk = chunks[i];
+            if (chunk.error != null && i + 1 < chunks.length) {
+                result.add(new Chunk(chunk.start, chunks[++i].end));
+            } else {
+                result.add(chunk);
+            }
+            if (chunk.error == null && chunk.parser.isDone()) {
+                break;
+            }
+        }
+        return result.toArray(new Chunk[result.size()]);
+    }
+
+    /**
+     * Splits the dump into at most the specified number of chunks of similar sizes, each
+     * starting at the line of a view.
+     */
+    private Chunk[] split(int count) {
+        List<Chunk> result = new ArrayList<Chunk>(count);
+        int start = 0;
+        for (int i = 1; i < count; i++) {
+            int end = findNodeLine((int) ((long) length * i / count));
+            if (end == -1) {
+                break;
+            }
+            if (end <= start) {
+                continue;
+            }
+            result.add(new Chunk(start, end));
+            start = end;
+        }
+        result.add(new Chunk(start, length));
+        return result.toArray(new Chunk[result.size()]);
+    }
+
+    /**
+     * Returns the start of the first line after the specified position that looks like
+     * the line of a view, or -1 if there is none. The line must start with a view name,
+     * <code>Class@hashcode</code>, and not with a property.
+     */
+    private int findNodeLine(int position) {
+        for (int i = position; i < length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+
+            int start = i + 1;
+            int token = start;
+            while (token < length && data[token] == ' ') {
+                token++;
+            }
+
+            boolean name = false;
+            int end = token;
+            for (; end < length; end++) {
+                byte b = data[end];
+                if (b == ' ' || b == '\n' || b == '\r' || b == '=') {
+                    break;
+                } else if (b == '@') {
+                    name = true;
+                }
+            }
+            if (name && end > token && (end == length || data[end] != '=')) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves the properties of all the views to the symbol table of the first chunk.
+     */
+    private void mergeSymbols() {
+        SymbolTable symbols = chunks[0].parser.getSymbols();
+        for (int i = 1; i < chunks.length; i++) {
+            Chunk chunk = chunks[i];
+            int[] ids = symbols.merge(chunk.parser.getSymbols());
+
+            // Name lists are shared between the views of the chunk, and mapped only once
+            for (int[] names : chunk.parser.getNameLists()) {
+                for (int j = 0; j < names.length; j++) {
+                    names[j] = ids[names[j]];
+                }
+            }
+            for (ViewNode node : chunk.nodes) {
+                int[] values = node.getPropertyValues();
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = ids[values[j]];
+                }
+                node.setProperties(symbols, node.getPropertyNames(), values);
+            }
+        }
+    }
+
+    /**
+     * A range of the dump and the views parsed from it.
+     */
+    private class Chunk {
+        final int start;
+        final int end;
+
+        DumpParser parser;
+        final List<ViewNode> nodes = new ArrayList<ViewNode>();
+        int[] depths = new int[64];
+        IOException error;
+
+        Chunk(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        void parse() {
+            parser = new DumpParser(data, start, end);
+            try {
+                ViewNode node;
+                while ((node = parser.nextNode()) != null) {
+                    if (nodes.size() == depths.length) {
+                        depths = Arrays.copyOf(depths, depths.length * 2);
+                    }
+                    depths[nodes.size()] = parser.getDepth();
+                    nodes.add(node);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Parses a range of chunks, splitting it in two until a single chunk is left.
+     */
+    private static class ParseTask extends RecursiveAction {
+        private final Chunk[] chunks;
+        private final int from;
+        private final int to;
+
+        ParseTask(Chunk[] chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                chunks[from].parse();
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ParseTask(chunks, from, middle), new ParseTask(chunks, middle, to));
+            }
+        }
+    }
+}
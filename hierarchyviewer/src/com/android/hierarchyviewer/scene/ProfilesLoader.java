@@ -18,16 +18,11 @@ package com.android.hierarchyviewer.scene;
 
 import com.android.ddmlib.IDevice;
 import com.android.hierarchyviewer.HierarchyViewer;
+import com.android.hierarchyviewer.device.DeviceConnection;
+import com.android.hierarchyviewer.device.DeviceConnectionPool;
 import com.android.hierarchyviewer.device.Window;
-import com.android.hierarchyviewer.device.DeviceBridge;
 
-import java.net.Socket;
-import java.net.InetSocketAddress;
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 
 public class ProfilesLoader {
     public static double[] loadProfiles(IDevice device, Window window, String params) {
@@ -35,48 +30,37 @@ public class ProfilesLoader {
             return new double[] { 0.0, 0.0, 0.0 };
         }
         
-        Socket socket = null;
-        BufferedReader in = null;
-        BufferedWriter out = null;
+        DeviceConnection connection = null;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
+            connection = DeviceConnectionPool.send(device,
+                    "PROFILE " + window.encode() + " " + params);
 
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            out.write("PROFILE " + window.encode() + " " + params);
-            out.newLine();
-            out.flush();
-
-            String response = in.readLine();
-            String[] data = response.split(" ");
-
-            double[] profiles = new double[data.length];
-            for (int i = 0; i < data.length; i++) {
-                profiles[i] = (Long.parseLong(data[i]) / 1000.0) / 1000.0; // convert to ms
-            }
-            return profiles;
+            return parseProfiles(connection.getReader().readLine());
         } catch (IOException e) {
             // Empty
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
+            DeviceConnectionPool.release(connection);
         }
 
         return null;
     }
+
+    /**
+     * Parses the reply to a PROFILE command, for instance one fetched with
+     * {@link com.android.hierarchyviewer.device.ViewServerClient#profile}.
+     */
+    public static double[] parseProfiles(String response) {
+        if (response == null) {
+            return null;
+        }
+
+        String[] data = response.trim().split(" ");
+
+        double[] profiles = new double[data.length];
+        for (int i = 0; i < data.length; i++) {
+            profiles[i] = (Long.parseLong(data[i]) / 1000.0) / 1000.0; // convert to ms
+        }
+        return profiles;
+    }
 }
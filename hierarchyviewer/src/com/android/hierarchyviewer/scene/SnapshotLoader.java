@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * Saves view hierarchies to snapshot files and loads them back, without a device.
+ * <p/>A snapshot is a binary file, in big endian order, made of:
+ * <ul>
+ * <li>the magic number and the version of the format,</li>
+ * <li>the symbol table holding the names and values of all the properties,</li>
+ * <li>the lists of property names shared by the views, as symbol ids,</li>
+ * <li>the profiles of the hierarchy, or -1 if there are none,</li>
+ * <li>the views, in depth-first order. Each view is written as the index of its parent
+ * (-1 for the root), its name, the index of its list of property names (-1 if it has no
+ * properties) followed by the ids of the values, and its capture as a PNG file, if any.</li>
+ * </ul>
+ * Files are memory-mapped when they are loaded and the properties are not decoded, only
+ * the fields of the views are.
+ */
+public class SnapshotLoader {
+    private static final int MAGIC = 0x48565331; // HVS1
+    private static final int VERSION = 1;
+
+    /**
+     * Saves a scene, with its profiles and the captures of its views, to a snapshot file.
+     *
+     * @return true if the snapshot was saved
+     */
+    public static boolean saveSnapshot(ViewHierarchyScene scene, File file) {
+        ViewNode root = scene.getRoot();
+        if (root == null) {
+            return false;
+        }
+
+        DataOutputStream out = null;
+        boolean result = false;
+
+        try {
+            List<ViewNode> nodes = listNodes(root);
+            SymbolTable symbols = null;
+            Map<int[], Integer> nameLists = new IdentityHashMap<int[], Integer>();
+            List<int[]> names = new ArrayList<int[]>();
+            for (ViewNode node : nodes) {
+                if (node.getSymbols() == null) {
+                    continue;
+                }
+                if (symbols == null) {
+                    symbols = node.getSymbols();
+                } else if (symbols != node.getSymbols()) {
+                    throw new IOException("The views do not belong to a single hierarchy");
+                }
+                if (!nameLists.containsKey(node.getPropertyNames())) {
+                    nameLists.put(node.getPropertyNames(), names.size());
+                    names.add(node.getPropertyNames());
+                }
+            }
+            if (symbols == null) {
+                symbols = new SymbolTable();
+            }
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            symbols.write(out);
+
+            out.writeInt(names.size());
+            for (int[] ids : names) {
+                writeInts(out, ids);
+            }
+
+            double[] profiles = scene.getProfiles();
+            out.writeInt(profiles == null ? -1 : profiles.length);
+            if (profiles != null) {
+                for (double profile : profiles) {
+                    out.writeDouble(profile);
+                }
+            }
+
+            Map<ViewNode, Integer> indices = new IdentityHashMap<ViewNode, Integer>();
+            out.writeInt(nodes.size());
+            for (ViewNode node : nodes) {
+                indices.put(node, indices.size());
+                out.writeInt(node.parent == null ? -1 : indices.get(node.parent));
+
+                byte[] name = node.name.getBytes("utf-8");
+                out.writeInt(name.length);
+                out.write(name);
+
+                if (node.getSymbols() == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(nameLists.get(node.getPropertyNames()));
+                    int[] values = node.getPropertyValues();
+                    for (int value : values) {
+                        out.writeInt(value);
+                    }
+                }
+
+                writeImage(out, node);
+            }
+
+            result = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Loads a scene from a snapshot file.
+     */
+    public static ViewHierarchyScene loadSnapshot(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            return readSnapshot(buffer);
+        } catch (IOException e) {
+            throw new IOException(e.getMessage() + " " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a snapshot. Every count and index is checked against the size of the file, so
+     * that a corrupt file fails with an {@link IOException}.
+     */
+    private static ViewHierarchyScene readSnapshot(ByteBuffer in) throws IOException {
+        if (readInt(in) != MAGIC) {
+            throw new IOException("Not a snapshot");
+        }
+        int version = readInt(in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        SymbolTable symbols = new SymbolTable(in);
+
+        int[][] names = new int[readCount(in, 4)][];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = readSymbols(in, readInt(in), symbols);
+        }
+
+        double[] profiles = null;
+        int profileCount = readInt(in);
+        if (profileCount >= 0) {
+            if (profileCount > in.remaining() / 8) {
+                throw new IOException("Truncated snapshot");
+            }
+            profiles = new double[profileCount];
+            in.asDoubleBuffer().get(profiles);
+            in.position(in.position() + profileCount * 8);
+        }
+
+        // Field backed by each symbol used as a name, -2 if not looked up yet
+        int[] fields = new int[symbols.size()];
+        Arrays.fill(fields, -2);
+
+        ViewNode[] nodes = new ViewNode[readCount(in, 16)];
+        for (int i = 0; i < nodes.length; i++) {
+            ViewNode node = new ViewNode();
+            nodes[i] = node;
+
+            int parent = readInt(in);
+            if (parent >= i || parent < -1) {
+                throw new IOException("Malformed snapshot");
+            }
+            if (parent >= 0) {
+                node.parent = nodes[parent];
+            }
+
+            byte[] name = new byte[readCount(in, 1)];
+            in.get(name);
+            node.name = decode(name);
+
+            int nameList = readInt(in);
+            if (nameList >= names.length || nameList < -1) {
+                throw new IOException("Malformed snapshot");
+            }
+            if (nameList >= 0) {
+                int[] nameIds = names[nameList];
+                int[] values = readSymbols(in, nameIds.length, symbols);
+                node.setProperties(symbols, nameIds, values);
+
+                for (int j = 0; j < nameIds.length; j++) {
+                    int id = nameIds[j];
+                    if (fields[id] == -2) {
+                        fields[id] = ViewNode.getField(symbols.get(id));
+                    }
+                    if (fields[id] != -1) {
+                        node.setField(fields[id], symbols.getData(),
+                                symbols.getStart(values[j]), symbols.getEnd(values[j]));
+                    }
+                }
+            }
+
+            node.decode();
+            readImage(in, node);
+        }
+
+        ViewHierarchyScene scene = new ViewHierarchyScene();
+        scene.setProfiles(profiles);
+        scene.addNodes(Arrays.asList(nodes));
+        return scene;
+    }
+
+    /**
+     * Returns the views of a hierarchy in depth-first order.
+     */
+    private static List<ViewNode> listNodes(ViewNode root) {
+        List<ViewNode> nodes = new ArrayList<ViewNode>();
+        Deque<ViewNode> stack = new ArrayDeque<ViewNode>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            ViewNode node = stack.pop();
+            nodes.add(node);
+            for (int i = node.children.size() - 1; i >= 0; i--) {
+                stack.push(node.children.get(i));
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Reads the number of the items that follow, checking that the buffer is large enough
+     * to hold them.
+     */
+    private static int readCount(ByteBuffer in, int itemSize) throws IOException {
+        int count = readInt(in);
+        if (count < 0) {
+            throw new IOException("Malformed snapshot");
+        }
+        if (count > in.remaining() / itemSize) {
+            throw new IOException("Truncated snapshot");
+        }
+        return count;
+    }
+
+    private static int readInt(ByteBuffer in) throws IOException {
+        if (in.remaining() < 4) {
+            throw new IOException("Truncated snapshot");
+        }
+        return in.getInt();
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * Reads the ids of symbols, checking that they belong to the table.
+     */
+    private static int[] readSymbols(ByteBuffer in, int count, SymbolTable symbols)
+            throws IOException {
+        if (count < 0) {
+            throw new IOException("Malformed snapshot");
+        }
+        if (count > in.remaining() / 4) {
+            throw new IOException("Truncated snapshot");
+        }
+        int[] ids = new int[count];
+        in.asIntBuffer().get(ids);
+        in.position(in.position() + count * 4);
+        for (int id : ids) {
+            if (id < 0 || id >= symbols.size()) {
+                throw new IOException("Malformed snapshot");
+            }
+        }
+        return ids;
+    }
+
+    private static void writeImage(DataOutputStream out, ViewNode node) throws IOException {
+        if (!(node.image instanceof RenderedImage)) {
+            out.writeInt(0);
+            return;
+        }
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write((RenderedImage) node.image, "PNG", png);
+        out.writeInt(png.size());
+        png.writeTo(out);
+    }
+
+    private static void readImage(ByteBuffer in, ViewNode node) throws IOException {
+        int length = readCount(in, 1);
+        if (length > 0) {
+            byte[] png = new byte[length];
+            in.get(png);
+            node.image = ImageIO.read(new ByteArrayInputStream(png));
+        }
+    }
+
+    private static String decode(byte[] data) {
+        try {
+            return new String(data, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
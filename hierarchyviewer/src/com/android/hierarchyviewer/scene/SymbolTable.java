@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Interns the property names and values of a view hierarchy. Each distinct symbol gets a
+ * small integer id and is stored once, as UTF-8 bytes in a single shared array; strings are
+ * only created when a symbol is read back with {@link #get(int)}.
+ * <p/>The names and most of the values (true, false, 0, VISIBLE...) of a dump repeat from
+ * one view to the next, so views only need to keep the ids of their properties.
+ * <p/>One thread at a time may add symbols, while other threads read the ones they were
+ * handed, for instance the views published while a dump is still being parsed: a symbol
+ * is only counted once it is stored, and arrays are replaced by larger copies rather than
+ * changed where readers may be looking.
+ */
+class SymbolTable {
+    private volatile Storage storage = new Storage(new byte[16 * 1024], new int[1024 + 1],
+            new long[1024], new int[2048]);
+    private volatile int count;
+
+    SymbolTable() {
+    }
+
+    /**
+     * Creates a table from the symbols written by {@link #write(DataOutputStream)}.
+     */
+    SymbolTable(ByteBuffer in) throws IOException {
+        if (in.remaining() < 8) {
+            throw new IOException("Truncated symbol table");
+        }
+        int count = in.getInt();
+        int dataSize = in.getInt();
+        if (count < 0 || dataSize < 0) {
+            throw new IOException("Malformed symbol table");
+        }
+        if (count * 4L + dataSize > in.remaining()) {
+            throw new IOException("Truncated symbol table");
+        }
+
+        int[] offsets = new int[count + 1];
+        in.asIntBuffer().get(offsets, 0, count);
+        in.position(in.position() + count * 4);
+        offsets[count] = dataSize;
+        byte[] data = new byte[dataSize];
+        in.get(data);
+
+        // The symbols follow each other, so the last one ends within the data
+        for (int id = count - 1; id >= 0; id--) {
+            if (offsets[id] < 0 || offsets[id] > offsets[id + 1]) {
+                throw new IOException("Malformed symbol table");
+            }
+        }
+
+        long[] hashes = new long[count + 1];
+        for (int id = 0; id < count; id++) {
+            hashes[id] = hash(data, offsets[id], offsets[id + 1] - offsets[id]);
+        }
+
+        int size = storage.slots.length;
+        while (count * 2 > size) {
+            size *= 2;
+        }
+        storage = new Storage(data, offsets, hashes, index(hashes, count, size));
+        this.count = count;
+    }
+
+    /**
+     * Returns the id of the symbol stored in the specified range, adding it if needed.
+     */
+    int intern(byte[] bytes, int start, int length) {
+        return intern(bytes, start, length, hash(bytes, start, length));
+    }
+
+    private int intern(byte[] bytes, int start, int length, long hash) {
+        Storage s = storage;
+        int mask = s.slots.length - 1;
+        int slot = (int) hash & mask;
+
+        int id;
+        while ((id = s.slots[slot] - 1) != -1) {
+            if (s.hashes[id] == hash && s.equals(id, bytes, start, length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return add(bytes, start, length, hash, slot);
+    }
+
+    /**
+     * Returns the id of the specified symbol, adding it if needed.
+     */
+    int intern(String symbol) {
+        byte[] bytes = encode(symbol);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns the id of the specified symbol, or -1 if the table does not hold it.
+     */
+    int find(String symbol) {
+        byte[] bytes = encode(symbol);
+        long hash = hash(bytes, 0, bytes.length);
+        int count = this.count;
+        Storage s = storage;
+        int mask = s.slots.length - 1;
+        int slot = (int) hash & mask;
+
+        int id;
+        while ((id = s.slots[slot] - 1) != -1) {
+            // Symbols added since count was read may not be stored yet
+            if (id < count && s.hashes[id] == hash &&
+                    s.equals(id, bytes, 0, bytes.length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    String get(int id) {
+        Storage s = storage;
+        try {
+            return new String(s.data, s.offsets[id], s.offsets[id + 1] - s.offsets[id],
+                    "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the id of a symbol of another table, adding it to this table if needed.
+     */
+    int intern(SymbolTable table, int id) {
+        Storage s = table.storage;
+        return intern(s.data, s.offsets[id], s.offsets[id + 1] - s.offsets[id],
+                s.hashes[id]);
+    }
+
+    /**
+     * Adds all the symbols of another table to this one.
+     *
+     * @return the id in this table of each symbol of the other table
+     */
+    int[] merge(SymbolTable table) {
+        int[] ids = new int[table.count];
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = intern(table, id);
+        }
+        return ids;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the 64-bit hash of a symbol, see {@link #hash(byte[], int, int)}.
+     */
+    long getHash(int id) {
+        return storage.hashes[id];
+    }
+
+    /**
+     * Returns the array holding the UTF-8 bytes of the symbols, see {@link #getStart(int)}
+     * and {@link #getEnd(int)}. Only valid until symbols are added.
+     */
+    byte[] getData() {
+        return storage.data;
+    }
+
+    int getStart(int id) {
+        return storage.offsets[id];
+    }
+
+    int getEnd(int id) {
+        return storage.offsets[id + 1];
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        int count = this.count;
+        Storage s = storage;
+        out.writeInt(count);
+        out.writeInt(s.offsets[count]);
+        for (int id = 0; id < count; id++) {
+            out.writeInt(s.offsets[id]);
+        }
+        out.write(s.data, 0, s.offsets[count]);
+    }
+
+    /**
+     * Stores a symbol, indexes it in the empty slot found for it, and then counts it.
+     */
+    private int add(byte[] bytes, int start, int length, long hash, int slot) {
+        int id = count;
+        Storage s = storage;
+        int dataSize = s.offsets[id];
+
+        if (id + 2 > s.offsets.length || id + 1 > s.hashes.length ||
+                dataSize + length > s.data.length) {
+            byte[] data = s.data;
+            if (dataSize + length > data.length) {
+                data = Arrays.copyOf(data, Math.max(dataSize + length, data.length * 2));
+            }
+            int[] offsets = s.offsets;
+            long[] hashes = s.hashes;
+            if (id + 2 > offsets.length || id + 1 > hashes.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+            s = new Storage(data, offsets, hashes, s.slots);
+            storage = s;
+        }
+
+        System.arraycopy(bytes, start, s.data, dataSize, length);
+        s.offsets[id + 1] = dataSize + length;
+        s.hashes[id] = hash;
+
+        if ((id + 1) * 2 > s.slots.length) {
+            storage = new Storage(s.data, s.offsets, s.hashes,
+                    index(s.hashes, id + 1, s.slots.length * 2));
+        } else {
+            s.slots[slot] = id + 1;
+        }
+        count = id + 1;
+        return id;
+    }
+
+    private static int[] index(long[] hashes, int count, int size) {
+        int[] index = new int[size];
+        int mask = size - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = (int) hashes[id] & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = id + 1;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the specified bytes. Unlike String.hashCode(), it
+     * is strong enough to tell views apart by comparing hashes, see ViewNode.contentHash.
+     */
+    static long hash(byte[] bytes, int start, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash ^= bytes[start + i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 32);
+    }
+
+    private static byte[] encode(String symbol) {
+        try {
+            return symbol.getBytes("utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Storage {
+        final byte[] data;
+        /** Start of each symbol in data, followed by the end of the last one. */
+        final int[] offsets;
+        final long[] hashes;
+        /** Open addressing index of the symbols, holding id + 1, 0 for an empty slot. */
+        final int[] slots;
+
+        Storage(byte[] data, int[] offsets, long[] hashes, int[] slots) {
+            this.data = data;
+            this.offsets = offsets;
+            this.hashes = hashes;
+            this.slots = slots;
+        }
+
+        boolean equals(int id, byte[] bytes, int start, int length) {
+            int offset = offsets[id];
+            if (offsets[id + 1] - offset != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (data[offset + i] != bytes[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+
+import org.netbeans.api.visual.widget.Widget;
+
+/**
+ * Images of a widget cut in square tiles, rendered on background threads at the scale
+ * they are painted at, so that painting the widget only copies images. The cache is used
+ * from the event dispatch thread; the background threads only draw the renderer handed to
+ * {@link #paint(Graphics2D, Renderer)}, and check whether their tile is still wanted. An
+ * invalidated tile keeps being painted until it is rendered again.
+ */
+class TileCache {
+    // Size of the tiles, in pixels
+    static final int TILE_SIZE = 256;
+    // 48 MB of images
+    private static final int MAX_TILES = 192;
+
+    private static final ExecutorService renderers = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Scene tile renderer");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    /**
+     * Draws the content of the tiles. Renderers are used on background threads, so they
+     * must only read state that is never modified, such as a copy of the widget's content,
+     * or that is only modified on the event dispatch thread right before the tiles over it
+     * are invalidated, which drops the images rendered meanwhile.
+     */
+    interface Renderer {
+        /**
+         * Draws an area of the widget. The graphics are scaled.
+         */
+        void render(Graphics2D g2, Rectangle area, double scale);
+    }
+
+    private final Widget widget;
+
+    // Least recently painted tiles first
+    private final Map<Key, Tile> tiles = new LinkedHashMap<Key, Tile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Tile> eldest) {
+            if (size() > MAX_TILES) {
+                eldest.getValue().evicted = true;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    TileCache(Widget widget) {
+        this.widget = widget;
+    }
+
+    /**
+     * Paints the tiles in the clip of a graphics, and renders those missing or invalid.
+     *
+     * @param renderer draws the tiles, from the current content of the widget
+     * @return false if the graphics are rotated or the clip needs too many tiles, in
+     *         which case nothing is painted
+     */
+    boolean paint(Graphics2D g2, Renderer renderer) {
+        AffineTransform transform = g2.getTransform();
+        double scale = transform.getScaleX();
+        Shape clip = g2.getClip();
+        if (clip == null || transform.getShearX() != 0.0 || transform.getShearY() != 0.0 ||
+                scale != transform.getScaleY() || scale <= 0.0) {
+            return false;
+        }
+
+        // Pixels of the clip, from the origin of the widget, which is clipped in whole pixels
+        long x = Math.round(transform.getTranslateX());
+        long y = Math.round(transform.getTranslateY());
+        Rectangle2D pixels = transform.createTransformedShape(clip).getBounds2D();
+        int left = (int) Math.floor((Math.round(pixels.getMinX()) - x) / (double) TILE_SIZE);
+        int top = (int) Math.floor((Math.round(pixels.getMinY()) - y) / (double) TILE_SIZE);
+        int right = (int) Math.floor((Math.round(pixels.getMaxX()) - 1 - x) / (double) TILE_SIZE);
+        int bottom = (int) Math.floor((Math.round(pixels.getMaxY()) - 1 - y) / (double) TILE_SIZE);
+        if ((long) (right - left + 1) * (bottom - top + 1) > MAX_TILES / 2) {
+            return false;
+        }
+
+        // Tiles are copied pixel for pixel
+        g2.setTransform(AffineTransform.getTranslateInstance(x, y));
+        try {
+            for (int row = top; row <= bottom; row++) {
+                for (int column = left; column <= right; column++) {
+                    Key key = new Key(scale, column, row);
+                    Tile tile = tiles.get(key);
+                    if (tile == null) {
+                        tile = new Tile(key);
+                        tiles.put(key, tile);
+                    }
+                    if (!tile.valid && !tile.rendering) {
+                        render(tile, renderer);
+                    }
+                    if (tile.image != null) {
+                        g2.drawImage(tile.image, column * TILE_SIZE, row * TILE_SIZE, null);
+                    }
+                }
+            }
+        } finally {
+            g2.setTransform(transform);
+        }
+        return true;
+    }
+
+    /**
+     * Invalidates the tiles of all scales over an area of the widget.
+     */
+    void invalidate(Rectangle area) {
+        for (Tile tile : tiles.values()) {
+            if (tile.intersects(area)) {
+                tile.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Invalidates the tiles of a scale over an area of the widget.
+     */
+    void invalidate(Rectangle area, double scale) {
+        for (Tile tile : tiles.values()) {
+            if (tile.key.scale == scale && tile.intersects(area)) {
+                tile.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Invalidates all the tiles.
+     */
+    void invalidateAll() {
+        for (Tile tile : tiles.values()) {
+            tile.invalidate();
+        }
+    }
+
+    /**
+     * Returns the scales of the tiles, which are also those of the painted graphics.
+     */
+    Set<Double> getScales() {
+        Set<Double> scales = new HashSet<Double>();
+        for (Key key : tiles.keySet()) {
+            scales.add(key.scale);
+        }
+        return scales;
+    }
+
+    private void render(final Tile tile, final Renderer renderer) {
+        final int generation = tile.generation;
+        tile.rendering = true;
+        renderers.execute(new Runnable() {
+            public void run() {
+                BufferedImage image = null;
+                try {
+                    // Tiles scrolled away or changed while waiting are not worth rendering
+                    if (!tile.evicted && tile.generation == generation) {
+                        image = renderTile(tile.key, renderer);
+                    }
+                } finally {
+                    rendered(tile, generation, image);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands a rendered image, or null if it could not be rendered, to the event dispatch
+     * thread.
+     */
+    private void rendered(final Tile tile, final int generation, final BufferedImage image) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                tile.rendering = false;
+                if (image != null && tile.generation == generation) {
+                    tile.image = image;
+                    tile.valid = true;
+                }
+                if (!tile.evicted) {
+                    widget.repaint();
+                }
+            }
+        });
+    }
+
+    private static BufferedImage renderTile(Key key, Renderer renderer) {
+        BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE,
+                BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g2 = image.createGraphics();
+        try {
+            g2.translate(-key.column * TILE_SIZE, -key.row * TILE_SIZE);
+            g2.scale(key.scale, key.scale);
+            Rectangle2D area = key.getArea();
+            g2.clip(area);
+            renderer.render(g2, area.getBounds(), key.scale);
+        } finally {
+            g2.dispose();
+        }
+        return image;
+    }
+
+    private static class Key {
+        final double scale;
+        final int column;
+        final int row;
+
+        Key(double scale, int column, int row) {
+            this.scale = scale;
+            this.column = column;
+            this.row = row;
+        }
+
+        /**
+         * Returns the area of the widget covered by the tile.
+         */
+        Rectangle2D getArea() {
+            double size = TILE_SIZE / scale;
+            return new Rectangle2D.Double(column * size, row * size, size, size);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return key.scale == scale && key.column == column && key.row == row;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(scale);
+            return (((int) (bits ^ (bits >>> 32))) * 31 + column) * 31 + row;
+        }
+    }
+
+    private static class Tile {
+        final Key key;
+        final Rectangle2D area;
+        BufferedImage image;
+        boolean valid;
+        boolean rendering;
+        // Incremented whenever the tile is invalidated, to drop the images rendered before
+        volatile int generation;
+        volatile boolean evicted;
+
+        Tile(Key key) {
+            this.key = key;
+            area = key.getArea();
+        }
+
+        boolean intersects(Rectangle rectangle) {
+            // Strokes and antialiasing overflow the rectangle by a pixel
+            return area.intersects(rectangle.x - 1, rectangle.y - 1, rectangle.width + 2,
+                    rectangle.height + 2);
+        }
+
+        void invalidate() {
+            valid = false;
+            generation++;
+        }
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lays out the graph of a {@link ViewHierarchyScene} as a tidy tree: the root on the left,
+ * the views of each depth in a column, each view centered next to its children, and the
+ * subtrees of siblings as close to each other as their contours allow.
+ * <p/>The views are copied into arrays by {@link ViewHierarchyScene#createLayout()} on the
+ * event dispatch thread, {@link #run()} computes the positions on any thread, in linear time
+ * with the algorithm of Walker improved by Buchheim, and
+ * {@link ViewHierarchyScene#applyLayout(TreeLayout)} moves all the boxes at once.
+ * <p/>The position of a view relative to its parent only depends on its subtree. Subtrees
+ * that did not change since they were last laid out, for instance after a refresh, are
+ * not measured or laid out again: each of them is placed as a single block, described by
+ * its contour, the top and bottom of its boxes at each depth.
+ */
+public class TreeLayout {
+    // Margin around the graph, and gaps between the columns of the graph and between the
+    // subtrees of the views of a column
+    static final int MARGIN = 50;
+    static final int LEVEL_GAP = 70;
+    static final int SIBLING_GAP = 30;
+
+    private final int version;
+    private final Font titleFont;
+    private final Font detailFont;
+
+    // Views in depth-first order, with the data needed to lay them out
+    final ViewNode[] nodes;
+    private final String[] names;
+    private final String[] ids;
+    private final int[] indices;
+    private final int[] parents;
+    private final int[] depths;
+    private final int[] sizes;
+    // True for the views whose subtrees did not change since the last layout
+    private final boolean[] unchanged;
+
+    // Results, by view
+    final int[] x;
+    final int[] y;
+    final int[] width;
+    final int[] height;
+    // Position of the center of each view relative to the center of its parent
+    final int[] offsets;
+    final int[] subtreeX;
+    final int[] subtreeY;
+    final int[] subtreeWidth;
+    final int[] subtreeHeight;
+
+    // Nodes laid out by the algorithm: the changed views, and for each unchanged subtree,
+    // its root followed by one node per depth holding its contour at that depth
+    private int count;
+    private int[] views;
+    private int[] treeParents;
+    private int[] firstChildren;
+    private int[] lastChildren;
+    private int[] previousSiblings;
+    private int[] numbers;
+    private double[] tops;
+    private double[] bottoms;
+    private double[] prelims;
+    private double[] mods;
+    private double[] shifts;
+    private double[] changes;
+    private int[] threads;
+    private int[] ancestors;
+    // Default ancestor of the children of each node, while they are laid out
+    private int[] defaultAncestors;
+
+    /**
+     * Copies the views of a hierarchy, in depth-first order. Must be called from the event
+     * dispatch thread.
+     */
+    TreeLayout(List<ViewNode> nodes, int version, Font titleFont, Font detailFont) {
+        this.version = version;
+        this.titleFont = titleFont;
+        this.detailFont = detailFont;
+
+        int size = nodes.size();
+        this.nodes = nodes.toArray(new ViewNode[size]);
+        names = new String[size];
+        ids = new String[size];
+        indices = new int[size];
+        parents = new int[size];
+        depths = new int[size];
+        sizes = new int[size];
+        unchanged = new boolean[size];
+
+        x = new int[size];
+        y = new int[size];
+        width = new int[size];
+        height = new int[size];
+        offsets = new int[size];
+        subtreeX = new int[size];
+        subtreeY = new int[size];
+        subtreeWidth = new int[size];
+        subtreeHeight = new int[size];
+
+        // Ancestors of the current view
+        int[] stack = new int[16];
+        int depth = 0;
+        for (int i = 0; i < size; i++) {
+            ViewNode node = this.nodes[i];
+            while (depth > 0 && this.nodes[stack[depth - 1]] != node.parent) {
+                depth--;
+            }
+            parents[i] = depth == 0 ? -1 : stack[depth - 1];
+            depths[i] = depth;
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            stack[depth++] = i;
+
+            names[i] = node.name;
+            ids[i] = node.id;
+            indices[i] = node.index;
+            width[i] = node.box.width;
+            height[i] = node.box.height;
+            offsets[i] = node.layoutOffset;
+        }
+
+        for (int i = size - 1; i >= 0; i--) {
+            sizes[i]++;
+            if (parents[i] != -1) {
+                sizes[parents[i]] += sizes[i];
+            }
+            ViewNode node = this.nodes[i];
+            unchanged[i] = node.layoutSize == sizes[i] && node.layoutHash == node.treeHash;
+        }
+        for (int i = 0; i < size; i++) {
+            if (parents[i] != -1 && unchanged[parents[i]]) {
+                unchanged[i] = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the version of the scene the views were copied from.
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Computes the positions of the views. May be called from any thread.
+     */
+    public void run() {
+        if (nodes.length == 0) {
+            return;
+        }
+
+        measure();
+        layoutColumns();
+        buildTree();
+        for (int node : listPostOrder()) {
+            firstWalk(node);
+        }
+        place();
+        computeSubtrees();
+    }
+
+    /**
+     * Measures the views that changed. The roots of unchanged subtrees are measured too,
+     * since their labels show their positions among their siblings.
+     */
+    private void measure() {
+        FontMetrics titleMetrics = ViewHierarchyScene.createFontMetrics(titleFont);
+        FontMetrics detailMetrics = ViewHierarchyScene.createFontMetrics(detailFont);
+        int boxHeight = ViewHierarchyScene.getBoxHeight(titleMetrics, detailMetrics);
+        for (int i = 0; i < nodes.length; i++) {
+            if (!unchanged[i] || parents[i] == -1 || !unchanged[parents[i]]) {
+                width[i] = ViewHierarchyScene.getBoxWidth(names[i], indices[i], ids[i],
+                        titleMetrics, detailMetrics);
+                height[i] = boxHeight;
+            }
+        }
+    }
+
+    /**
+     * Aligns the boxes of each depth on the left side of their column.
+     */
+    private void layoutColumns() {
+        int[] columnWidths = new int[16];
+        for (int i = 0; i < nodes.length; i++) {
+            if (depths[i] >= columnWidths.length) {
+                columnWidths = Arrays.copyOf(columnWidths, columnWidths.length * 2);
+            }
+            columnWidths[depths[i]] = Math.max(columnWidths[depths[i]], width[i]);
+        }
+
+        int[] columns = new int[columnWidths.length];
+        columns[0] = MARGIN;
+        for (int depth = 1; depth < columns.length; depth++) {
+            columns[depth] = columns[depth - 1] + columnWidths[depth - 1] + LEVEL_GAP;
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            x[i] = columns[depths[i]];
+        }
+    }
+
+    /**
+     * Builds the nodes laid out by the algorithm. The vertical extent of each node is given
+     * relative to its position, which is the center of its box.
+     */
+    private void buildTree() {
+        int capacity = nodes.length + 16;
+        views = new int[capacity];
+        treeParents = new int[capacity];
+        tops = new double[capacity];
+        bottoms = new double[capacity];
+
+        // Tree node of each view, if any
+        int[] treeNodes = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            int parent = parents[i];
+            if (parent != -1 && unchanged[parent]) {
+                // Inside a block, placed with its root
+                continue;
+            }
+
+            if (count + 1 >= views.length) {
+                grow(count + 1);
+            }
+            int node = count++;
+            treeNodes[i] = node;
+            views[node] = i;
+            treeParents[node] = parent == -1 ? -1 : treeNodes[parent];
+            tops[node] = -(height[i] / 2);
+            bottoms[node] = height[i] - height[i] / 2;
+
+            if (unchanged[i] && sizes[i] > 1) {
+                addContour(i, node);
+            }
+        }
+
+        int[] trimmed = Arrays.copyOf(treeParents, count);
+        treeParents = trimmed;
+        firstChildren = new int[count];
+        lastChildren = new int[count];
+        previousSiblings = new int[count];
+        numbers = new int[count];
+        Arrays.fill(firstChildren, -1);
+        Arrays.fill(lastChildren, -1);
+        for (int node = 0; node < count; node++) {
+            int parent = treeParents[node];
+            previousSiblings[node] = -1;
+            if (parent != -1) {
+                if (firstChildren[parent] == -1) {
+                    firstChildren[parent] = node;
+                } else {
+                    previousSiblings[node] = lastChildren[parent];
+                    numbers[node] = numbers[lastChildren[parent]] + 1;
+                }
+                lastChildren[parent] = node;
+            }
+        }
+
+        prelims = new double[count];
+        mods = new double[count];
+        shifts = new double[count];
+        changes = new double[count];
+        threads = new int[count];
+        ancestors = new int[count];
+        defaultAncestors = new int[count];
+        Arrays.fill(threads, -1);
+        for (int node = 0; node < count; node++) {
+            ancestors[node] = node;
+        }
+    }
+
+    /**
+     * Adds a chain of nodes below the root of an unchanged subtree, one per depth, holding
+     * the top and bottom of the boxes of the subtree at that depth, relative to the root.
+     * The centers of the views of the subtree relative to the root are kept in y.
+     */
+    private void addContour(int root, int rootNode) {
+        int rootDepth = depths[root];
+        y[root] = 0;
+        int previous = rootNode;
+        for (int i = root + 1; i < root + sizes[root]; i++) {
+            y[i] = y[parents[i]] + offsets[i];
+            int level = depths[i] - rootDepth;
+            double top = y[i] - height[i] / 2;
+            double bottom = top + height[i];
+
+            // Nodes of the chain follow the root, one per level
+            int node = rootNode + level;
+            if (node == count) {
+                if (count + 1 >= views.length) {
+                    grow(count + 1);
+                }
+                count++;
+                views[node] = -1;
+                treeParents[node] = previous;
+                tops[node] = top;
+                bottoms[node] = bottom;
+                previous = node;
+            } else {
+                tops[node] = Math.min(tops[node], top);
+                bottoms[node] = Math.max(bottoms[node], bottom);
+            }
+        }
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, views.length * 2);
+        views = Arrays.copyOf(views, capacity);
+        treeParents = Arrays.copyOf(treeParents, capacity);
+        tops = Arrays.copyOf(tops, capacity);
+        bottoms = Arrays.copyOf(bottoms, capacity);
+    }
+
+    /**
+     * Returns the nodes, children before their parents and in order.
+     */
+    private int[] listPostOrder() {
+        int[] order = new int[count];
+        int position = 0;
+        int[] stack = new int[16];
+        int depth = 0;
+        // Nodes are numbered in depth-first order, parents first
+        for (int node = 0; node < count; node++) {
+            while (depth > 0 && stack[depth - 1] != treeParents[node]) {
+                order[position++] = stack[--depth];
+            }
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            stack[depth++] = node;
+        }
+        while (depth > 0) {
+            order[position++] = stack[--depth];
+        }
+        return order;
+    }
+
+    /**
+     * Computes the preliminary position of a node once its children were laid out, and
+     * moves its subtree away from the subtrees of its previous siblings.
+     */
+    private void firstWalk(int v) {
+        int sibling = previousSiblings[v];
+        int first = firstChildren[v];
+        if (first == -1) {
+            prelims[v] = sibling == -1 ? 0 : prelims[sibling] + distance(sibling, v);
+        } else {
+            executeShifts(v);
+            double midpoint = (prelims[first] + prelims[lastChildren[v]]) / 2;
+            if (sibling == -1) {
+                prelims[v] = midpoint;
+            } else {
+                prelims[v] = prelims[sibling] + distance(sibling, v);
+                mods[v] = prelims[v] - midpoint;
+            }
+        }
+
+        int parent = treeParents[v];
+        if (parent != -1) {
+            if (v == firstChildren[parent]) {
+                defaultAncestors[parent] = v;
+            }
+            defaultAncestors[parent] = apportion(v, defaultAncestors[parent]);
+        }
+    }
+
+    private void executeShifts(int v) {
+        double shift = 0;
+        double change = 0;
+        for (int w = lastChildren[v]; w != -1; w = previousSiblings[w]) {
+            prelims[w] += shift;
+            mods[w] += shift;
+            change += changes[w];
+            shift += shifts[w] + change;
+        }
+    }
+
+    private int apportion(int v, int defaultAncestor) {
+        int sibling = previousSiblings[v];
+        if (sibling == -1) {
+            return defaultAncestor;
+        }
+
+        // Inside and outside contours of the subtree of v and of its previous siblings
+        int vip = v;
+        int vop = v;
+        int vim = sibling;
+        int vom = firstChildren[treeParents[v]];
+        double sip = mods[vip];
+        double sop = mods[vop];
+        double sim = mods[vim];
+        double som = mods[vom];
+        while (nextBottom(vim) != -1 && nextTop(vip) != -1) {
+            vim = nextBottom(vim);
+            vip = nextTop(vip);
+            vom = nextTop(vom);
+            vop = nextBottom(vop);
+            ancestors[vop] = v;
+            double shift = (prelims[vim] + sim) - (prelims[vip] + sip) + distance(vim, vip);
+            if (shift > 0) {
+                moveSubtree(ancestor(vim, v, defaultAncestor), v, shift);
+                sip += shift;
+                sop += shift;
+            }
+            sim += mods[vim];
+            sip += mods[vip];
+            som += mods[vom];
+            sop += mods[vop];
+        }
+        if (nextBottom(vim) != -1 && nextBottom(vop) == -1) {
+            threads[vop] = nextBottom(vim);
+            mods[vop] += sim - sop;
+        }
+        if (nextTop(vip) != -1 && nextTop(vom) == -1) {
+            threads[vom] = nextTop(vip);
+            mods[vom] += sip - som;
+            defaultAncestor = v;
+        }
+        return defaultAncestor;
+    }
+
+    private void moveSubtree(int wm, int wp, double shift) {
+        int subtrees = numbers[wp] - numbers[wm];
+        changes[wp] -= shift / subtrees;
+        shifts[wp] += shift;
+        changes[wm] += shift / subtrees;
+        prelims[wp] += shift;
+        mods[wp] += shift;
+    }
+
+    private int ancestor(int vim, int v, int defaultAncestor) {
+        int ancestor = ancestors[vim];
+        return treeParents[ancestor] == treeParents[v] ? ancestor : defaultAncestor;
+    }
+
+    private int nextTop(int v) {
+        return firstChildren[v] != -1 ? firstChildren[v] : threads[v];
+    }
+
+    private int nextBottom(int v) {
+        return lastChildren[v] != -1 ? lastChildren[v] : threads[v];
+    }
+
+    /**
+     * Returns the minimum distance between the positions of two nodes of the same depth,
+     * the first one above the second one.
+     */
+    private double distance(int above, int below) {
+        return bottoms[above] - tops[below] + SIBLING_GAP;
+    }
+
+    /**
+     * Computes the final position of each view, and the position of its center relative to
+     * its parent.
+     */
+    private void place() {
+        // Centers of the views, before the graph is moved below the margin
+        int[] centers = new int[nodes.length];
+        double[] modSums = new double[count];
+        for (int node = 0; node < count; node++) {
+            int parent = treeParents[node];
+            if (parent != -1) {
+                modSums[node] = modSums[parent] + mods[parent];
+            }
+            int view = views[node];
+            if (view != -1) {
+                centers[view] = (int) Math.round(prelims[node] + modSums[node]);
+            }
+        }
+
+        int top = Integer.MAX_VALUE;
+        for (int i = 0; i < nodes.length; i++) {
+            int parent = parents[i];
+            if (parent != -1 && unchanged[parent]) {
+                // Relative to the root of the block, see addContour()
+                centers[i] = centers[parent] + offsets[i];
+            } else if (parent != -1) {
+                offsets[i] = centers[i] - centers[parent];
+            }
+            y[i] = centers[i] - height[i] / 2;
+            top = Math.min(top, y[i]);
+        }
+
+        for (int i = 0; i < nodes.length; i++) {
+            y[i] += MARGIN - top;
+        }
+    }
+
+    private void computeSubtrees() {
+        int[] right = new int[nodes.length];
+        int[] bottom = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            subtreeX[i] = x[i];
+            subtreeY[i] = y[i];
+            right[i] = x[i] + width[i];
+            bottom[i] = y[i] + height[i];
+        }
+        for (int i = nodes.length - 1; i > 0; i--) {
+            int parent = parents[i];
+            subtreeY[parent] = Math.min(subtreeY[parent], subtreeY[i]);
+            right[parent] = Math.max(right[parent], right[i]);
+            bottom[parent] = Math.max(bottom[parent], bottom[i]);
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            subtreeWidth[i] = right[i] - subtreeX[i];
+            subtreeHeight[i] = bottom[i] - subtreeY[i];
+        }
+    }
+}
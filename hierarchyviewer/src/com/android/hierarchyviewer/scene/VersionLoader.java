@@ -18,15 +18,8 @@
 package com.android.hierarchyviewer.scene;
 
 import com.android.ddmlib.IDevice;
-import com.android.hierarchyviewer.device.DeviceBridge;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import com.android.hierarchyviewer.device.DeviceConnection;
+import com.android.hierarchyviewer.device.DeviceConnectionPool;
 
 public class VersionLoader {
     public static int loadServerVersion(IDevice device) {
@@ -38,38 +31,35 @@ public class VersionLoader {
     }
 
     private static int loadVersion(IDevice device, String command) {
-        Socket socket = null;
-        BufferedReader in = null;
-        BufferedWriter out = null;
+        DeviceConnection connection = null;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
-
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            out.write(command);
-            out.newLine();
-            out.flush();
+            connection = DeviceConnectionPool.send(device, command);
 
-            return Integer.parseInt(in.readLine());
+            return parseVersion(connection.getReader().readLine());
         } catch (Exception e) {
             // Empty
         } finally {
+            DeviceConnectionPool.release(connection);
+        }
+
+        return parseVersion((String) null);
+    }
+
+    /**
+     * Parses the reply to a PROTOCOL or SERVER command, as returned by
+     * {@link com.android.hierarchyviewer.device.ViewServerPipeline#getReply(int)}.
+     */
+    public static int parseVersion(String[] reply) {
+        return parseVersion(reply != null && reply.length > 0 ? reply[0] : null);
+    }
+
+    private static int parseVersion(String line) {
+        if (line != null) {
             try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+                return Integer.parseInt(line.trim());
+            } catch (NumberFormatException e) {
+                // Empty
             }
         }
 
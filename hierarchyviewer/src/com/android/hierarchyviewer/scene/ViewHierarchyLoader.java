@@ -17,174 +17,303 @@
 package com.android.hierarchyviewer.scene;
 
 import com.android.ddmlib.IDevice;
-import com.android.hierarchyviewer.device.DeviceBridge;
+import com.android.hierarchyviewer.HierarchyViewer;
+import com.android.hierarchyviewer.device.DeviceConnection;
+import com.android.hierarchyviewer.device.DeviceConnectionPool;
 import com.android.hierarchyviewer.device.Window;
 
 import org.openide.util.Exceptions;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Stack;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 
 public class ViewHierarchyLoader {
-    @SuppressWarnings("empty-statement")
+    // Minimum time between two batches of views handed to a listener
+    private static final long BATCH_INTERVAL = 100 * 1000 * 1000;
+
+    /**
+     * Receives the views of a hierarchy while its dump is being read.
+     */
+    public interface LoadListener {
+        /**
+         * Called with the views read since the previous call. The batch may be handed to
+         * another thread, which then adds it with {@link Batch#addTo(ViewHierarchyScene)}.
+         */
+        void nodesLoaded(Batch batch);
+    }
+
+    /**
+     * Views read since the previous batch, in the order of the dump so that parents always
+     * come before their children, and the hashes of the subtrees completed since. The hash
+     * of a subtree is only known once all its children are read, after its view was handed
+     * out, so it is set by the thread the views are handed to rather than by the loader.
+     */
+    public static class Batch {
+        private final List<ViewNode> nodes = new ArrayList<ViewNode>();
+        // Views of earlier batches whose subtrees were completed, and their hashes
+        private final List<ViewNode> finished = new ArrayList<ViewNode>();
+        private long[] hashes = new long[16];
+
+        /**
+         * Returns the views read since the previous batch. They are not linked to their
+         * parents yet, see {@link ViewHierarchyScene#addNodes(List)}.
+         */
+        public List<ViewNode> getNodes() {
+            return nodes;
+        }
+
+        /**
+         * Sets the hashes of the subtrees completed since the previous batch. The views of
+         * the previous batches must have been given their hashes first.
+         */
+        public void finishNodes() {
+            for (int i = 0; i < finished.size(); i++) {
+                finished.get(i).treeHash = hashes[i];
+            }
+        }
+
+        /**
+         * Adds the views to a scene, after those of the previous batches, and finishes the
+         * hashes of their subtrees.
+         */
+        public void addTo(ViewHierarchyScene scene) {
+            scene.addNodes(nodes);
+            finishNodes();
+        }
+
+        void finish(ViewNode node, long hash) {
+            if (finished.size() == hashes.length) {
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+            hashes[finished.size()] = hash;
+            finished.add(node);
+        }
+
+        boolean isEmpty() {
+            return nodes.isEmpty() && finished.isEmpty();
+        }
+    }
+
     public static ViewHierarchyScene loadScene(IDevice device, Window window) {
         ViewHierarchyScene scene = new ViewHierarchyScene();
 
         // Read the views tree
-        Socket socket = null;
-        BufferedReader in = null;
-        BufferedWriter out = null;
-
-        String line;
+        DeviceConnection connection = null;
 
         try {
             System.out.println("==> Starting client");
 
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
-
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "utf-8"));
-
             System.out.println("==> DUMP");
 
-            out.write("DUMP " + window.encode());
-            out.newLine();
-            out.flush();
+            connection = DeviceConnectionPool.send(device, "DUMP " + window.encode());
+            readNodes(createReader(connection.getInputStream(),
+                    HierarchyViewer.isParallelParsingEnabled()), createSceneListener(scene));
+        } catch (IOException ex) {
+            Exceptions.printStackTrace(ex);
+        } finally {
+            DeviceConnectionPool.release(connection);
+        }
 
-            Stack<ViewNode> stack = new Stack<ViewNode>();
+        System.out.println("==> DONE");
 
-            boolean setRoot = true;
-            ViewNode lastNode = null;
-            int lastWhitespaceCount = Integer.MAX_VALUE;
+        return scene;
+    }
 
-            while ((line = in.readLine()) != null) {
-                if ("DONE.".equalsIgnoreCase(line)) {
-                    break;
-                }
+    /**
+     * Reads the views of a window and hands them to the listener, in batches, as soon as
+     * they are parsed. The listener is called from the calling thread. When parallel parsing
+     * is enabled, the whole dump is received before the views are parsed and handed out.
+     *
+     * @return the root of the hierarchy
+     */
+    public static ViewNode loadHierarchy(IDevice device, Window window, LoadListener listener)
+            throws IOException {
+        DeviceConnection connection = null;
+        try {
+            connection = DeviceConnectionPool.send(device, "DUMP " + window.encode());
+            return readNodes(createReader(connection.getInputStream(),
+                    HierarchyViewer.isParallelParsingEnabled()), listener);
+        } finally {
+            DeviceConnectionPool.release(connection);
+        }
+    }
 
-                int whitespaceCount = countFrontWhitespace(line);
-                if (lastWhitespaceCount < whitespaceCount) {
-                    stack.push(lastNode);
-                } else if (!stack.isEmpty()) {
-                    final int count = lastWhitespaceCount - whitespaceCount;
-                    for (int i = 0; i < count; i++) {
-                        stack.pop();
+    /**
+     * Reads the views of a window into a tree that does not belong to any scene, for
+     * instance to update an existing scene with {@link ViewHierarchyScene#update(ViewNode)}.
+     * The listener, if any, is called with the views already linked to their parents.
+     *
+     * @return the root of the hierarchy
+     */
+    public static ViewNode loadTree(IDevice device, Window window, final LoadListener listener)
+            throws IOException {
+        return loadHierarchy(device, window, new LoadListener() {
+            public void nodesLoaded(Batch batch) {
+                for (ViewNode node : batch.getNodes()) {
+                    if (node.parent != null) {
+                        node.index = node.parent.children.size();
+                        node.parent.children.add(node);
                     }
                 }
-
-                lastWhitespaceCount = whitespaceCount;
-                line = line.trim();
-                int index = line.indexOf(' ');
-
-                lastNode = new ViewNode();
-                lastNode.name = line.substring(0, index);
-
-                line = line.substring(index + 1);
-                loadProperties(lastNode, line);
-
-                scene.addNode(lastNode);
-
-                if (setRoot) {
-                    scene.setRoot(lastNode);
-                    setRoot = false;
-                }
-
-                if (!stack.isEmpty()) {
-                    final ViewNode parent = stack.peek();
-                    final String edge = parent.name + lastNode.name;
-                    scene.addEdge(edge);
-                    scene.setEdgeSource(edge, parent);
-                    scene.setEdgeTarget(edge, lastNode);
-                    lastNode.parent = parent;
-                    parent.children.add(lastNode);
-                }
-            }
-
-            updateIndices(scene.getRoot());
-
-        } catch (IOException ex) {
-            Exceptions.printStackTrace(ex);
-        } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
+                batch.finishNodes();
+                if (listener != null) {
+                    listener.nodesLoaded(batch);
                 }
-                socket.close();
-            } catch (IOException ex) {
-                Exceptions.printStackTrace(ex);
             }
-        }
+        });
+    }
 
-        System.out.println("==> DONE");
+    /**
+     * Builds a scene from the reply to a DUMP command, for instance one fetched with
+     * {@link com.android.hierarchyviewer.device.ViewServerClient#dump}.
+     */
+    public static ViewHierarchyScene loadScene(InputStream in) throws IOException {
+        return loadScene(in, false);
+    }
 
+    /**
+     * Builds a scene from the reply to a DUMP command.
+     *
+     * @param parallel true to read the whole reply first and parse it on several threads,
+     *        see {@link ParallelDumpParser}
+     */
+    public static ViewHierarchyScene loadScene(InputStream in, boolean parallel)
+            throws IOException {
+        ViewHierarchyScene scene = new ViewHierarchyScene();
+        readNodes(createReader(in, parallel), createSceneListener(scene));
         return scene;
     }
 
-    private static void updateIndices(ViewNode root) {
-        if (root == null) return;
-
-        root.computeIndex();
+    private static NodeReader createReader(InputStream in, boolean parallel)
+            throws IOException {
+        if (!parallel) {
+            return new DumpParser(in);
+        }
 
-        for (ViewNode node : root.children) {
-            updateIndices(node);
+        byte[] data = new byte[1024 * 1024];
+        int length = 0;
+        int count;
+        while ((count = in.read(data, length, data.length - length)) != -1) {
+            length += count;
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
         }
+
+        ParallelDumpParser parser = new ParallelDumpParser(data, length);
+        parser.parse();
+        return parser;
     }
 
-    private static int countFrontWhitespace(String line) {
-        int count = 0;
-        while (line.charAt(count) == ' ') {
-            count++;
+    /**
+     * Adds the hash of the subtree of a view, complete once all its children were read, to
+     * the hash of its parent. The view gets its hash right away if it was not handed out yet,
+     * and with the next batch otherwise.
+     */
+    private static void finishNode(OpenNode node, OpenNode parent, int handedOut,
+            Batch batch) {
+        if (parent != null) {
+            parent.hash = ViewNode.mixHash(parent.hash, node.hash);
+        }
+        if (node.number < handedOut) {
+            batch.finish(node.node, node.hash);
+        } else {
+            node.node.treeHash = node.hash;
         }
-        return count;
     }
 
-    private static void loadProperties(ViewNode node, String data) {
-        int start = 0;
-        boolean stop;
+    private static LoadListener createSceneListener(final ViewHierarchyScene scene) {
+        return new LoadListener() {
+            public void nodesLoaded(Batch batch) {
+                batch.addTo(scene);
+            }
+        };
+    }
 
-        do {
-            int index = data.indexOf('=', start);
-            ViewNode.Property property = new ViewNode.Property();
-            property.name = data.substring(start, index);
+    private static ViewNode readNodes(NodeReader parser, LoadListener listener)
+            throws IOException {
+        Deque<OpenNode> stack = new ArrayDeque<OpenNode>();
 
-            int colonIndex = property.name.indexOf(':');
-            if (colonIndex != -1) {
-                property.name = property.name.substring(colonIndex + 1);
+        ViewNode root = null;
+        OpenNode lastNode = null;
+        int lastWhitespaceCount = Integer.MAX_VALUE;
+
+        Batch batch = new Batch();
+        long lastBatch = System.nanoTime();
+        // Number of views read, and of views handed to the listener
+        int count = 0;
+        int handedOut = 0;
+
+        ViewNode node;
+        while ((node = parser.nextNode()) != null) {
+            int whitespaceCount = parser.getDepth();
+            if (lastWhitespaceCount < whitespaceCount) {
+                stack.push(lastNode);
+            } else {
+                // The previous view and the popped ones have all their children
+                if (lastNode != null) {
+                    finishNode(lastNode, stack.peek(), handedOut, batch);
+                }
+                final int popped = lastWhitespaceCount - whitespaceCount;
+                for (int i = 0; i < popped && !stack.isEmpty(); i++) {
+                    finishNode(stack.pop(), stack.peek(), handedOut, batch);
+                }
             }
 
-            int index2 = data.indexOf(',', index + 1);
-            int length = Integer.parseInt(data.substring(index + 1, index2));
-            start = index2 + 1 + length;
-            property.value = data.substring(index2 + 1, index2 + 1 + length);
+            lastWhitespaceCount = whitespaceCount;
 
-            node.properties.add(property);
-            node.namedProperties.put(property.name, property);
+            lastNode = new OpenNode(node, count++);
+            node.treeHash = node.contentHash;
 
-            stop = start >= data.length();
-            if (!stop) {
-                start += 1;
+            if (root == null) {
+                root = node;
+            }
+            if (!stack.isEmpty()) {
+                node.parent = stack.peek().node;
             }
-        } while (!stop);
 
-        Collections.sort(node.properties, new Comparator<ViewNode.Property>() {
-            public int compare(ViewNode.Property source, ViewNode.Property destination) {
-                return source.name.compareTo(destination.name);
+            batch.getNodes().add(node);
+            long now = System.nanoTime();
+            if (now - lastBatch >= BATCH_INTERVAL) {
+                listener.nodesLoaded(batch);
+                batch = new Batch();
+                handedOut = count;
+                lastBatch = now;
             }
-        });
+        }
 
-        node.decode();
+        if (lastNode != null) {
+            finishNode(lastNode, stack.peek(), handedOut, batch);
+        }
+        while (!stack.isEmpty()) {
+            finishNode(stack.pop(), stack.peek(), handedOut, batch);
+        }
+
+        if (!batch.isEmpty()) {
+            listener.nodesLoaded(batch);
+        }
+
+        return root;
+    }
+
+    /**
+     * View whose subtree is still being read, and the hash of its subtree so far.
+     */
+    private static class OpenNode {
+        final ViewNode node;
+        // Position of the view in the dump
+        final int number;
+        long hash;
+
+        OpenNode(ViewNode node, int number) {
+            this.node = node;
+            this.number = number;
+            hash = node.contentHash;
+        }
     }
 }
@@ -18,36 +18,101 @@ package com.android.hierarchyviewer.scene;
 
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.GradientPaint;
 import java.awt.Graphics2D;
+import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
 
 import org.netbeans.api.visual.action.ActionFactory;
+import org.netbeans.api.visual.action.MoveProvider;
+import org.netbeans.api.visual.action.SelectProvider;
 import org.netbeans.api.visual.action.WidgetAction;
-import org.netbeans.api.visual.anchor.AnchorFactory;
-import org.netbeans.api.visual.border.BorderFactory;
 import org.netbeans.api.visual.graph.GraphScene;
-import org.netbeans.api.visual.layout.LayoutFactory;
+import org.netbeans.api.visual.model.ObjectSceneEvent;
+import org.netbeans.api.visual.model.ObjectSceneEventType;
+import org.netbeans.api.visual.model.ObjectSceneListener;
 import org.netbeans.api.visual.model.ObjectState;
-import org.netbeans.api.visual.widget.ConnectionWidget;
-import org.netbeans.api.visual.widget.LabelWidget;
 import org.netbeans.api.visual.widget.LayerWidget;
 import org.netbeans.api.visual.widget.Widget;
 
+/**
+ * Scene showing a view hierarchy as a graph, the root on the left. Views have no widget of
+ * their own in the graph model, and parents are not linked to their children by edges:
+ * a single widget draws the boxes and the links, with less detail as the zoom factor
+ * decreases, into tiles rendered on background threads. Widgets are only created for the
+ * views near the visible part, to select and move them. See {@link #updateVisibleWidgets()}.
+ */
 public class ViewHierarchyScene extends GraphScene<ViewNode, String> {
+    // Zoom factor under which boxes are drawn without labels or widgets
+    private static final double DETAIL_ZOOM = 0.5;
+    // Size on screen, in pixels, under which a subtree is drawn as a single blob
+    private static final int BLOB_SIZE = 24;
+
     private ViewNode root;
+    private double[] profiles;
+    private ViewIndex index;
+    // Incremented whenever views are added, removed or updated
+    private int version;
+    // Query highlighting views, and the numbers of the matching views in the index
+    private ViewQuery filter;
+    private BitSet filterMatches;
+    // Table of the properties of the views, and its size when it last held only the
+    // properties of the displayed views. Updates add to it, see compactSymbols()
+    private SymbolTable compactedSymbols;
+    private int compactedSize;
+    private LayerWidget graphLayer;
     private LayerWidget widgetLayer;
-    private LayerWidget connectionLayer;
+    private GraphWidget graph;
+    // Widgets of the views near the visible part of the scene
+    private Map<ViewNode, GradientWidget> widgets =
+            new IdentityHashMap<ViewNode, GradientWidget>();
 
-    private WidgetAction moveAction = ActionFactory.createMoveAction();
+    private Font titleFont;
+    private Font detailFont;
+
+    private final ViewNode.StateListener stateListener = new ViewNode.StateListener() {
+        public void nodeStateChanged(ViewNode node) {
+            repaintNode(node);
+        }
+    };
+
+    private WidgetAction selectAction =
+            ActionFactory.createSelectAction(new NodeSelectProvider());
+    private WidgetAction moveAction = ActionFactory.createMoveAction(
+            ActionFactory.createFreeMoveStrategy(), new NodeMoveProvider());
 
     public ViewHierarchyScene() {
+        graphLayer = new LayerWidget(this);
         widgetLayer = new LayerWidget(this);
-        connectionLayer = new LayerWidget(this);
+        widgetLayer.setCheckClipping(true);
 
+        // Boxes drawn by the graph are below the widgets
+        addChild(graphLayer);
         addChild(widgetLayer);
-        addChild(connectionLayer);
+
+        graph = new GraphWidget(this);
+        graph.getActions().addAction(selectAction);
+        graphLayer.addChild(graph);
+
+        addObjectSceneListener(new StateChangeListener(),
+                ObjectSceneEventType.OBJECT_STATE_CHANGED);
     }
     
     public ViewNode getRoot() {
@@ -58,53 +123,516 @@ public class ViewHierarchyScene extends GraphScene<ViewNode, String> {
         this.root = root;
     }
 
+    /**
+     * Returns the profiles of the root of the hierarchy, in milliseconds, or null if they
+     * were not loaded.
+     */
+    public double[] getProfiles() {
+        return profiles;
+    }
+
+    public void setProfiles(double[] profiles) {
+        this.profiles = profiles;
+    }
+
+    /**
+     * Returns a number that changes whenever views are added, removed or updated.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns all the views, in depth-first order.
+     */
+    public List<ViewNode> listNodes() {
+        return root == null ? new ArrayList<ViewNode>() : listSubtree(root);
+    }
+
+    /**
+     * Returns true if the index of the properties of the views is up to date.
+     */
+    public boolean hasIndex() {
+        return index != null;
+    }
+
+    /**
+     * Returns the index of the properties of the views, built now if the views changed
+     * since the last call, or null if the scene is empty.
+     */
+    public ViewIndex getIndex() {
+        if (index == null && root != null) {
+            setIndex(new ViewIndex(listSubtree(root)));
+        }
+        return index;
+    }
+
+    /**
+     * Sets the index of the properties of the views, built from all the views of the scene
+     * in depth-first order, for instance while they were loaded or on another thread.
+     */
+    public void setIndex(ViewIndex index) {
+        this.index = index;
+        filterMatches = null;
+    }
+
+    /**
+     * Returns the query highlighting views, or null.
+     */
+    public ViewQuery getFilter() {
+        return filter;
+    }
+
+    /**
+     * Returns the numbers, in the current index, of the views matching the filter, or null
+     * if the index changed since the filter was set.
+     */
+    public BitSet getFilterMatches() {
+        return filterMatches == null ? null : (BitSet) filterMatches.clone();
+    }
+
+    /**
+     * Highlights the views matching a query and only them. Only the views whose state
+     * changes are repainted.
+     *
+     * @param query the query, or null to highlight no view
+     * @param matches the numbers of the matching views in the current index
+     */
+    public void setFilter(ViewQuery query, BitSet matches) {
+        ViewIndex index = getIndex();
+        if (index == null) {
+            return;
+        }
+
+        if (filterMatches != null) {
+            BitSet changed = (BitSet) filterMatches.clone();
+            changed.xor(matches);
+            for (int node = changed.nextSetBit(0); node >= 0;
+                    node = changed.nextSetBit(node + 1)) {
+                index.getNode(node).setFiltered(matches.get(node));
+            }
+        } else {
+            // Views may have been added or updated since the last filter
+            for (int node = 0; node < index.size(); node++) {
+                index.getNode(node).setFiltered(matches.get(node));
+            }
+        }
+
+        filter = query;
+        filterMatches = (BitSet) matches.clone();
+    }
+
+    /**
+     * Adds views read by {@link ViewHierarchyLoader} and links them to their parents. The
+     * parent of each view must already be in the scene or come first in the list. Once the
+     * scene is displayed, this must be called from the event dispatch thread.
+     */
+    public void addNodes(List<ViewNode> nodes) {
+        setIndex(null);
+        version++;
+        for (ViewNode node : nodes) {
+            // The index is known before the widget, which displays it, is created
+            final ViewNode parent = node.parent;
+            node.index = parent == null ? 0 : parent.children.size();
+            node.setStateListener(stateListener);
+            addNode(node);
+
+            if (parent == null) {
+                if (root == null) {
+                    setRoot(node);
+                }
+            } else {
+                parent.children.add(node);
+            }
+        }
+    }
+
+    /**
+     * Returns true if a newer dump of the hierarchy, read with
+     * {@link ViewHierarchyLoader#loadTree}, is identical to the displayed one, in which case
+     * {@link #update(ViewNode)} has nothing to do.
+     */
+    public boolean isSameHierarchy(ViewNode newRoot) {
+        return root != null && root.name.equals(newRoot.name) &&
+                root.treeHash == newRoot.treeHash;
+    }
+
+    /**
+     * Updates the scene to match a newer dump of the same hierarchy, read with
+     * {@link ViewHierarchyLoader#loadTree}. Subtrees whose hashes did
+     * not change are skipped, so the cost is proportional to the size of the change. Views
+     * found in both hierarchies are kept, with their widgets, positions and selection, and
+     * only their properties are updated; the other ones are removed or added. If the root
+     * changed, the whole scene is replaced. Must be called from the event dispatch thread once
+     * the scene is displayed.
+     *
+     * @return the number of views added or removed
+     */
+    public int update(ViewNode newRoot) {
+        setIndex(null);
+        version++;
+
+        List<ViewNode> removed = new ArrayList<ViewNode>();
+        List<ViewNode> added = new ArrayList<ViewNode>();
+        List<ViewNode> changed = new ArrayList<ViewNode>();
+
+        Deque<ViewNode[]> pending = new ArrayDeque<ViewNode[]>();
+        if (root == null || !root.name.equals(newRoot.name)) {
+            if (root != null) {
+                removed.add(root);
+            }
+            added.add(newRoot);
+            setRoot(newRoot);
+        } else if (root.treeHash != newRoot.treeHash) {
+            pending.push(new ViewNode[] { root, newRoot });
+        }
+
+        // The properties of the views that change are moved to the table of the scene
+        SymbolTable symbols = root.getSymbols();
+        Map<int[], int[]> names = new IdentityHashMap<int[], int[]>();
+        if (symbols != compactedSymbols) {
+            compactedSymbols = symbols;
+            compactedSize = symbols == null ? 0 : symbols.size();
+        }
+
+        while (!pending.isEmpty()) {
+            ViewNode[] pair = pending.pop();
+            ViewNode node = pair[0];
+            ViewNode newNode = pair[1];
+            node.treeHash = newNode.treeHash;
+            if (node.contentHash != newNode.contentHash) {
+                node.copyContent(newNode);
+                changed.add(node);
+            }
+
+            // Children are matched by name, which holds the identity of the view
+            Map<String, ViewNode> children = new HashMap<String, ViewNode>();
+            for (ViewNode child : node.children) {
+                children.put(child.name, child);
+            }
+
+            List<ViewNode> newChildren = new ArrayList<ViewNode>(newNode.children.size());
+            for (ViewNode newChild : newNode.children) {
+                ViewNode child = children.remove(newChild.name);
+                if (child == null) {
+                    newChild.parent = node;
+                    added.add(newChild);
+                    child = newChild;
+                } else if (child.treeHash != newChild.treeHash) {
+                    pending.push(new ViewNode[] { child, newChild });
+                }
+                if (child.index != newChildren.size() && child != newChild) {
+                    changed.add(child);
+                }
+                child.index = newChildren.size();
+                newChildren.add(child);
+            }
+            removed.addAll(children.values());
+            node.children = newChildren;
+        }
+
+        // Views are equal when their names are, so removed views must go first
+        int count = 0;
+        for (ViewNode subtree : removed) {
+            for (ViewNode node : listSubtree(subtree)) {
+                removeNode(node);
+                node.setStateListener(null);
+                GradientWidget widget = widgets.remove(node);
+                if (widget != null) {
+                    widget.removeFromParent();
+                }
+                count++;
+            }
+        }
+
+        for (ViewNode subtree : added) {
+            for (ViewNode node : listSubtree(subtree)) {
+                if (symbols != null) {
+                    node.moveProperties(symbols, names);
+                }
+                node.setStateListener(stateListener);
+                addNode(node);
+                count++;
+            }
+        }
+
+        for (ViewNode node : changed) {
+            if (symbols != null) {
+                node.moveProperties(symbols, names);
+            }
+            // The labels may be wider or narrower, see createLayout()
+            repaintNode(node);
+        }
+
+        if (symbols != null && symbols.size() > 2 * compactedSize) {
+            compactSymbols();
+        }
+
+        return count;
+    }
+
+    /**
+     * Moves the properties of all the views to a new symbol table. The symbols of the
+     * properties replaced by updates are left behind in the old table, which would otherwise
+     * grow with every update. This is only done once the table doubled, so its cost is
+     * proportional to the size of the updates.
+     */
+    private void compactSymbols() {
+        SymbolTable table = new SymbolTable();
+        Map<int[], int[]> names = new IdentityHashMap<int[], int[]>();
+        for (ViewNode node : listSubtree(root)) {
+            node.moveProperties(table, names);
+        }
+        compactedSymbols = table;
+        compactedSize = table.size();
+    }
+
+    /**
+     * Returns the views of a subtree, parents first.
+     */
+    private static List<ViewNode> listSubtree(ViewNode root) {
+        List<ViewNode> nodes = new ArrayList<ViewNode>();
+        Deque<ViewNode> stack = new ArrayDeque<ViewNode>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            ViewNode node = stack.pop();
+            nodes.add(node);
+            for (int i = node.children.size() - 1; i >= 0; i--) {
+                stack.push(node.children.get(i));
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Returns a layout of the graph, to compute on any thread with {@link TreeLayout#run()}
+     * and apply with {@link #applyLayout(TreeLayout)}, or null if the scene is empty. Must be
+     * called from the event dispatch thread once the scene is displayed.
+     */
+    public TreeLayout createLayout() {
+        if (root == null) {
+            return null;
+        }
+        if (titleFont == null) {
+            titleFont = getDefaultFont().deriveFont(Font.PLAIN, 12.0f);
+            detailFont = getDefaultFont().deriveFont(Font.PLAIN, 10.0f);
+        }
+        return new TreeLayout(listSubtree(root), version, titleFont, detailFont);
+    }
+
+    /**
+     * Moves the boxes of the views to the positions computed by a layout. Must be called
+     * from the event dispatch thread.
+     *
+     * @return false if views were added, removed or updated since the layout was created,
+     *         in which case nothing is moved
+     */
+    public boolean applyLayout(TreeLayout layout) {
+        if (layout.getVersion() != version) {
+            return false;
+        }
+
+        ViewNode[] nodes = layout.nodes;
+        for (int i = 0; i < nodes.length; i++) {
+            ViewNode node = nodes[i];
+            node.box.setBounds(layout.x[i], layout.y[i], layout.width[i], layout.height[i]);
+            node.subtreeBox.setBounds(layout.subtreeX[i], layout.subtreeY[i],
+                    layout.subtreeWidth[i], layout.subtreeHeight[i]);
+            node.layoutOffset = layout.offsets[i];
+            node.layoutHash = node.treeHash;
+        }
+        // Sizes of the subtrees, as they were laid out
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            ViewNode node = nodes[i];
+            node.layoutSize = 1;
+            for (ViewNode child : node.children) {
+                node.layoutSize += child.layoutSize;
+            }
+        }
+
+        graph.updateBounds();
+        graph.displayList = null;
+        graph.tiles.invalidateAll();
+        graph.repaint();
+        for (GradientWidget widget : widgets.values()) {
+            widget.updateBounds();
+        }
+        updateVisibleWidgets();
+        return true;
+    }
+
+    /**
+     * Returns the width of the box of a view, from the widths of its labels.
+     */
+    static int getBoxWidth(String name, int index, String id, FontMetrics titleMetrics,
+            FontMetrics detailMetrics) {
+        int width = titleMetrics.stringWidth(getShortName(name));
+        width = Math.max(width, detailMetrics.stringWidth(getDetail(index, name)));
+        width = Math.max(width, detailMetrics.stringWidth(id == null ? "" : id));
+        return width + 2 * GradientWidget.PADDING + 2 * GradientWidget.BORDER;
+    }
+
+    /**
+     * Returns the height of the boxes of the views, which all have three labels.
+     */
+    static int getBoxHeight(FontMetrics titleMetrics, FontMetrics detailMetrics) {
+        return titleMetrics.getHeight() + 2 * detailMetrics.getHeight() +
+                2 * GradientWidget.PADDING + 2 * GradientWidget.LINE_GAP +
+                2 * GradientWidget.BORDER;
+    }
+
+    /**
+     * Returns the metrics of a font, which may be used on any thread.
+     */
+    static FontMetrics createFontMetrics(Font font) {
+        Graphics2D g2 = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+        try {
+            return g2.getFontMetrics(font);
+        } finally {
+            g2.dispose();
+        }
+    }
+
+    /**
+     * Creates the widgets of the views in or near the visible part of the scene, and
+     * removes the other ones. No widget is created when the labels are too small to be
+     * read. Must be called from the event dispatch thread whenever the visible part of the
+     * scene or the zoom factor changes.
+     */
+    public void updateVisibleWidgets() {
+        Map<ViewNode, GradientWidget> visibleWidgets =
+                new IdentityHashMap<ViewNode, GradientWidget>();
+
+        JComponent view = getView();
+        if (view != null && root != null && getZoomFactor() >= DETAIL_ZOOM) {
+            // Half a screen around the visible part, so that scrolling does not show blanks
+            Rectangle area = convertViewToScene(view.getVisibleRect());
+            area.grow(area.width / 2, area.height / 2);
+
+            Deque<ViewNode> stack = new ArrayDeque<ViewNode>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                ViewNode node = stack.pop();
+                if (!node.subtreeBox.intersects(area)) {
+                    continue;
+                }
+                if (node.box.intersects(area)) {
+                    visibleWidgets.put(node, widgets.remove(node));
+                }
+                for (ViewNode child : node.children) {
+                    stack.push(child);
+                }
+            }
+        }
+
+        for (GradientWidget widget : widgets.values()) {
+            widget.removeFromParent();
+        }
+        for (Map.Entry<ViewNode, GradientWidget> entry : visibleWidgets.entrySet()) {
+            if (entry.getValue() == null) {
+                GradientWidget widget = new GradientWidget(this, entry.getKey());
+                widget.getActions().addAction(selectAction);
+                widget.getActions().addAction(moveAction);
+                widgetLayer.addChild(widget);
+                entry.setValue(widget);
+            }
+        }
+        widgets = visibleWidgets;
+        validate();
+    }
+
+    /**
+     * Returns the view whose box is at a point of the scene, or the root of the subtree
+     * drawn as a blob at that point, or null.
+     */
+    private ViewNode findNodeAt(Point point) {
+        if (root == null) {
+            return null;
+        }
+
+        double zoom = getZoomFactor();
+        Deque<ViewNode> stack = new ArrayDeque<ViewNode>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            ViewNode node = stack.pop();
+            if (!node.subtreeBox.contains(point)) {
+                continue;
+            }
+            if (isBlob(node, zoom) || node.box.contains(point)) {
+                return node;
+            }
+            for (ViewNode child : node.children) {
+                stack.push(child);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the subtree of a view is too small on screen to draw its boxes.
+     */
+    private static boolean isBlob(ViewNode node, double zoom) {
+        return isBlob(node.subtreeBox, !node.children.isEmpty(), zoom);
+    }
+
+    private static boolean isBlob(Rectangle subtree, boolean hasChildren, double zoom) {
+        return hasChildren && subtree.width * zoom < BLOB_SIZE &&
+                subtree.height * zoom < BLOB_SIZE;
+    }
+
+    private boolean isSelected(ViewNode node) {
+        ObjectState state = getObjectState(node);
+        return state != null &&
+                (state.isSelected() || state.isFocused() || state.isWidgetFocused());
+    }
+
+    /**
+     * Draws a view again, alone or in the blob containing it.
+     */
+    private void repaintNode(ViewNode node) {
+        GradientWidget widget = widgets.get(node);
+        if (widget != null) {
+            widget.repaint();
+        }
+
+        graph.updateItem(node);
+        TileCache tiles = graph.tiles;
+        tiles.invalidate(node.box);
+        for (double scale : tiles.getScales()) {
+            ViewNode blob = null;
+            for (ViewNode parent = node.parent; parent != null; parent = parent.parent) {
+                if (isBlob(parent, scale)) {
+                    blob = parent;
+                }
+            }
+            if (blob != null) {
+                tiles.invalidate(blob.subtreeBox, scale);
+            }
+        }
+        graph.repaint();
+    }
+
     @Override
     protected Widget attachNodeWidget(ViewNode node) {
-        Widget widget = createBox(node, node.name, node.id);
-        widget.getActions().addAction(createSelectAction());
-        widget.getActions().addAction(moveAction);
-        widgetLayer.addChild(widget);
-        return widget;
-    }
-
-    private Widget createBox(ViewNode node, String nodeName, String id) {
-        final String shortName = getShortName(nodeName);
-        node.setShortName(shortName);
-
-        GradientWidget box = new GradientWidget(this, node);
-        box.setLayout(LayoutFactory.createVerticalFlowLayout());
-        box.setBorder(BorderFactory.createLineBorder(2, Color.BLACK));
-        box.setOpaque(true);
-
-        LabelWidget label = new LabelWidget(this);
-        label.setFont(getDefaultFont().deriveFont(Font.PLAIN, 12.0f));
-        label.setLabel(shortName);
-        label.setBorder(BorderFactory.createEmptyBorder(6, 6, 0, 6));
-        label.setAlignment(LabelWidget.Alignment.CENTER);
-
-        box.addChild(label);
-        
-        label = new LabelWidget(this);
-        label.setFont(getDefaultFont().deriveFont(Font.PLAIN, 10.0f));
-        label.setLabel(getAddress(nodeName));
-        label.setBorder(BorderFactory.createEmptyBorder(3, 6, 0, 6));
-        label.setAlignment(LabelWidget.Alignment.CENTER);
-
-        box.addressWidget = label;
-        
-        box.addChild(label);
-        
-        label = new LabelWidget(this);
-        label.setFont(getDefaultFont().deriveFont(Font.PLAIN, 10.0f));
-        label.setLabel(id);
-        label.setBorder(BorderFactory.createEmptyBorder(3, 6, 6, 6));
-        label.setAlignment(LabelWidget.Alignment.CENTER);
-        
-        box.addChild(label);
-
-        return box;
+        // Views are drawn by the graph, see updateVisibleWidgets()
+        return null;
     }
-    
+
+    @Override
+    protected Widget attachEdgeWidget(String edge) {
+        return null;
+    }
+
+    @Override
+    protected void attachEdgeSourceAnchor(String edge, ViewNode oldSourceNode,
+            ViewNode sourceNode) {
+    }
+
+    @Override
+    protected void attachEdgeTargetAnchor(String edge, ViewNode oldTargetNode,
+            ViewNode targetNode) {
+    }
+
     private static String getAddress(String name) {
         String[] nameAndHashcode = name.split("@");
         return "@" + nameAndHashcode[1];
@@ -116,32 +644,360 @@ public class ViewHierarchyScene extends GraphScene<ViewNode, String> {
         return packages[packages.length - 1];
     }
 
-    @Override
-    protected Widget attachEdgeWidget(String edge) {
-        ConnectionWidget connectionWidget = new ConnectionWidget(this);
-        connectionLayer.addChild(connectionWidget);
-        return connectionWidget;
+    private static String getDetail(int index, String name) {
+        return "#" + index + getAddress(name);
     }
 
-    @Override
-    protected void attachEdgeSourceAnchor(String edge, ViewNode oldSourceNode, ViewNode sourceNode) {
-        final ConnectionWidget connection = (ConnectionWidget) findWidget(edge);
-        final Widget source = findWidget(sourceNode);
-        connection.bringToBack();
-        source.bringToFront();
-        connection.setSourceAnchor(AnchorFactory.createRectangularAnchor(source));
+    private static String getId(ViewNode node) {
+        return node.id == null ? "" : node.id;
     }
 
-    @Override
-    protected void attachEdgeTargetAnchor(String edge, ViewNode oldTargetNode, ViewNode targetNode) {
-        final ConnectionWidget connection = (ConnectionWidget) findWidget(edge);
-        final Widget target = findWidget(targetNode);
-        connection.bringToBack();
-        target.bringToFront();
-        connection.setTargetAnchor(AnchorFactory.createRectangularAnchor(target));
+    private class StateChangeListener implements ObjectSceneListener {
+        public void objectAdded(ObjectSceneEvent event, Object addedObject) {
+        }
+
+        public void objectRemoved(ObjectSceneEvent event, Object removedObject) {
+        }
+
+        public void objectStateChanged(ObjectSceneEvent event, Object changedObject,
+                ObjectState previousState, ObjectState newState) {
+            if (changedObject instanceof ViewNode) {
+                repaintNode((ViewNode) changedObject);
+            }
+        }
+
+        public void selectionChanged(ObjectSceneEvent event, Set<Object> previousSelection,
+                Set<Object> newSelection) {
+        }
+
+        public void highlightingChanged(ObjectSceneEvent event,
+                Set<Object> previousHighlighting, Set<Object> newHighlighting) {
+        }
+
+        public void hoverChanged(ObjectSceneEvent event, Object previousHoveredObject,
+                Object newHoveredObject) {
+        }
+
+        public void focusChanged(ObjectSceneEvent event, Object previousFocusedObject,
+                Object newFocusedObject) {
+        }
     }
-    
-    private static class GradientWidget extends Widget implements ViewNode.StateListener {
+
+    /**
+     * Focuses and selects the view of a widget, or the view drawn at the clicked point of
+     * the graph.
+     */
+    private class NodeSelectProvider implements SelectProvider {
+        public boolean isAimingAllowed(Widget widget, Point localLocation,
+                boolean invertSelection) {
+            return false;
+        }
+
+        public boolean isSelectionAllowed(Widget widget, Point localLocation,
+                boolean invertSelection) {
+            return findNode(widget, localLocation) != null;
+        }
+
+        public void select(Widget widget, Point localLocation, boolean invertSelection) {
+            ViewNode node = findNode(widget, localLocation);
+            if (node != null) {
+                setFocusedObject(node);
+                setSelectedObjects(Collections.singleton(node));
+            }
+        }
+
+        private ViewNode findNode(Widget widget, Point localLocation) {
+            if (widget instanceof GradientWidget) {
+                return ((GradientWidget) widget).node;
+            }
+            return findNodeAt(widget.convertLocalToScene(localLocation));
+        }
+    }
+
+    /**
+     * Moves the box of the view of a widget, and the links to its parent and children.
+     */
+    private class NodeMoveProvider implements MoveProvider {
+        public void movementStarted(Widget widget) {
+            // Drawn by the widget until the tiles are rendered again
+            ((GradientWidget) widget).moving = true;
+        }
+
+        public void movementFinished(Widget widget) {
+            ((GradientWidget) widget).moving = false;
+            widget.repaint();
+            // The graph may have grown
+            graph.updateBounds();
+            validate();
+        }
+
+        public Point getOriginalLocation(Widget widget) {
+            return widget.getPreferredLocation();
+        }
+
+        public void setNewLocation(Widget widget, Point location) {
+            ViewNode node = ((GradientWidget) widget).node;
+            // The box and the links to it move
+            Rectangle dirty = new Rectangle(node.box);
+            if (node.parent != null) {
+                dirty.add(node.parent.box);
+            }
+            for (ViewNode child : node.children) {
+                dirty.add(child.box);
+            }
+
+            node.box.setLocation(location);
+            widget.setPreferredLocation(location);
+            dirty.add(node.box);
+
+            // Subtrees keep holding the boxes they contain, for drawing and hit tests
+            for (ViewNode parent = node; parent != null; parent = parent.parent) {
+                parent.subtreeBox.add(node.box);
+            }
+            graph.updateItem(node);
+            graph.tiles.invalidate(dirty);
+            graph.repaint();
+        }
+    }
+
+    /**
+     * Draws the boxes of the views and the links between them, from a copy of the views
+     * taken again whenever they change. On the event dispatch thread, the graph is painted
+     * from tiles.
+     */
+    private static class GraphWidget extends Widget {
+        private final ViewHierarchyScene scene;
+        final TileCache tiles;
+        // Copy of the views drawn by the tiles, or null if views were added or laid out since
+        DisplayList displayList;
+
+        GraphWidget(ViewHierarchyScene scene) {
+            super(scene);
+            this.scene = scene;
+            tiles = new TileCache(this);
+        }
+
+        /**
+         * Copies a view and its ancestors again into the display list after the state or
+         * the box of the view changed, or drops the list if it is out of date. The tiles
+         * over the view must be invalidated next.
+         */
+        void updateItem(ViewNode node) {
+            if (displayList != null && (displayList.version != scene.version ||
+                    !displayList.update(scene, node))) {
+                displayList = null;
+            }
+        }
+
+        void updateBounds() {
+            ViewNode root = scene.root;
+            if (root == null) {
+                setPreferredBounds(new Rectangle());
+            } else {
+                Rectangle subtree = root.subtreeBox;
+                setPreferredBounds(new Rectangle(0, 0,
+                        subtree.x + subtree.width + TreeLayout.MARGIN,
+                        subtree.y + subtree.height + TreeLayout.MARGIN));
+            }
+        }
+
+        @Override
+        public boolean isHitAt(Point localLocation) {
+            return super.isHitAt(localLocation) &&
+                    scene.findNodeAt(convertLocalToScene(localLocation)) != null;
+        }
+
+        @Override
+        protected void paintWidget() {
+            Graphics2D g2 = getGraphics();
+            DisplayList list;
+            if (SwingUtilities.isEventDispatchThread()) {
+                if (displayList == null || displayList.version != scene.version) {
+                    displayList = new DisplayList(scene);
+                }
+                list = displayList;
+                if (tiles.paint(g2, list)) {
+                    return;
+                }
+            } else {
+                // Images of the scene are saved on other threads, and cannot wait for tiles
+                list = new DisplayList(scene);
+            }
+            list.render(g2, g2.getClipBounds(), g2.getTransform().getScaleX());
+        }
+    }
+
+    /**
+     * What the graph draws of a view, copied from it.
+     */
+    private static class Item {
+        final Rectangle box;
+        final Rectangle subtreeBox;
+        final String name;
+        final int index;
+        final String id;
+        final boolean filtered;
+        final boolean focused;
+        final boolean selected;
+        // Numbers of the children in the display list
+        final int[] children;
+
+        Item(ViewNode node, boolean selected, int[] children) {
+            box = new Rectangle(node.box);
+            subtreeBox = new Rectangle(node.subtreeBox);
+            name = node.name;
+            index = node.index;
+            id = getId(node);
+            filtered = node.filtered;
+            focused = node.hasFocus;
+            this.selected = selected;
+            this.children = children;
+        }
+    }
+
+    /**
+     * Copy of the views, taken on the event dispatch thread, which the tiles are rendered
+     * from on other threads. Only the subtrees in the drawn area are visited, and subtrees
+     * too small to tell their views apart are drawn as a single blob.
+     */
+    private static class DisplayList implements TileCache.Renderer {
+        private static final Color LINK = Color.BLACK;
+        private static final Color BLOB = new Color(129, 138, 155);
+
+        final int version;
+        private final Font titleFont;
+        private final Font detailFont;
+        // Views in depth-first order, the root first
+        private final Item[] items;
+        // Subtrees containing a selected view, or a view matching the filter
+        private final boolean[] selectedSubtrees;
+        private final boolean[] filteredSubtrees;
+        // Numbers of the views and of their parents, only used on the event dispatch thread
+        private final Map<ViewNode, Integer> numbers;
+        private final int[] parents;
+
+        DisplayList(ViewHierarchyScene scene) {
+            version = scene.version;
+            titleFont = scene.titleFont;
+            detailFont = scene.detailFont;
+
+            List<ViewNode> nodes = scene.listNodes();
+            int count = nodes.size();
+            numbers = new IdentityHashMap<ViewNode, Integer>(count);
+            for (int i = 0; i < count; i++) {
+                numbers.put(nodes.get(i), i);
+            }
+
+            items = new Item[count];
+            parents = new int[count];
+            selectedSubtrees = new boolean[count];
+            filteredSubtrees = new boolean[count];
+            if (count > 0) {
+                parents[0] = -1;
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                ViewNode node = nodes.get(i);
+                int[] children = new int[node.children.size()];
+                for (int j = 0; j < children.length; j++) {
+                    children[j] = numbers.get(node.children.get(j));
+                    parents[children[j]] = i;
+                }
+                items[i] = new Item(node, scene.isSelected(node), children);
+                // Children come after their parent
+                updateSubtree(i);
+            }
+        }
+
+        /**
+         * Copies a view and its ancestors again, for their states and boxes, and updates the
+         * subtrees containing the view. Only the entries of those views change, so tiles
+         * elsewhere are not affected.
+         *
+         * @return false if the view is not in the list
+         */
+        boolean update(ViewHierarchyScene scene, ViewNode node) {
+            Integer number = numbers.get(node);
+            if (number == null) {
+                return false;
+            }
+            for (int i = number; i != -1; i = parents[i], node = node.parent) {
+                items[i] = new Item(node, scene.isSelected(node), items[i].children);
+                updateSubtree(i);
+            }
+            return true;
+        }
+
+        private void updateSubtree(int node) {
+            Item item = items[node];
+            boolean selected = item.selected;
+            boolean filtered = item.filtered;
+            for (int child : item.children) {
+                selected |= selectedSubtrees[child];
+                filtered |= filteredSubtrees[child];
+            }
+            selectedSubtrees[node] = selected;
+            filteredSubtrees[node] = filtered;
+        }
+
+        public void render(Graphics2D g2, Rectangle area, double scale) {
+            if (items.length == 0) {
+                return;
+            }
+            boolean detailed = scale >= DETAIL_ZOOM;
+
+            Deque<Integer> stack = new ArrayDeque<Integer>();
+            stack.push(0);
+            while (!stack.isEmpty()) {
+                int node = stack.pop();
+                Item item = items[node];
+                if (area != null && !item.subtreeBox.intersects(area)) {
+                    continue;
+                }
+
+                if (isBlob(item.subtreeBox, item.children.length > 0, scale)) {
+                    paintBlob(g2, node);
+                    continue;
+                }
+
+                Rectangle box = item.box;
+                g2.setColor(LINK);
+                for (int child : item.children) {
+                    Rectangle childBox = items[child].box;
+                    g2.drawLine(box.x + box.width, box.y + box.height / 2,
+                            childBox.x, childBox.y + childBox.height / 2);
+                    stack.push(child);
+                }
+
+                if (area == null || box.intersects(area)) {
+                    GradientWidget.paintBox(g2, item, box, detailed, titleFont, detailFont);
+                }
+            }
+        }
+
+        private void paintBlob(Graphics2D g2, int node) {
+            Color color = BLOB;
+            if (selectedSubtrees[node]) {
+                color = GradientWidget.MAC_OSX_SELECTED.getColor2();
+            } else if (filteredSubtrees[node]) {
+                color = GradientWidget.RED_XP.getColor2();
+            }
+            Rectangle subtree = items[node].subtreeBox;
+            g2.setColor(color);
+            g2.fillRoundRect(subtree.x, subtree.y, subtree.width, subtree.height,
+                    subtree.width / 4, subtree.height / 4);
+        }
+    }
+
+    /**
+     * Widget of a view near the visible part of the scene, which can be selected and moved.
+     * The box of the view is drawn by the graph, unless it is being moved.
+     */
+    private static class GradientWidget extends Widget {
+        // Thickness of the border of the boxes, and space around and between their labels
+        static final int BORDER = 2;
+        static final int PADDING = 6;
+        static final int LINE_GAP = 3;
+
         public static final GradientPaint BLUE_EXPERIENCE = new GradientPaint(
                 new Point2D.Double(0, 0),
                 new Color(168, 204, 241),
@@ -191,72 +1047,113 @@ public class ViewHierarchyScene extends GraphScene<ViewNode, String> {
         private static Color UNSELECTED = Color.BLACK;
         private static Color SELECTED = Color.WHITE;
 
-        private final ViewNode node;
+        private static final GradientPaint selectedGradient = MAC_OSX_SELECTED;
+        private static final GradientPaint filteredGradient = RED_XP;
+        private static final GradientPaint focusGradient = NIGHT_GRAY_VERY_LIGHT;
 
-        private LabelWidget addressWidget;
+        // Gradients from the top to the bottom of the boxes, by height of the boxes
+        private static final Map<Integer, GradientPaint> selectedGradients =
+                new ConcurrentHashMap<Integer, GradientPaint>();
+        private static final Map<Integer, GradientPaint> filteredGradients =
+                new ConcurrentHashMap<Integer, GradientPaint>();
+        private static final Map<Integer, GradientPaint> focusGradients =
+                new ConcurrentHashMap<Integer, GradientPaint>();
 
-        private boolean isSelected = false;
-        private final GradientPaint selectedGradient = MAC_OSX_SELECTED;
-        private final GradientPaint filteredGradient = RED_XP;
-        private final GradientPaint focusGradient = NIGHT_GRAY_VERY_LIGHT;
+        private final ViewHierarchyScene scene;
+        private final ViewNode node;
+        boolean moving;
 
         public GradientWidget(ViewHierarchyScene scene, ViewNode node) {
             super(scene);
+            this.scene = scene;
             this.node = node;
-            node.setStateListener(this);
+            updateBounds();
         }
 
-        @Override
-        protected void notifyStateChanged(ObjectState previous, ObjectState state) {
-            super.notifyStateChanged(previous, state);
-            isSelected = state.isSelected() || state.isFocused() || state.isWidgetFocused();
-
-            pickChildrenColor();
+        void updateBounds() {
+            setPreferredLocation(node.box.getLocation());
+            setPreferredBounds(new Rectangle(0, 0, node.box.width, node.box.height));
         }
 
-        private void pickChildrenColor() {
-            for (Widget child : getChildren()) {
-                child.setForeground(isSelected || node.filtered ? SELECTED : UNSELECTED);
+        @Override
+        protected void paintWidget() {
+            if (moving) {
+                paintBox(getGraphics(), new Item(node, scene.isSelected(node), null),
+                        getBounds(), true, scene.titleFont, scene.detailFont);
             }
-
-            repaint();
         }
 
-        @Override
-        protected void paintBackground() {
-            super.paintBackground();
+        /**
+         * Draws the box of a view, with its labels if detailed is true. May be called on any
+         * thread.
+         */
+        static void paintBox(Graphics2D g2, Item item, Rectangle bounds, boolean detailed,
+                Font titleFont, Font detailFont) {
+            boolean isSelected = item.selected;
+            if (!detailed) {
+                Color color = Color.WHITE;
+                if (isSelected) {
+                    color = selectedGradient.getColor2();
+                } else if (item.filtered) {
+                    color = filteredGradient.getColor2();
+                }
+                g2.setColor(color);
+                g2.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+                g2.setColor(UNSELECTED);
+                g2.drawRect(bounds.x, bounds.y, bounds.width, bounds.height);
+                return;
+            }
 
-            Graphics2D g2 = getGraphics();
-            Rectangle bounds = getBounds();
+            g2.setColor(UNSELECTED);
+            g2.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
 
             if (!isSelected) {
-                if (!node.filtered) {
-                    if (!node.hasFocus) {
+                if (!item.filtered) {
+                    if (!item.focused) {
                         g2.setColor(Color.WHITE);
                     } else {
-                        g2.setPaint(new GradientPaint(bounds.x, bounds.y,
-                                focusGradient.getColor1(), bounds.x, bounds.x + bounds.height,
-                                focusGradient.getColor2()));
+                        g2.setPaint(getGradient(focusGradients, focusGradient, bounds.height));
                     }
                 } else {
-                    g2.setPaint(new GradientPaint(bounds.x, bounds.y, filteredGradient.getColor1(),
-                        bounds.x, bounds.x + bounds.height, filteredGradient.getColor2()));
+                    g2.setPaint(getGradient(filteredGradients, filteredGradient, bounds.height));
                 }
             } else {
-                g2.setPaint(new GradientPaint(bounds.x, bounds.y, selectedGradient.getColor1(),
-                        bounds.x, bounds.x + bounds.height, selectedGradient.getColor2()));
+                g2.setPaint(getGradient(selectedGradients, selectedGradient, bounds.height));
             }
-            g2.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
-        }
+            // The gradients start at the top of the box
+            g2.translate(bounds.x, bounds.y);
+            g2.fillRect(BORDER, BORDER, bounds.width - 2 * BORDER, bounds.height - 2 * BORDER);
+            g2.translate(-bounds.x, -bounds.y);
 
-        public void nodeStateChanged(ViewNode node) {
-            pickChildrenColor();
+            g2.setColor(isSelected || item.filtered ? SELECTED : UNSELECTED);
+            int y = bounds.y + BORDER + PADDING;
+            y = paintLabel(g2, titleFont, getShortName(item.name), bounds, y);
+            y = paintLabel(g2, detailFont, getDetail(item.index, item.name), bounds,
+                    y + LINE_GAP);
+            paintLabel(g2, detailFont, item.id, bounds, y + LINE_GAP);
         }
 
-        public void nodeIndexChanged(ViewNode node) {
-            if (addressWidget != null) {
-                addressWidget.setLabel("#" + node.index + addressWidget.getLabel());
+        private static GradientPaint getGradient(Map<Integer, GradientPaint> gradients,
+                GradientPaint gradient, int height) {
+            GradientPaint paint = gradients.get(height);
+            if (paint == null) {
+                paint = new GradientPaint(0, 0, gradient.getColor1(), 0, height,
+                        gradient.getColor2());
+                gradients.put(height, paint);
             }
+            return paint;
+        }
+
+        /**
+         * Draws a line of text centered in a box, below y, and returns the bottom of the line.
+         */
+        private static int paintLabel(Graphics2D g2, Font font, String text, Rectangle bounds,
+                int y) {
+            g2.setFont(font);
+            FontMetrics metrics = g2.getFontMetrics();
+            int x = bounds.x + (bounds.width - metrics.stringWidth(text)) / 2;
+            g2.drawString(text, x, y + metrics.getAscent());
+            return y + metrics.getHeight();
         }
     }
 }
@@ -0,0 +1,554 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Indexes the properties of the views of a hierarchy, to evaluate {@link ViewQuery}s
+ * without looking at every view. The index is immutable and may be built on any thread
+ * from a copy of the views, see {@link Views}.
+ * <p/>Views are numbered in depth-first order, so that the subtree of a view is a range of
+ * numbers. Every distinct pair of property name and value has a sorted list of the views
+ * that hold it, and the pairs of each property whose value is a number are also sorted by
+ * value to answer comparisons with binary searches. The class name and the id of the views
+ * are indexed as the {@link #CLASS} and {@link #ID} properties.
+ */
+public class ViewIndex {
+    static final String CLASS = "class";
+    static final String ID = "id";
+
+    private final ViewNode[] nodes;
+    /** Number of the parent of each view, -1 for the root. */
+    private final int[] parents;
+    /** End of the subtree of each view, exclusive. */
+    private final int[] ends;
+
+    private final SymbolTable symbols = new SymbolTable();
+    // Symbol ids of the tables of the views, mapped to ids of the table of the index
+    private final Map<SymbolTable, int[]> symbolMaps = new IdentityHashMap<SymbolTable, int[]>();
+
+    // Pairs of property name and value
+    private int pairCount;
+    private int[] pairNames = new int[1024];
+    private int[] pairValues = new int[1024];
+    /** Open addressing index of the pairs, holding pair + 1, 0 for an empty slot. */
+    private int[] pairSlots = new int[2048];
+
+    /** Views holding each pair, in postings[offsets[pair]] to postings[offsets[pair + 1]]. */
+    private int[] offsets;
+    private int[] postings;
+
+    /** Pairs of each view, in nodePairs[nodeOffsets[node]] to nodePairs[nodeOffsets[node + 1]]. */
+    private final int[] nodeOffsets;
+    private final int[] nodePairs;
+
+    /** Pairs of each property, by name id. */
+    private int[][] namePairs;
+    /** Numeric values of each property, sorted, and the matching pairs. */
+    private double[][] nameNumbers;
+    private int[][] nameNumberPairs;
+
+    /**
+     * What an index reads of the views, copied on the thread that owns them, so that the
+     * index can then be built on another thread while the views are updated.
+     */
+    public static class Views {
+        final ViewNode[] nodes;
+        final ViewNode[] parents;
+        final String[] names;
+        final String[] ids;
+        final SymbolTable[] tables;
+        // The arrays of symbol ids of a loaded view are replaced, never modified, so they
+        // are shared
+        final int[][] propertyNames;
+        final int[][] propertyValues;
+
+        /**
+         * Copies the specified views, which must be in depth-first order, parents before
+         * their children, and linked to their parents.
+         */
+        public Views(List<ViewNode> nodes) {
+            int count = nodes.size();
+            this.nodes = nodes.toArray(new ViewNode[count]);
+            parents = new ViewNode[count];
+            names = new String[count];
+            ids = new String[count];
+            tables = new SymbolTable[count];
+            propertyNames = new int[count][];
+            propertyValues = new int[count][];
+            for (int n = 0; n < count; n++) {
+                ViewNode node = this.nodes[n];
+                parents[n] = node.parent;
+                names[n] = node.name;
+                ids[n] = node.id;
+                tables[n] = node.getSymbols();
+                propertyNames[n] = node.getPropertyNames();
+                propertyValues[n] = node.getPropertyValues();
+            }
+        }
+    }
+
+    /**
+     * Indexes the specified views, which must be in depth-first order, parents before their
+     * children, and linked to their parents. They must not change while they are indexed.
+     */
+    public ViewIndex(List<ViewNode> nodes) {
+        this(new Views(nodes));
+    }
+
+    /**
+     * Indexes a copy of views, on any thread.
+     */
+    public ViewIndex(Views views) {
+        this.nodes = views.nodes;
+        parents = new int[this.nodes.length];
+        ends = new int[this.nodes.length];
+        linkNodes(views.parents);
+
+        int classId = symbols.intern(CLASS);
+        int idId = symbols.intern(ID);
+
+        // Pair of each property of each view, in order, and number of views of each pair
+        int[] nodePairs = new int[this.nodes.length * 16];
+        nodeOffsets = new int[this.nodes.length + 1];
+        int[] counts = new int[1024];
+        int total = 0;
+        for (int n = 0; n < this.nodes.length; n++) {
+            SymbolTable table = views.tables[n];
+            int propertyCount = table == null ? 0 : views.propertyNames[n].length;
+            if (total + propertyCount + 2 > nodePairs.length) {
+                nodePairs = Arrays.copyOf(nodePairs,
+                        Math.max(total + propertyCount + 2, nodePairs.length * 2));
+            }
+
+            nodePairs[total++] = getPair(classId,
+                    symbols.intern(getClassName(views.names[n])));
+            nodePairs[total++] = getPair(idId, symbols.intern(views.ids[n]));
+            if (table != null) {
+                int[] map = getSymbolMap(table);
+                int[] names = views.propertyNames[n];
+                int[] values = views.propertyValues[n];
+                for (int i = 0; i < names.length; i++) {
+                    nodePairs[total++] = getPair(mapSymbol(map, table, names[i]),
+                            mapSymbol(map, table, values[i]));
+                }
+            }
+
+            if (pairCount > counts.length) {
+                counts = Arrays.copyOf(counts, Math.max(pairCount, counts.length * 2));
+            }
+            for (int i = total - propertyCount - 2; i < total; i++) {
+                counts[nodePairs[i]]++;
+            }
+            nodeOffsets[n + 1] = total;
+        }
+        symbolMaps.clear();
+        this.nodePairs = Arrays.copyOf(nodePairs, total);
+
+        // Views are visited in order, so the list of each pair is sorted
+        offsets = new int[pairCount + 1];
+        for (int pair = 0; pair < pairCount; pair++) {
+            offsets[pair + 1] = offsets[pair] + counts[pair];
+        }
+        int[] cursors = Arrays.copyOf(offsets, pairCount);
+        postings = new int[total];
+        for (int node = 0; node < this.nodes.length; node++) {
+            for (int i = nodeOffsets[node]; i < nodeOffsets[node + 1]; i++) {
+                postings[cursors[nodePairs[i]]++] = node;
+            }
+        }
+
+        indexNames();
+    }
+
+    /**
+     * Returns the number of indexed views.
+     */
+    public int size() {
+        return nodes.length;
+    }
+
+    ViewNode getNode(int node) {
+        return nodes[node];
+    }
+
+    /**
+     * Returns the views whose property has exactly the specified value.
+     */
+    BitSet findEqual(String name, String value) {
+        BitSet result = new BitSet(nodes.length);
+        int nameId = symbols.find(name);
+        int valueId = symbols.find(value);
+        if (nameId != -1 && valueId != -1) {
+            int pair = findPair(nameId, valueId);
+            if (pair != -1) {
+                addPostings(result, pair);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the views, among the candidates, whose property has a value in which the
+     * pattern is found. The pattern is matched once against each distinct value, or against
+     * the values of the candidates if there are fewer of them.
+     *
+     * @param shortClassName true to match the class names of the views without their
+     *        package, if name is {@link #CLASS}
+     * @param candidates the views to consider, or null for all of them
+     */
+    BitSet findMatching(String name, Pattern pattern, boolean shortClassName,
+            BitSet candidates) {
+        BitSet result = new BitSet(nodes.length);
+        int nameId = symbols.find(name);
+        if (nameId == -1 || nameId >= namePairs.length || namePairs[nameId] == null) {
+            return result;
+        }
+
+        int[] pairs = namePairs[nameId];
+        if (candidates != null && candidates.cardinality() < pairs.length) {
+            Map<Integer, Boolean> matches = new HashMap<Integer, Boolean>();
+            for (int node = candidates.nextSetBit(0); node >= 0;
+                    node = candidates.nextSetBit(node + 1)) {
+                for (int i = nodeOffsets[node]; i < nodeOffsets[node + 1]; i++) {
+                    int pair = nodePairs[i];
+                    if (pairNames[pair] == nameId) {
+                        Boolean match = matches.get(pair);
+                        if (match == null) {
+                            match = matches(pair, pattern, shortClassName);
+                            matches.put(pair, match);
+                        }
+                        if (match) {
+                            result.set(node);
+                        }
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+
+        for (int pair : pairs) {
+            if (matches(pair, pattern, shortClassName)) {
+                addPostings(result, pair);
+            }
+        }
+        if (candidates != null) {
+            result.and(candidates);
+        }
+        return result;
+    }
+
+    private boolean matches(int pair, Pattern pattern, boolean shortClassName) {
+        String value = symbols.get(pairValues[pair]);
+        if (shortClassName) {
+            value = value.substring(value.lastIndexOf('.') + 1);
+        }
+        return pattern.matcher(value).find();
+    }
+
+    /**
+     * Returns the views whose property is a number within the specified bounds.
+     */
+    BitSet findInRange(String name, double min, boolean minInclusive, double max,
+            boolean maxInclusive) {
+        BitSet result = new BitSet(nodes.length);
+        int nameId = symbols.find(name);
+        if (nameId == -1 || nameId >= nameNumbers.length || nameNumbers[nameId] == null) {
+            return result;
+        }
+        double[] numbers = nameNumbers[nameId];
+        int[] pairs = nameNumberPairs[nameId];
+        int from = search(numbers, min, !minInclusive);
+        int to = search(numbers, max, maxInclusive);
+        for (int i = from; i < to; i++) {
+            addPostings(result, pairs[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns all the views.
+     */
+    BitSet findAll() {
+        BitSet result = new BitSet(nodes.length);
+        result.set(0, nodes.length);
+        return result;
+    }
+
+    /**
+     * Returns the views that have an ancestor in the specified set.
+     */
+    BitSet findDescendants(BitSet ancestors) {
+        BitSet result = new BitSet(nodes.length);
+        // Subtrees are ranges, and a subtree is either nested in the last one or after it
+        int covered = 0;
+        for (int node = ancestors.nextSetBit(0); node >= 0;
+                node = ancestors.nextSetBit(node + 1)) {
+            if (ends[node] > covered) {
+                result.set(Math.max(node + 1, covered), ends[node]);
+                covered = ends[node];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the views that have a descendant in the specified set.
+     */
+    BitSet findAncestors(BitSet descendants) {
+        BitSet result = new BitSet(nodes.length);
+        for (int node = descendants.nextSetBit(0); node >= 0;
+                node = descendants.nextSetBit(node + 1)) {
+            for (int parent = parents[node]; parent != -1 && !result.get(parent);
+                    parent = parents[parent]) {
+                result.set(parent);
+            }
+        }
+        return result;
+    }
+
+    private void linkNodes(ViewNode[] nodeParents) {
+        // Ancestors of the current view
+        int[] stack = new int[64];
+        int depth = 0;
+        for (int node = 0; node < nodes.length; node++) {
+            ViewNode parent = nodeParents[node];
+            while (depth > 0 && nodes[stack[depth - 1]] != parent) {
+                depth--;
+            }
+            if (parent != null && depth == 0) {
+                throw new IllegalArgumentException(
+                        "The views are not in depth-first order: " + nodes[node]);
+            }
+            parents[node] = parent == null ? -1 : stack[depth - 1];
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            stack[depth++] = node;
+        }
+
+        for (int node = nodes.length - 1; node >= 0; node--) {
+            ends[node] = Math.max(ends[node], node + 1);
+            if (parents[node] != -1) {
+                ends[parents[node]] = Math.max(ends[parents[node]], ends[node]);
+            }
+        }
+    }
+
+    /**
+     * Lists the pairs of each property and sorts the ones whose value is a number.
+     */
+    private void indexNames() {
+        int nameCount = 0;
+        for (int pair = 0; pair < pairCount; pair++) {
+            nameCount = Math.max(nameCount, pairNames[pair] + 1);
+        }
+
+        int[] counts = new int[nameCount];
+        for (int pair = 0; pair < pairCount; pair++) {
+            counts[pairNames[pair]]++;
+        }
+        namePairs = new int[nameCount][];
+        for (int name = 0; name < nameCount; name++) {
+            if (counts[name] > 0) {
+                namePairs[name] = new int[counts[name]];
+                counts[name] = 0;
+            }
+        }
+        for (int pair = 0; pair < pairCount; pair++) {
+            int name = pairNames[pair];
+            namePairs[name][counts[name]++] = pair;
+        }
+
+        // Symbols used as values by several properties are only parsed once
+        double[] values = new double[symbols.size()];
+        boolean[] parsed = new boolean[symbols.size()];
+
+        nameNumbers = new double[nameCount][];
+        nameNumberPairs = new int[nameCount][];
+        for (int name = 0; name < nameCount; name++) {
+            if (namePairs[name] == null) {
+                continue;
+            }
+
+            int[] pairs = namePairs[name];
+            double[] numbers = new double[pairs.length];
+            int count = 0;
+            for (int pair : pairs) {
+                int value = pairValues[pair];
+                if (!parsed[value]) {
+                    values[value] = parseNumber(symbols.get(value));
+                    parsed[value] = true;
+                }
+                if (!Double.isNaN(values[value])) {
+                    numbers[count++] = values[value];
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+
+            // Sorts the pairs by the rank of their value
+            double[] sorted = Arrays.copyOf(numbers, count);
+            Arrays.sort(sorted);
+            long[] keys = new long[count];
+            count = 0;
+            for (int i = 0; i < pairs.length; i++) {
+                double number = values[pairValues[pairs[i]]];
+                if (!Double.isNaN(number)) {
+                    keys[count++] = (long) Arrays.binarySearch(sorted, number) << 32 | i;
+                }
+            }
+            Arrays.sort(keys);
+
+            int[] sortedPairs = new int[count];
+            for (int i = 0; i < count; i++) {
+                sortedPairs[i] = pairs[(int) keys[i]];
+            }
+            nameNumbers[name] = sorted;
+            nameNumberPairs[name] = sortedPairs;
+        }
+    }
+
+    private int getPair(int name, int value) {
+        long hash = ViewNode.mixHash(name, value);
+        int mask = pairSlots.length - 1;
+        int slot = (int) hash & mask;
+
+        int pair;
+        while ((pair = pairSlots[slot] - 1) != -1) {
+            if (pairNames[pair] == name && pairValues[pair] == value) {
+                return pair;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (pairCount == pairNames.length) {
+            pairNames = Arrays.copyOf(pairNames, pairCount * 2);
+            pairValues = Arrays.copyOf(pairValues, pairCount * 2);
+        }
+        pair = pairCount++;
+        pairNames[pair] = name;
+        pairValues[pair] = value;
+        pairSlots[slot] = pair + 1;
+
+        if (pairCount * 2 > pairSlots.length) {
+            int[] slots = new int[pairSlots.length * 2];
+            mask = slots.length - 1;
+            for (int i = 0; i < pairCount; i++) {
+                slot = (int) ViewNode.mixHash(pairNames[i], pairValues[i]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i + 1;
+            }
+            pairSlots = slots;
+        }
+        return pair;
+    }
+
+    private int findPair(int name, int value) {
+        int mask = pairSlots.length - 1;
+        int slot = (int) ViewNode.mixHash(name, value) & mask;
+
+        int pair;
+        while ((pair = pairSlots[slot] - 1) != -1) {
+            if (pairNames[pair] == name && pairValues[pair] == value) {
+                return pair;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void addPostings(BitSet result, int pair) {
+        for (int i = offsets[pair]; i < offsets[pair + 1]; i++) {
+            result.set(postings[i]);
+        }
+    }
+
+    private int[] getSymbolMap(SymbolTable table) {
+        int[] map = symbolMaps.get(table);
+        if (map == null || map.length < table.size()) {
+            int length = map == null ? 0 : map.length;
+            map = map == null ? new int[table.size()] : Arrays.copyOf(map, table.size());
+            Arrays.fill(map, length, map.length, -1);
+            symbolMaps.put(table, map);
+        }
+        return map;
+    }
+
+    private int mapSymbol(int[] map, SymbolTable table, int id) {
+        if (map[id] == -1) {
+            map[id] = symbols.intern(table, id);
+        }
+        return map[id];
+    }
+
+    private static String getClassName(String name) {
+        int index = name.indexOf('@');
+        return index == -1 ? name : name.substring(0, index);
+    }
+
+    /**
+     * Returns the index of the first number greater than the key, or greater than or equal
+     * to the key if after is false.
+     */
+    private static int search(double[] numbers, double key, boolean after) {
+        int low = 0;
+        int high = numbers.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (numbers[middle] < key || (after && numbers[middle] == key)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Parses a decimal number, returns NaN if the value is not one.
+     */
+    static double parseNumber(String value) {
+        int length = value.length();
+        if (length == 0 || length > 32) {
+            return Double.NaN;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && c != '-' && c != '.' && c != 'e' && c != 'E' &&
+                    c != '+') {
+                return Double.NaN;
+            }
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
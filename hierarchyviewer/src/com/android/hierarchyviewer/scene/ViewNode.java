@@ -17,18 +17,39 @@
 package com.android.hierarchyviewer.scene;
 
 import java.awt.Image;
+import java.awt.Rectangle;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 public class ViewNode {
+    // Properties decoded into fields while the dump is parsed, see setField()
+    private static final String[] FIELD_PROPERTIES = {
+        "mID", "mLeft", "mTop", "getWidth()", "getHeight()", "mScrollX", "mScrollY",
+        "mPaddingLeft", "mPaddingRight", "mPaddingTop", "mPaddingBottom",
+        "layout_leftMargin", "layout_rightMargin", "layout_topMargin", "layout_bottomMargin",
+        "getBaseline()", "willNotDraw()", "hasFocus()"
+    };
+
+    private static final Comparator<Property> PROPERTY_COMPARATOR = new Comparator<Property>() {
+        public int compare(Property source, Property destination) {
+            return source.name.compareTo(destination.name);
+        }
+    };
+
     public String id;
     public String name;
 
-    public List<Property> properties = new ArrayList<Property>();
-    public Map<String, Property> namedProperties = new HashMap<String, Property>();
+    // Properties, as ids of the symbol table of the hierarchy, in the order of the dump.
+    // The array of names is shared by the views that have the same properties.
+    private SymbolTable symbols;
+    private int[] propertyNames;
+    private int[] propertyValues;
+    // Properties decoded by getProperties(), sorted by name, or null until then
+    private List<Property> properties;
 
     public ViewNode parent;
     public List<ViewNode> children = new ArrayList<ViewNode>();
@@ -45,10 +66,10 @@ public class ViewNode {
     public int paddingRight;
     public int paddingTop;
     public int paddingBottom;
-    public int marginLeft;
-    public int marginRight;
-    public int marginTop;
-    public int marginBottom;
+    public int marginLeft = Integer.MIN_VALUE;
+    public int marginRight = Integer.MIN_VALUE;
+    public int marginTop = Integer.MIN_VALUE;
+    public int marginBottom = Integer.MIN_VALUE;
     public int baseline;
     public boolean willNotDraw;
     public boolean hasMargins;
@@ -56,32 +77,30 @@ public class ViewNode {
     boolean hasFocus;
     int index;
 
+    // Bounds of the box of this view in the graph, and of the boxes of its whole subtree,
+    // set when the graph is laid out. See TreeLayout
+    final Rectangle box = new Rectangle();
+    final Rectangle subtreeBox = new Rectangle();
+    // Hash and size of the subtree when it was last laid out, and position of the center
+    // of the box relative to the center of the box of the parent
+    long layoutHash;
+    int layoutSize;
+    int layoutOffset;
+
+    // Hash of the name and properties of this view, and hash of its whole subtree, built
+    // from the hashes of the children like a Merkle tree. See ViewHierarchyScene.update()
+    long contentHash;
+    long treeHash;
+
     public boolean decoded;
     public boolean filtered;
 
-    private String shortName;
     private StateListener listener;
 
     void decode() {
-        id = namedProperties.get("mID").value;
-
-        left = getInt("mLeft", 0);
-        top = getInt("mTop", 0);
-        width = getInt("getWidth()", 0);
-        height = getInt("getHeight()", 0);
-        scrollX = getInt("mScrollX", 0);
-        scrollY = getInt("mScrollY", 0);
-        paddingLeft = getInt("mPaddingLeft", 0);
-        paddingRight = getInt("mPaddingRight", 0);
-        paddingTop = getInt("mPaddingTop", 0);
-        paddingBottom = getInt("mPaddingBottom", 0);
-        marginLeft = getInt("layout_leftMargin", Integer.MIN_VALUE);
-        marginRight = getInt("layout_rightMargin", Integer.MIN_VALUE);
-        marginTop = getInt("layout_topMargin", Integer.MIN_VALUE);
-        marginBottom = getInt("layout_bottomMargin", Integer.MIN_VALUE);
-        baseline = getInt("getBaseline()", 0);
-        willNotDraw = getBoolean("willNotDraw()", false);
-        hasFocus = getBoolean("hasFocus()", false);
+        if (id == null) {
+            id = "NO_ID";
+        }
 
         hasMargins = marginLeft != Integer.MIN_VALUE &&
                 marginRight != Integer.MIN_VALUE &&
@@ -91,46 +110,227 @@ public class ViewNode {
         decoded = true;
     }
 
-    private boolean getBoolean(String name, boolean defaultValue) {
-        Property p = namedProperties.get(name);
-        if (p != null) {
-            try {
-                return Boolean.parseBoolean(p.value);
-            } catch (NumberFormatException e) {
-                return defaultValue;
-            }   
+    /**
+     * Returns all the properties of this view, sorted by name. They are decoded on the first
+     * call and kept until the properties change, so the list must not be modified.
+     */
+    public List<Property> getProperties() {
+        if (properties == null) {
+            List<Property> decoded = new ArrayList<Property>();
+            if (symbols != null) {
+                for (int i = 0; i < propertyNames.length; i++) {
+                    decoded.add(createProperty(i));
+                }
+                Collections.sort(decoded, PROPERTY_COMPARATOR);
+            }
+            properties = Collections.unmodifiableList(decoded);
         }
-        return defaultValue;
+        return properties;
+    }
+
+    /**
+     * Returns the property with the specified name, without its category, or null.
+     */
+    public Property getProperty(String name) {
+        Property key = new Property();
+        key.name = name;
+        List<Property> properties = getProperties();
+        int index = Collections.binarySearch(properties, key, PROPERTY_COMPARATOR);
+        return index < 0 ? null : properties.get(index);
     }
 
-    private int getInt(String name, int defaultValue) {
-        Property p = namedProperties.get(name);
-        if (p != null) {
-            try {
-                return Integer.parseInt(p.value);
-            } catch (NumberFormatException e) {
+    private Property createProperty(int index) {
+        Property property = new Property();
+        property.name = symbols.get(propertyNames[index]);
+        property.value = symbols.get(propertyValues[index]);
+        return property;
+    }
+
+    SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    int[] getPropertyNames() {
+        return propertyNames;
+    }
+
+    int[] getPropertyValues() {
+        return propertyValues;
+    }
+
+    /**
+     * Moves the properties of this view to another symbol table.
+     *
+     * @param names the name lists already moved to the table, shared between views
+     */
+    void moveProperties(SymbolTable table, Map<int[], int[]> names) {
+        if (symbols == null || symbols == table) {
+            return;
+        }
+
+        int[] movedNames = names.get(propertyNames);
+        if (movedNames == null) {
+            movedNames = new int[propertyNames.length];
+            for (int i = 0; i < movedNames.length; i++) {
+                movedNames[i] = table.intern(symbols, propertyNames[i]);
+            }
+            names.put(propertyNames, movedNames);
+        }
+
+        int[] movedValues = new int[propertyValues.length];
+        for (int i = 0; i < movedValues.length; i++) {
+            movedValues[i] = table.intern(symbols, propertyValues[i]);
+        }
+
+        // The properties are the same, only their ids change
+        List<Property> decoded = properties;
+        setProperties(table, movedNames, movedValues);
+        properties = decoded;
+    }
+
+    /**
+     * Replaces the properties of this view, and the fields they back, with the ones of the
+     * same view in a newer dump. The capture of this view is discarded.
+     */
+    void copyContent(ViewNode node) {
+        id = node.id;
+        symbols = node.symbols;
+        propertyNames = node.propertyNames;
+        propertyValues = node.propertyValues;
+        properties = node.properties;
+
+        left = node.left;
+        top = node.top;
+        width = node.width;
+        height = node.height;
+        scrollX = node.scrollX;
+        scrollY = node.scrollY;
+        paddingLeft = node.paddingLeft;
+        paddingRight = node.paddingRight;
+        paddingTop = node.paddingTop;
+        paddingBottom = node.paddingBottom;
+        marginLeft = node.marginLeft;
+        marginRight = node.marginRight;
+        marginTop = node.marginTop;
+        marginBottom = node.marginBottom;
+        baseline = node.baseline;
+        willNotDraw = node.willNotDraw;
+        hasMargins = node.hasMargins;
+        hasFocus = node.hasFocus;
+        decoded = node.decoded;
+
+        contentHash = node.contentHash;
+        image = null;
+    }
+
+    void setProperties(SymbolTable symbols, int[] names, int[] values) {
+        this.symbols = symbols;
+        this.propertyNames = names;
+        this.propertyValues = values;
+        properties = null;
+    }
+
+    /**
+     * Returns the index of the field backed by the specified property, or -1.
+     */
+    static int getField(String property) {
+        for (int i = 0; i < FIELD_PROPERTIES.length; i++) {
+            if (FIELD_PROPERTIES[i].equals(property)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets a field from the UTF-8 value of the property backing it.
+     *
+     * @param field the index returned by {@link #getField(String)}
+     */
+    void setField(int field, byte[] data, int start, int end) {
+        switch (field) {
+            case 0: id = decodeString(data, start, end); break;
+            case 1: left = parseInt(data, start, end, 0); break;
+            case 2: top = parseInt(data, start, end, 0); break;
+            case 3: width = parseInt(data, start, end, 0); break;
+            case 4: height = parseInt(data, start, end, 0); break;
+            case 5: scrollX = parseInt(data, start, end, 0); break;
+            case 6: scrollY = parseInt(data, start, end, 0); break;
+            case 7: paddingLeft = parseInt(data, start, end, 0); break;
+            case 8: paddingRight = parseInt(data, start, end, 0); break;
+            case 9: paddingTop = parseInt(data, start, end, 0); break;
+            case 10: paddingBottom = parseInt(data, start, end, 0); break;
+            case 11: marginLeft = parseInt(data, start, end, Integer.MIN_VALUE); break;
+            case 12: marginRight = parseInt(data, start, end, Integer.MIN_VALUE); break;
+            case 13: marginTop = parseInt(data, start, end, Integer.MIN_VALUE); break;
+            case 14: marginBottom = parseInt(data, start, end, Integer.MIN_VALUE); break;
+            case 15: baseline = parseInt(data, start, end, 0); break;
+            case 16: willNotDraw = parseBoolean(data, start, end); break;
+            case 17: hasFocus = parseBoolean(data, start, end); break;
+        }
+    }
+
+    private static int parseInt(byte[] data, int start, int end, int defaultValue) {
+        boolean negative = start < end && data[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 10) {
+            return defaultValue;
+        }
+
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
                 return defaultValue;
             }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return defaultValue;
         }
-        return defaultValue;
+        return (int) value;
     }
 
-    public void filter(Pattern pattern) {
-        if (pattern == null || pattern.pattern().length() == 0) {
-            filtered = false;
-        } else {
-            filtered = pattern.matcher(shortName).find() || pattern.matcher(id).find();
+    private static boolean parseBoolean(byte[] data, int start, int end) {
+        return end - start == 4 &&
+                (data[start] | 0x20) == 't' && (data[start + 1] | 0x20) == 'r' &&
+                (data[start + 2] | 0x20) == 'u' && (data[start + 3] | 0x20) == 'e';
+    }
+
+    private static String decodeString(byte[] data, int start, int end) {
+        try {
+            return new String(data, start, end - start, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Highlights this view, or not, as a match of the current filter.
+     */
+    void setFiltered(boolean filtered) {
+        if (this.filtered != filtered) {
+            this.filtered = filtered;
+            if (listener != null) {
+                listener.nodeStateChanged(this);
+            }
         }
-        listener.nodeStateChanged(this);
     }
 
-    void computeIndex() {
-        index = parent == null ? 0 : parent.children.indexOf(this);
-        listener.nodeIndexChanged(this);
+    /**
+     * Combines a hash with the hash of an element of a sequence, in order.
+     */
+    static long mixHash(long hash, long value) {
+        hash = (hash ^ value) * 0x9e3779b97f4a7c15L;
+        return hash ^ (hash >>> 29);
     }
 
-    void setShortName(String shortName) {
-        this.shortName = shortName;
+    /**
+     * Returns the position of this view in the children of its parent.
+     */
+    public int getIndex() {
+        return index;
     }
 
     void setStateListener(StateListener listener) {
@@ -198,6 +398,5 @@ public class ViewNode {
 
     interface StateListener {
         void nodeStateChanged(ViewNode node);
-        void nodeIndexChanged(ViewNode node);
     }
 }
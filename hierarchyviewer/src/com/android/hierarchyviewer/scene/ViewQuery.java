@@ -0,0 +1,568 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled query over the properties of views, evaluated against a {@link ViewIndex}.
+ * <p/>A query is made of terms combined with <code>AND</code>, <code>OR</code>,
+ * <code>NOT</code> and parentheses; terms next to each other must all match. A term
+ * compares a property, named without its category, to a value:
+ * <ul>
+ * <li><code>visibility=GONE</code> and <code>mID!=NO_ID</code> compare the values,</li>
+ * <li><code>mText~hello</code> finds a case insensitive regular expression in the value,</li>
+ * <li><code>getWidth()&gt;1000</code>, and the other comparisons, compare numbers.</li>
+ * </ul>
+ * The class name of the views, with its package, is the <code>class</code> property and
+ * their id the <code>id</code> property. <code>ancestor(query)</code> matches the views
+ * inside a view matching the query and <code>descendant(query)</code> the views containing
+ * one. A term made of a single word, like <code>TextView</code>, is a regular expression
+ * found in the class name, without its package, or in the id of the views.
+ * <p/>Values containing spaces or parentheses can be quoted.
+ */
+public class ViewQuery {
+    private final String text;
+    private final Clause clause;
+
+    private ViewQuery(String text, Clause clause) {
+        this.text = text;
+        this.clause = clause;
+    }
+
+    /**
+     * Compiles a query.
+     *
+     * @throws IllegalArgumentException if the query is malformed
+     */
+    public static ViewQuery compile(String query) {
+        Parser parser = new Parser(query);
+        Clause clause = parser.parseOr();
+        parser.skipSpaces();
+        if (!parser.isAtEnd()) {
+            throw parser.error("Unexpected " + parser.text.charAt(parser.position));
+        }
+        return new ViewQuery(query, clause);
+    }
+
+    /**
+     * Returns the numbers of the views of the index matching this query.
+     */
+    BitSet evaluate(ViewIndex index) {
+        return clause.evaluate(index, null);
+    }
+
+    /**
+     * Returns the numbers of the views of the index matching this query, refining the
+     * matches of the previous query if this query extends it, for instance with another
+     * term or with a longer word.
+     *
+     * @param previousMatches the numbers of the views matching the previous query, in the
+     *        same index
+     */
+    public BitSet evaluate(ViewIndex index, ViewQuery previous, BitSet previousMatches) {
+        if (previous != null && previousMatches != null) {
+            Clause refinement = clause.refine(previous.clause);
+            if (refinement == Clause.SAME) {
+                return (BitSet) previousMatches.clone();
+            } else if (refinement != null) {
+                return refinement.evaluate(index, previousMatches);
+            }
+        }
+        return evaluate(index);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private abstract static class Clause {
+        /** Refinement of a clause identical to the previous one. */
+        static final Clause SAME = new Clause() {
+            BitSet evaluate(ViewIndex index, BitSet candidates) {
+                return (BitSet) candidates.clone();
+            }
+        };
+
+        /** Text of the clause in the query. */
+        String source;
+
+        /**
+         * Returns the views matching this clause among the candidates.
+         *
+         * @param candidates the views to consider, or null for all the views
+         */
+        abstract BitSet evaluate(ViewIndex index, BitSet candidates);
+
+        /**
+         * Returns the clause to evaluate against the matches of a previous clause to get the
+         * matches of this one, {@link #SAME} if both clauses match the same views, or null if
+         * this clause may match views the previous one did not.
+         */
+        Clause refine(Clause previous) {
+            return source.equals(previous.source) ? SAME : null;
+        }
+
+        static BitSet restrict(BitSet matches, BitSet candidates) {
+            if (candidates != null) {
+                matches.and(candidates);
+            }
+            return matches;
+        }
+    }
+
+    private static class And extends Clause {
+        private final Clause left;
+        private final Clause right;
+
+        And(Clause left, Clause right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        BitSet evaluate(ViewIndex index, BitSet candidates) {
+            BitSet result = left.evaluate(index, candidates);
+            return result.isEmpty() ? result : right.evaluate(index, result);
+        }
+
+        @Override
+        Clause refine(Clause previous) {
+            Clause refinement = super.refine(previous);
+            if (refinement != null) {
+                return refinement;
+            }
+            if (previous instanceof And) {
+                // Terms of the previous query narrowed one by one
+                Clause leftRefinement = left.refine(((And) previous).left);
+                Clause rightRefinement = right.refine(((And) previous).right);
+                if (leftRefinement != null && rightRefinement != null) {
+                    And and = new And(leftRefinement, rightRefinement);
+                    and.source = source;
+                    return and;
+                }
+            }
+            // Terms added to the previous query
+            refinement = left.refine(previous);
+            if (refinement == SAME) {
+                return right;
+            } else if (refinement != null) {
+                And and = new And(refinement, right);
+                and.source = source;
+                return and;
+            }
+            return null;
+        }
+    }
+
+    private static class Or extends Clause {
+        private final Clause left;
+        private final Clause right;
+
+        Or(Clause left, Clause right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        BitSet evaluate(ViewIndex index, BitSet candidates) {
+            BitSet result = left.evaluate(index, candidates);
+            result.or(right.evaluate(index, candidates));
+            return result;
+        }
+    }
+
+    private static class Not extends Clause {
+        private final Clause clause;
+
+        Not(Clause clause) {
+            this.clause = clause;
+        }
+
+        BitSet evaluate(ViewIndex index, BitSet candidates) {
+            BitSet result;
+            if (candidates == null) {
+                result = index.findAll();
+            } else {
+                result = (BitSet) candidates.clone();
+            }
+            result.andNot(clause.evaluate(index, candidates));
+            return result;
+        }
+    }
+
+    private static class Ancestor extends Clause {
+        private final Clause clause;
+
+        Ancestor(Clause clause) {
+            this.clause = clause;
+        }
+
+        BitSet evaluate(ViewIndex index, BitSet candidates) {
+            return restrict(index.findDescendants(clause.evaluate(index, null)), candidates);
+        }
+    }
+
+    private static class Descendant extends Clause {
+        private final Clause clause;
+
+        Descendant(Clause clause) {
+            this.clause = clause;
+        }
+
+        BitSet evaluate(ViewIndex index, BitSet candidates) {
+            return restrict(index.findAncestors(clause.evaluate(index, null)), candidates);
+        }
+    }
+
+    private static class Equal extends Clause {
+        private final String name;
+        private final String value;
+
+        Equal(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        BitSet evaluate(ViewIndex index, BitSet candidates) {
+            return restrict(index.findEqual(name, value), candidates);
+        }
+    }
+
+    private static class Match extends Clause {
+        private final String name;
+        private final Pattern pattern;
+
+        Match(String name, Pattern pattern) {
+            this.name = name;
+            this.pattern = pattern;
+        }
+
+        BitSet evaluate(ViewIndex index, BitSet candidates) {
+            return index.findMatching(name, pattern, false, candidates);
+        }
+
+        @Override
+        Clause refine(Clause previous) {
+            Clause refinement = super.refine(previous);
+            if (refinement == null && previous instanceof Match &&
+                    name.equals(((Match) previous).name) &&
+                    contains(pattern, ((Match) previous).pattern)) {
+                refinement = this;
+            }
+            return refinement;
+        }
+    }
+
+    private static class Range extends Clause {
+        private final String name;
+        private final double min;
+        private final boolean minInclusive;
+        private final double max;
+        private final boolean maxInclusive;
+
+        Range(String name, double min, boolean minInclusive, double max, boolean maxInclusive) {
+            this.name = name;
+            this.min = min;
+            this.minInclusive = minInclusive;
+            this.max = max;
+            this.maxInclusive = maxInclusive;
+        }
+
+        BitSet evaluate(ViewIndex index, BitSet candidates) {
+            return restrict(index.findInRange(name, min, minInclusive, max, maxInclusive),
+                    candidates);
+        }
+    }
+
+    /**
+     * Matches the class names, without their package, and the ids of the views.
+     */
+    private static class Name extends Clause {
+        private final Pattern pattern;
+
+        Name(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        BitSet evaluate(ViewIndex index, BitSet candidates) {
+            BitSet result = index.findMatching(ViewIndex.CLASS, pattern, true, candidates);
+            result.or(index.findMatching(ViewIndex.ID, pattern, false, candidates));
+            return result;
+        }
+
+        @Override
+        Clause refine(Clause previous) {
+            Clause refinement = super.refine(previous);
+            if (refinement == null && previous instanceof Name &&
+                    contains(pattern, ((Name) previous).pattern)) {
+                refinement = this;
+            }
+            return refinement;
+        }
+    }
+
+    /**
+     * Returns true if both patterns are plain text and the first one contains the second
+     * one, in which case any value the first one is found in also holds the second one.
+     */
+    private static boolean contains(Pattern pattern, Pattern other) {
+        String text = pattern.pattern();
+        String otherText = other.pattern();
+        return isLiteral(text) && isLiteral(otherText) &&
+                text.toLowerCase().contains(otherText.toLowerCase());
+    }
+
+    private static boolean isLiteral(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("\\^$.|?*+()[]{}".indexOf(pattern.charAt(i)) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Parser {
+        private static final String OPERATOR_CHARACTERS = "=!~<>";
+
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Clause parseOr() {
+            skipSpaces();
+            int start = position;
+            Clause clause = parseAnd();
+            while (skipKeyword("OR")) {
+                clause = setSource(new Or(clause, parseAnd()), start);
+            }
+            return clause;
+        }
+
+        private Clause parseAnd() {
+            int start = position;
+            Clause clause = parseUnary();
+            while (true) {
+                if (!skipKeyword("AND")) {
+                    // Terms next to each other must all match
+                    skipSpaces();
+                    if (isAtEnd() || text.charAt(position) == ')' || isKeyword("OR")) {
+                        return clause;
+                    }
+                }
+                clause = setSource(new And(clause, parseUnary()), start);
+            }
+        }
+
+        private Clause parseUnary() {
+            skipSpaces();
+            int start = position;
+            return setSource(parseTerm(), start);
+        }
+
+        private Clause parseTerm() {
+            if (skipKeyword("NOT")) {
+                return new Not(parseUnary());
+            }
+
+            if (isAtEnd()) {
+                throw error("Missing term");
+            }
+            if (text.charAt(position) == '(') {
+                return parseGroup();
+            }
+
+            String name = readWord();
+            if (!isAtEnd() && text.charAt(position) == '(') {
+                if ("ancestor".equals(name)) {
+                    return new Ancestor(parseGroup());
+                } else if ("descendant".equals(name)) {
+                    return new Descendant(parseGroup());
+                }
+                throw error("Unknown function " + name);
+            }
+
+            String operator = readOperator();
+            if (operator == null) {
+                return new Name(compilePattern(name));
+            }
+            String value = readValue();
+
+            if ("=".equals(operator)) {
+                return new Equal(name, value);
+            } else if ("!=".equals(operator)) {
+                Clause equal = new Equal(name, value);
+                equal.source = name + "=" + value;
+                return new Not(equal);
+            } else if ("~".equals(operator)) {
+                return new Match(name, compilePattern(value));
+            }
+
+            double number = ViewIndex.parseNumber(value);
+            if (Double.isNaN(number)) {
+                throw error("Not a number: " + value);
+            }
+            if ("<".equals(operator)) {
+                return new Range(name, Double.NEGATIVE_INFINITY, true, number, false);
+            } else if ("<=".equals(operator)) {
+                return new Range(name, Double.NEGATIVE_INFINITY, true, number, true);
+            } else if (">".equals(operator)) {
+                return new Range(name, number, false, Double.POSITIVE_INFINITY, true);
+            } else if (">=".equals(operator)) {
+                return new Range(name, number, true, Double.POSITIVE_INFINITY, true);
+            }
+            throw error("Unknown operator " + operator);
+        }
+
+        private Clause setSource(Clause clause, int start) {
+            clause.source = text.substring(start, position).trim();
+            return clause;
+        }
+
+        private Clause parseGroup() {
+            position++;
+            Clause clause = parseOr();
+            skipSpaces();
+            if (isAtEnd() || text.charAt(position) != ')') {
+                throw error("Missing )");
+            }
+            position++;
+            return clause;
+        }
+
+        /**
+         * Reads a name or a word. Names of properties read with a method, like
+         * <code>getWidth()</code>, end with parentheses.
+         */
+        private String readWord() {
+            if (text.charAt(position) == '"') {
+                return readQuoted();
+            }
+
+            int start = position;
+            while (!isAtEnd()) {
+                char c = text.charAt(position);
+                if (c == '(' && text.startsWith("()", position)) {
+                    position += 2;
+                } else if (Character.isWhitespace(c) || c == '(' || c == ')' ||
+                        OPERATOR_CHARACTERS.indexOf(c) != -1) {
+                    break;
+                } else {
+                    position++;
+                }
+            }
+            if (position == start) {
+                throw error("Unexpected " + text.charAt(position));
+            }
+            return text.substring(start, position);
+        }
+
+        private String readOperator() {
+            skipSpaces();
+            String[] operators = { "!=", "<=", ">=", "=", "~", "<", ">" };
+            for (String operator : operators) {
+                if (text.startsWith(operator, position)) {
+                    position += operator.length();
+                    return operator;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads the value of a term, up to the next space or to the parenthesis closing
+         * the enclosing group.
+         */
+        private String readValue() {
+            skipSpaces();
+            if (isAtEnd()) {
+                throw error("Missing value");
+            }
+            if (text.charAt(position) == '"') {
+                return readQuoted();
+            }
+
+            int start = position;
+            int depth = 0;
+            while (!isAtEnd()) {
+                char c = text.charAt(position);
+                if (Character.isWhitespace(c) || (c == ')' && depth == 0)) {
+                    break;
+                }
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                }
+                position++;
+            }
+            return text.substring(start, position);
+        }
+
+        private String readQuoted() {
+            StringBuilder value = new StringBuilder();
+            position++;
+            while (!isAtEnd()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                } else if (c == '\\' && !isAtEnd()) {
+                    c = text.charAt(position++);
+                }
+                value.append(c);
+            }
+            throw error("Missing \"");
+        }
+
+        private boolean skipKeyword(String keyword) {
+            skipSpaces();
+            if (isKeyword(keyword)) {
+                position += keyword.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean isKeyword(String keyword) {
+            int end = position + keyword.length();
+            return text.startsWith(keyword, position) &&
+                    (end == text.length() || Character.isWhitespace(text.charAt(end)) ||
+                            text.charAt(end) == '(');
+        }
+
+        void skipSpaces() {
+            while (!isAtEnd() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        boolean isAtEnd() {
+            return position >= text.length();
+        }
+
+        private Pattern compilePattern(String pattern) {
+            return Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + position + " in " + text);
+        }
+    }
+}
@@ -17,80 +17,90 @@
 package com.android.hierarchyviewer.scene;
 
 import com.android.ddmlib.IDevice;
-import com.android.hierarchyviewer.device.DeviceBridge;
+import com.android.ddmlib.Log;
+import com.android.hierarchyviewer.device.DeviceConnection;
+import com.android.hierarchyviewer.device.DeviceConnectionPool;
 import com.android.hierarchyviewer.device.Window;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.ArrayList;
 
 public class WindowsLoader {
+    /**
+     * Lists the windows of the device.
+     *
+     * @return the windows or null if they could not be listed
+     */
     public static Window[] loadWindows(IDevice device, int protocol, int server) {
-        Socket socket = null;
-        BufferedReader in = null;
-        BufferedWriter out = null;
+        DeviceConnection connection = null;
         System.out.println("protocol = " + protocol);
         System.out.println("version = " + server);
         try {
             ArrayList<Window> windows = new ArrayList<Window>();
 
-            socket = new Socket();
-            socket.connect(new InetSocketAddress("127.0.0.1",
-                    DeviceBridge.getDeviceLocalPort(device)));
-
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            out.write("LIST");
-            out.newLine();
-            out.flush();
+            connection = DeviceConnectionPool.send(device, "LIST");
+            BufferedReader in = connection.getReader();
 
             String line;
             while ((line = in.readLine()) != null) {
                 if ("DONE.".equalsIgnoreCase(line)) {
-                    break;
+                    return windows.toArray(new Window[windows.size()]);
                 }
 
-                int index = line.indexOf(' ');
-                if (index != -1) {
-                    String windowId = line.substring(0, index);
-
-                    int id;
-                    if (server > 2) {
-                        id = (int) Long.parseLong(windowId, 16);
-                    } else {
-                        id = Integer.parseInt(windowId, 16);
-                    }
-
-                    Window w = new Window(line.substring(index + 1), id);
+                Window w = parseWindow(line, server);
+                if (w != null) {
                     windows.add(w);
                 }
             }
 
-            return windows.toArray(new Window[windows.size()]);
+            Log.e("hierarchy", "Incomplete list of windows from " + device);
         } catch (IOException e) {
-            // Empty
+            Log.e("hierarchy", "Could not list the windows of " + device + ": " +
+                    e.getMessage());
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-                if (socket != null) {
-                    socket.close();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            DeviceConnectionPool.release(connection);
+        }
+
+        return null;
+    }
+
+    /**
+     * Parses the lines of a LIST reply, as returned by
+     * {@link com.android.hierarchyviewer.device.ViewServerPipeline#getReply(int)}.
+     *
+     * @return the windows or null if lines is null, because the reply could not be read
+     */
+    public static Window[] parseWindows(String[] lines, int server) {
+        if (lines == null) {
+            return null;
+        }
+
+        ArrayList<Window> windows = new ArrayList<Window>(lines.length);
+        for (String line : lines) {
+            Window w = parseWindow(line, server);
+            if (w != null) {
+                windows.add(w);
             }
         }
+        return windows.toArray(new Window[windows.size()]);
+    }
+
+    private static Window parseWindow(String line, int server) {
+        int index = line.indexOf(' ');
+        if (index == -1) {
+            return null;
+        }
+
+        String windowId = line.substring(0, index);
+
+        int id;
+        if (server > 2) {
+            id = (int) Long.parseLong(windowId, 16);
+        } else {
+            id = Integer.parseInt(windowId, 16);
+        }
 
-        return new Window[0];
+        return new Window(line.substring(index + 1), id);
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.ui;
+
+import com.android.hierarchyviewer.scene.ViewNode;
+
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Bounds of the views of a hierarchy, on the screen of the device, scrolled like their
+ * parents. The views below the root are held in an R-tree, packed once for a hierarchy by
+ * sorting the views in slices of the screen, so that finding the views in an area only
+ * visits the branches around it.
+ */
+class LayoutIndex {
+    // Maximum number of children of a branch of the tree
+    private static final int BRANCH_SIZE = 16;
+
+    // Views in depth-first order, the root first
+    final ViewNode[] nodes;
+    final int[] x;
+    final int[] y;
+    private final Branch tree;
+
+    LayoutIndex(ViewNode root) {
+        List<ViewNode> list = new ArrayList<ViewNode>();
+        List<int[]> origins = new ArrayList<int[]>();
+        Deque<ViewNode> stack = new ArrayDeque<ViewNode>();
+        Deque<int[]> originStack = new ArrayDeque<int[]>();
+        stack.push(root);
+        originStack.push(new int[] { 0, 0 });
+        while (!stack.isEmpty()) {
+            ViewNode node = stack.pop();
+            int[] origin = originStack.pop();
+            list.add(node);
+            origins.add(origin);
+            // Children are moved by the position of their parent, and by its scrolling
+            int childX = origin[0] + node.left - node.scrollX;
+            int childY = origin[1] + node.top - node.scrollY;
+            for (int i = node.children.size() - 1; i >= 0; i--) {
+                stack.push(node.children.get(i));
+                originStack.push(new int[] { childX, childY });
+            }
+        }
+
+        int count = list.size();
+        nodes = list.toArray(new ViewNode[count]);
+        x = new int[count];
+        y = new int[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = origins.get(i)[0] + nodes[i].left;
+            y[i] = origins.get(i)[1] + nodes[i].top;
+        }
+
+        List<Branch> leaves = new ArrayList<Branch>();
+        for (int i = 1; i < count; i++) {
+            leaves.add(new Branch(i, x[i], y[i], nodes[i].width, nodes[i].height));
+        }
+        tree = leaves.isEmpty() ? null : pack(leaves);
+    }
+
+    /**
+     * Returns the root of a tree holding branches, sorted in slices by their centers,
+     * level by level up to the root.
+     */
+    private static Branch pack(List<Branch> branches) {
+        while (branches.size() > 1) {
+            int count = branches.size();
+            int parents = (count + BRANCH_SIZE - 1) / BRANCH_SIZE;
+            int slices = (int) Math.ceil(Math.sqrt(parents));
+            int sliceSize = slices * BRANCH_SIZE;
+
+            Branch[] sorted = branches.toArray(new Branch[count]);
+            Arrays.sort(sorted, new Comparator<Branch>() {
+                public int compare(Branch a, Branch b) {
+                    return (a.left + a.right) - (b.left + b.right);
+                }
+            });
+
+            List<Branch> level = new ArrayList<Branch>(parents);
+            for (int start = 0; start < count; start += sliceSize) {
+                int end = Math.min(start + sliceSize, count);
+                Arrays.sort(sorted, start, end, new Comparator<Branch>() {
+                    public int compare(Branch a, Branch b) {
+                        return (a.top + a.bottom) - (b.top + b.bottom);
+                    }
+                });
+                for (int i = start; i < end; i += BRANCH_SIZE) {
+                    level.add(new Branch(Arrays.copyOfRange(sorted, i,
+                            Math.min(i + BRANCH_SIZE, end))));
+                }
+            }
+            branches = level;
+        }
+        return branches.get(0);
+    }
+
+    /**
+     * Returns the numbers of the views whose bounds, outline included, intersect an area,
+     * in no particular order.
+     */
+    int[] find(Rectangle area) {
+        return find(area.x, area.y, area.x + area.width, area.y + area.height);
+    }
+
+    /**
+     * Returns the numbers of the views whose bounds contain a point, in increasing order.
+     */
+    int[] findAt(int pointX, int pointY) {
+        int[] found = find(pointX, pointY, pointX + 1, pointY + 1);
+        Arrays.sort(found);
+        return found;
+    }
+
+    private int[] find(int left, int top, int right, int bottom) {
+        if (tree == null || !tree.intersects(left, top, right, bottom)) {
+            return new int[0];
+        }
+
+        int[] found = new int[16];
+        int count = 0;
+
+        Deque<Branch> stack = new ArrayDeque<Branch>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            Branch branch = stack.pop();
+            if (branch.children == null) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = branch.node;
+                continue;
+            }
+            for (Branch child : branch.children) {
+                if (child.intersects(left, top, right, bottom)) {
+                    stack.push(child);
+                }
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Bounds of a view, or of the views of a branch of the tree. Right and bottom are
+     * excluded.
+     */
+    private static class Branch {
+        final int left;
+        final int top;
+        final int right;
+        final int bottom;
+        // Number of the view of a leaf
+        final int node;
+        final Branch[] children;
+
+        Branch(int node, int x, int y, int width, int height) {
+            this.node = node;
+            left = x;
+            top = y;
+            // Outlines are drawn even around empty views
+            right = x + Math.max(width, 1);
+            bottom = y + Math.max(height, 1);
+            children = null;
+        }
+
+        Branch(Branch[] children) {
+            int minX = Integer.MAX_VALUE;
+            int minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE;
+            int maxY = Integer.MIN_VALUE;
+            for (Branch child : children) {
+                minX = Math.min(minX, child.left);
+                minY = Math.min(minY, child.top);
+                maxX = Math.max(maxX, child.right);
+                maxY = Math.max(maxY, child.bottom);
+            }
+            left = minX;
+            top = minY;
+            right = maxX;
+            bottom = maxY;
+            node = -1;
+            this.children = children;
+        }
+
+        boolean intersects(int otherLeft, int otherTop, int otherRight, int otherBottom) {
+            return left < otherRight && otherLeft < right && top < otherBottom &&
+                    otherTop < bottom;
+        }
+    }
+}
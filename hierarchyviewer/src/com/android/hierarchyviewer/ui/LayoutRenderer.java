@@ -24,12 +24,16 @@ import javax.swing.BorderFactory;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Insets;
+import java.awt.Rectangle;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
 import java.util.Set;
 
 class LayoutRenderer extends JComponent {
+    // Size of the screen when no hierarchy is loaded
     private static final int EMULATED_SCREEN_WIDTH = 320;
     private static final int EMULATED_SCREEN_HEIGHT = 480;
     private static final int SCREEN_MARGIN = 24;
@@ -38,6 +42,14 @@ class LayoutRenderer extends JComponent {
     private ViewHierarchyScene scene;
     private JComponent sceneView;
 
+    // Bounds of the views of the scene, built again when its version changes
+    private LayoutIndex index;
+    private ViewNode indexedRoot;
+    private int indexedVersion;
+    // Outlines of the views, drawn again when the index or the foreground color changes
+    private BufferedImage wireframe;
+    private LayoutIndex wireframeIndex;
+
     LayoutRenderer(ViewHierarchyScene scene, JComponent sceneView) {
         this.scene = scene;
         this.sceneView = sceneView;
@@ -57,8 +69,32 @@ class LayoutRenderer extends JComponent {
 
     @Override
     public Dimension getPreferredSize() {
-        return new Dimension(EMULATED_SCREEN_WIDTH + SCREEN_MARGIN,
-                EMULATED_SCREEN_HEIGHT + SCREEN_MARGIN);
+        ViewNode root = scene == null ? null : scene.getRoot();
+        if (root == null) {
+            return new Dimension(EMULATED_SCREEN_WIDTH + SCREEN_MARGIN,
+                    EMULATED_SCREEN_HEIGHT + SCREEN_MARGIN);
+        }
+        Insets insets = getInsets();
+        return new Dimension(root.width + SCREEN_MARGIN + insets.left + insets.right,
+                root.height + SCREEN_MARGIN + insets.top + insets.bottom);
+    }
+
+    /**
+     * Returns the bounds of the views of the scene, or null if it is empty.
+     */
+    private LayoutIndex getIndex() {
+        ViewNode root = scene == null ? null : scene.getRoot();
+        if (root == null) {
+            index = null;
+        } else if (index == null || root != indexedRoot ||
+                scene.getVersion() != indexedVersion) {
+            index = new LayoutIndex(root);
+            indexedRoot = root;
+            indexedVersion = scene.getVersion();
+            // The root may have been resized
+            revalidate();
+        }
+        return index;
     }
 
     @Override
@@ -75,19 +111,18 @@ class LayoutRenderer extends JComponent {
             return;
         }
 
-        ViewNode root = scene.getRoot();
-        if (root == null) {
+        LayoutIndex index = getIndex();
+        if (index == null) {
             return;
         }
+        ViewNode root = index.nodes[0];
 
         int x = (getWidth() - insets.left - insets.right - root.width) / 2;
         int y = (getHeight() - insets.top - insets.bottom - root.height) / 2;
         g.translate(insets.left + x, insets.top + y);
 
-        g.setColor(getForeground());
-        g.drawRect(root.left, root.top, root.width - 1, root.height - 1);
         g.clipRect(root.left - 1, root.top - 1, root.width + 1, root.height + 1);
-        drawChildren(g, root, -root.scrollX, -root.scrollY);
+        g.drawImage(getWireframe(index), root.left - 1, root.top - 1, null);
 
         Set<?> selection = scene.getSelectedObjects();
         if (selection.size() > 0) {
@@ -109,20 +144,47 @@ class LayoutRenderer extends JComponent {
         g.translate(-insets.left - x, -insets.top - y);
     }
 
-    private void drawChildren(Graphics g, ViewNode root, int x, int y) {
-        g.translate(x, y);
-        for (ViewNode node : root.children) {
-            if (!node.willNotDraw) {
-                g.drawRect(node.left, node.top, node.width - 1, node.height - 1);
+    /**
+     * Returns an image of the outlines of the views, starting a pixel above and to the left
+     * of the root.
+     */
+    private BufferedImage getWireframe(LayoutIndex index) {
+        if (wireframe == null || wireframeIndex != index) {
+            ViewNode root = index.nodes[0];
+            wireframe = new BufferedImage(root.width + 1, root.height + 1,
+                    BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2 = wireframe.createGraphics();
+            try {
+                g2.translate(1 - root.left, 1 - root.top);
+                g2.clipRect(root.left - 1, root.top - 1, root.width + 1, root.height + 1);
+                g2.setColor(getForeground());
+                g2.drawRect(root.left, root.top, root.width - 1, root.height - 1);
+                drawChildren(g2, index);
+            } finally {
+                g2.dispose();
             }
+            wireframeIndex = index;
+        }
+        return wireframe;
+    }
 
-            if (node.children.size() > 0) {
-                drawChildren(g, node,
-                        node.left - node.parent.scrollX,
-                        node.top - node.parent.scrollY);
+    /**
+     * Draws the outlines of the views below the root, in the clip only.
+     */
+    private void drawChildren(Graphics g, LayoutIndex index) {
+        Rectangle clip = g.getClipBounds();
+        for (int i : index.find(clip)) {
+            ViewNode node = index.nodes[i];
+            if (!node.willNotDraw) {
+                g.drawRect(index.x[i], index.y[i], node.width - 1, node.height - 1);
             }
         }
-        g.translate(-x, -y);
+    }
+
+    @Override
+    public void setForeground(Color foreground) {
+        wireframe = null;
+        super.setForeground(foreground);
     }
 
     public void setShowExtras(boolean showExtras) {
@@ -131,45 +193,38 @@ class LayoutRenderer extends JComponent {
     }
 
     private void selectChild(int x, int y) {
-
-        if (scene == null) {
-            return;
-        }
-
-        ViewNode root = scene.getRoot();
-        if (root == null) {
+        LayoutIndex index = getIndex();
+        if (index == null) {
             return;
         }
+        ViewNode root = index.nodes[0];
 
         Insets insets = getInsets();
 
-        int xoffset = (getWidth() - insets.left - insets.right - root.width) / 2 + insets.left + 1;
-        int yoffset = (getHeight() - insets.top - insets.bottom - root.height) / 2 + insets.top + 1;
+        int xoffset = (getWidth() - insets.left - insets.right - root.width) / 2 + insets.left;
+        int yoffset = (getHeight() - insets.top - insets.bottom - root.height) / 2 + insets.top;
 
         x -= xoffset;
         y -= yoffset;
-        if (x >= 0 && x < EMULATED_SCREEN_WIDTH && y >= 0 && y < EMULATED_SCREEN_HEIGHT) {
-            ViewNode hit = findChild(root, root, x, y);
+        if (x >= root.left && x < root.left + root.width &&
+                y >= root.top && y < root.top + root.height) {
+            ViewNode hit = findChild(index, x, y);
             scene.setFocusedObject(hit);
             sceneView.repaint();
         }
     }
 
-    private ViewNode findChild(ViewNode root, ViewNode besthit, int x, int y) {
-        ViewNode hit = besthit;
-        for (ViewNode node : root.children) {
-
-            if (node.left <= x && x < node.left + node.width &&
-                node.top <= y && y < node.top + node.height) {
-                if (node.width <= hit.width && node.height <= hit.height) {
-                    hit = node;
-                }
-            }
-
-            if (node.children.size() > 0) {
-                hit = findChild(node, hit,
-                        x - (node.left - node.parent.scrollX),
-                        y - (node.top - node.parent.scrollY));
+    /**
+     * Returns the last view, in depth-first order, containing a point and no larger than
+     * the views before it, or the root.
+     */
+    private static ViewNode findChild(LayoutIndex index, int x, int y) {
+        ViewNode hit = index.nodes[0];
+        for (int i : index.findAt(x, y)) {
+            ViewNode node = index.nodes[i];
+            if (x < index.x[i] + node.width && y < index.y[i] + node.height &&
+                    node.width <= hit.width && node.height <= hit.height) {
+                hit = node;
             }
         }
         return hit;
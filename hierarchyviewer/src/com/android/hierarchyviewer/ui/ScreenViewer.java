@@ -28,9 +28,14 @@ import java.awt.event.MouseMotionAdapter;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.imageio.ImageIO;
 import javax.swing.BorderFactory;
@@ -50,12 +55,18 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 class ScreenViewer extends JPanel implements ActionListener {
+    // Screenshots from this size, in pixels, are converted on several threads
+    private static final int PARALLEL_PIXELS = 1024 * 1024;
+    private static final int SLICES_PER_THREAD = 4;
+    private static final int MIN_ROWS = 64;
+
     private final Workspace workspace;
     private final IDevice device;
 
     private GetScreenshotTask task;
     private BufferedImage image;
-    private int[] scanline;
+    // Pixels of the image
+    private int[] pixels;
     private volatile boolean isLoading;
 
     private BufferedImage overlay;
@@ -661,6 +672,27 @@ class ScreenViewer extends JPanel implements ActionListener {
         task.execute();
     }
 
+    /**
+     * Returns the ARGB colors of the RGB565 pixels, by value of the pixels.
+     */
+    private static int[] getRgb565Colors() {
+        return Rgb565Colors.COLORS;
+    }
+
+    private static class Rgb565Colors {
+        static final int[] COLORS = new int[1 << 16];
+
+        static {
+            for (int value = 0; value < COLORS.length; value++) {
+                int r = ((value >> 11) & 0x01F) << 3;
+                int g = ((value >> 5) & 0x03F) << 2;
+                int b = ((value     ) & 0x01F) << 3;
+
+                COLORS[value] = 0xFF << 24 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+
     private class GetScreenshotTask extends SwingWorker<Boolean, Void> {
         private GetScreenshotTask() {
             workspace.beginTask();
@@ -684,17 +716,18 @@ class ScreenViewer extends JPanel implements ActionListener {
                             rawImage.height != image.getHeight()) {
                         image = new BufferedImage(rawImage.width, rawImage.height,
                                 BufferedImage.TYPE_INT_ARGB);
-                        scanline = new int[rawImage.width];
+                        // Written in place, which keeps the image from being accelerated
+                        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
                         resize = true;
                     }
 
-                    switch (rawImage.bpp) {
-                        case 16:
-                            rawImage16toARGB(rawImage);
-                            break;
-                        case 32:
-                            rawImage32toARGB(rawImage);
-                            break;
+                    if ((long) rawImage.width * rawImage.height < PARALLEL_PIXELS) {
+                        rawImageToARGB(rawImage, 0, rawImage.height);
+                    } else {
+                        ForkJoinPool pool = ForkJoinPool.commonPool();
+                        int rows = Math.max(MIN_ROWS,
+                                rawImage.height / (pool.getParallelism() * SLICES_PER_THREAD));
+                        pool.invoke(new ConvertTask(rawImage, 0, rawImage.height, rows));
                     }
                 }
             } finally {
@@ -703,7 +736,21 @@ class ScreenViewer extends JPanel implements ActionListener {
 
             return resize;
         }
-        
+
+        /**
+         * Converts rows of a screenshot into the pixels of the image.
+         */
+        private void rawImageToARGB(RawImage rawImage, int fromRow, int toRow) {
+            switch (rawImage.bpp) {
+                case 16:
+                    rawImage16toARGB(rawImage, fromRow, toRow);
+                    break;
+                case 32:
+                    rawImage32toARGB(rawImage, fromRow, toRow);
+                    break;
+            }
+        }
+
         private int getMask(int length) {
             int res = 0;
             for (int i = 0 ; i < length ; i++) {
@@ -713,9 +760,40 @@ class ScreenViewer extends JPanel implements ActionListener {
             return res;
         }
 
-        private void rawImage32toARGB(RawImage rawImage) {
+        private boolean isByte(int offset, int length, int expectedOffset) {
+            return length == 8 && offset == expectedOffset;
+        }
+
+        private void rawImage32toARGB(RawImage rawImage, int fromRow, int toRow) {
             byte[] buffer = rawImage.data;
-            int index = 0;
+            int from = fromRow * rawImage.width;
+            int to = toRow * rawImage.width;
+
+            // Pixels of one byte per channel, alpha last or ignored, are copied as
+            // little-endian ints. BGRA is already ARGB, RGBA needs red and blue swapped.
+            boolean opaque = rawImage.alpha_length == 0;
+            boolean alphaLast = opaque || isByte(rawImage.alpha_offset, rawImage.alpha_length, 24);
+            boolean bgra = alphaLast && isByte(rawImage.blue_offset, rawImage.blue_length, 0) &&
+                    isByte(rawImage.green_offset, rawImage.green_length, 8) &&
+                    isByte(rawImage.red_offset, rawImage.red_length, 16);
+            boolean rgba = alphaLast && isByte(rawImage.red_offset, rawImage.red_length, 0) &&
+                    isByte(rawImage.green_offset, rawImage.green_length, 8) &&
+                    isByte(rawImage.blue_offset, rawImage.blue_length, 16);
+            if (bgra || rgba) {
+                ByteBuffer.wrap(buffer, from * 4, (to - from) * 4)
+                        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(pixels, from, to - from);
+                int alpha = opaque ? 0xFF000000 : 0;
+                for (int i = from; i < to; i++) {
+                    int value = pixels[i];
+                    if (rgba) {
+                        value = (value & 0xFF00FF00) | (value >>> 16 & 0xFF) | (value & 0xFF) << 16;
+                    }
+                    pixels[i] = value | alpha;
+                }
+                return;
+            }
+
+            int index = from * 4;
 
             final int redOffset = rawImage.red_offset;
             final int redLength = rawImage.red_length;
@@ -730,48 +808,65 @@ class ScreenViewer extends JPanel implements ActionListener {
             final int alphaOffset = rawImage.alpha_offset;
             final int alphaMask = getMask(alphaLength);
 
-            for (int y = 0 ; y < rawImage.height ; y++) {
-                for (int x = 0 ; x < rawImage.width ; x++) {
-                    int value = buffer[index++] & 0x00FF;
-                    value |= (buffer[index++] & 0x00FF) << 8;
-                    value |= (buffer[index++] & 0x00FF) << 16;
-                    value |= (buffer[index++] & 0x00FF) << 24;
-
-                    int r = ((value >>> redOffset) & redMask) << (8 - redLength);
-                    int g = ((value >>> greenOffset) & greenMask) << (8 - greenLength);
-                    int b = ((value >>> blueOffset) & blueMask) << (8 - blueLength);
-                    int a = 0xFF;
+            for (int i = from; i < to; i++) {
+                int value = buffer[index++] & 0x00FF;
+                value |= (buffer[index++] & 0x00FF) << 8;
+                value |= (buffer[index++] & 0x00FF) << 16;
+                value |= (buffer[index++] & 0x00FF) << 24;
 
-                    if (alphaLength != 0) {
-                        a = ((value >>> alphaOffset) & alphaMask) << (8 - alphaLength);
-                    }
+                int r = ((value >>> redOffset) & redMask) << (8 - redLength);
+                int g = ((value >>> greenOffset) & greenMask) << (8 - greenLength);
+                int b = ((value >>> blueOffset) & blueMask) << (8 - blueLength);
+                int a = 0xFF;
 
-                    scanline[x] = a << 24 | r << 16 | g << 8 | b;
+                if (alphaLength != 0) {
+                    a = ((value >>> alphaOffset) & alphaMask) << (8 - alphaLength);
                 }
 
-                image.setRGB(0, y, rawImage.width, 1, scanline,
-                        0, rawImage.width);
+                pixels[i] = a << 24 | r << 16 | g << 8 | b;
             }
         }
 
-        private void rawImage16toARGB(RawImage rawImage) {
+        private void rawImage16toARGB(RawImage rawImage, int fromRow, int toRow) {
             byte[] buffer = rawImage.data;
-            int index = 0;
-
-            for (int y = 0 ; y < rawImage.height ; y++) {
-                for (int x = 0 ; x < rawImage.width ; x++) {
-                    int value = buffer[index++] & 0x00FF;
-                    value |= (buffer[index++] << 8) & 0x0FF00;
+            int from = fromRow * rawImage.width;
+            int to = toRow * rawImage.width;
+            int index = from * 2;
+
+            // RGB565, looked up by the value of the pixel
+            int[] colors = getRgb565Colors();
+            for (int i = from; i < to; i++) {
+                int value = buffer[index++] & 0x00FF;
+                value |= (buffer[index++] << 8) & 0x0FF00;
+                pixels[i] = colors[value];
+            }
+        }
 
-                    int r = ((value >> 11) & 0x01F) << 3;
-                    int g = ((value >> 5) & 0x03F) << 2;
-                    int b = ((value     ) & 0x01F) << 3;
+        /**
+         * Converts screenshots on several threads, by slices of rows.
+         */
+        private class ConvertTask extends RecursiveAction {
+            private final RawImage rawImage;
+            private final int fromRow;
+            private final int toRow;
+            private final int rows;
+
+            ConvertTask(RawImage rawImage, int fromRow, int toRow, int rows) {
+                this.rawImage = rawImage;
+                this.fromRow = fromRow;
+                this.toRow = toRow;
+                this.rows = rows;
+            }
 
-                    scanline[x] = 0xFF << 24 | r << 16 | g << 8 | b;
+            @Override
+            protected void compute() {
+                if (toRow - fromRow <= rows) {
+                    rawImageToARGB(rawImage, fromRow, toRow);
+                } else {
+                    int middle = (fromRow + toRow) >>> 1;
+                    invokeAll(new ConvertTask(rawImage, fromRow, middle, rows),
+                            new ConvertTask(rawImage, middle, toRow, rows));
                 }
-
-                image.setRGB(0, y, rawImage.width, 1, scanline,
-                        0, rawImage.width);
             }
         }
 
@@ -19,15 +19,21 @@ package com.android.hierarchyviewer.ui;
 import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
 import com.android.hierarchyviewer.device.DeviceBridge;
+import com.android.hierarchyviewer.device.DeviceConnectionPool;
+import com.android.hierarchyviewer.device.ViewServerPipeline;
 import com.android.hierarchyviewer.device.Window;
 import com.android.hierarchyviewer.laf.UnifiedContentBorder;
 import com.android.hierarchyviewer.scene.CaptureLoader;
 import com.android.hierarchyviewer.scene.ProfilesLoader;
+import com.android.hierarchyviewer.scene.SnapshotLoader;
+import com.android.hierarchyviewer.scene.TreeLayout;
 import com.android.hierarchyviewer.scene.VersionLoader;
 import com.android.hierarchyviewer.scene.ViewHierarchyLoader;
 import com.android.hierarchyviewer.scene.ViewHierarchyScene;
+import com.android.hierarchyviewer.scene.ViewIndex;
 import com.android.hierarchyviewer.scene.ViewManager;
 import com.android.hierarchyviewer.scene.ViewNode;
+import com.android.hierarchyviewer.scene.ViewQuery;
 import com.android.hierarchyviewer.scene.WindowsLoader;
 import com.android.hierarchyviewer.ui.action.CaptureLayersAction;
 import com.android.hierarchyviewer.ui.action.CaptureNodeAction;
@@ -35,9 +41,11 @@ import com.android.hierarchyviewer.ui.action.DumpDisplayListAction;
 import com.android.hierarchyviewer.ui.action.ExitAction;
 import com.android.hierarchyviewer.ui.action.InvalidateAction;
 import com.android.hierarchyviewer.ui.action.LoadGraphAction;
+import com.android.hierarchyviewer.ui.action.OpenSnapshotAction;
 import com.android.hierarchyviewer.ui.action.RefreshWindowsAction;
 import com.android.hierarchyviewer.ui.action.RequestLayoutAction;
 import com.android.hierarchyviewer.ui.action.SaveSceneAction;
+import com.android.hierarchyviewer.ui.action.SaveSnapshotAction;
 import com.android.hierarchyviewer.ui.action.ShowDevicesAction;
 import com.android.hierarchyviewer.ui.action.StartServerAction;
 import com.android.hierarchyviewer.ui.action.StopServerAction;
@@ -47,10 +55,10 @@ import com.android.hierarchyviewer.ui.model.ViewsTreeModel;
 import com.android.hierarchyviewer.ui.util.IconLoader;
 import com.android.hierarchyviewer.ui.util.PngFileFilter;
 import com.android.hierarchyviewer.ui.util.PsdFileFilter;
+import com.android.hierarchyviewer.ui.util.SnapshotFileFilter;
 import com.android.hierarchyviewer.util.OS;
 import com.android.hierarchyviewer.util.WorkerThread;
 
-import org.netbeans.api.visual.graph.layout.TreeGraphLayout;
 import org.netbeans.api.visual.model.ObjectSceneEvent;
 import org.netbeans.api.visual.model.ObjectSceneEventType;
 import org.netbeans.api.visual.model.ObjectSceneListener;
@@ -73,14 +81,16 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 import javax.imageio.ImageIO;
 import javax.swing.ActionMap;
@@ -111,6 +121,7 @@ import javax.swing.JTree;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.DocumentEvent;
@@ -120,12 +131,16 @@ import javax.swing.event.ListSelectionListener;
 import javax.swing.event.TreeSelectionEvent;
 import javax.swing.event.TreeSelectionListener;
 import javax.swing.table.DefaultTableModel;
-import javax.swing.text.BadLocationException;
-import javax.swing.text.Document;
 import javax.swing.tree.DefaultTreeCellRenderer;
 import javax.swing.tree.TreePath;
 
 public class Workspace extends JFrame {
+    // Bounds of the delay between two reloads in live mode, in milliseconds
+    private static final int LIVE_MIN_DELAY = 500;
+    private static final int LIVE_MAX_DELAY = 8000;
+    // Delay between the last change of the filter and the query, in milliseconds
+    private static final int FILTER_DELAY = 150;
+
     private JLabel viewCountLabel;
     private JSlider zoomSlider;
     private JSplitPane sideSplitter;
@@ -143,6 +158,16 @@ public class Workspace extends JFrame {
     private JComponent sceneView;
 
     private ViewHierarchyScene scene;
+    // True if the scene was opened from a snapshot rather than loaded from the device
+    private boolean sceneFromSnapshot;
+    // Device and window the scene was loaded from
+    private IDevice sceneDevice;
+    private Window sceneWindow;
+
+    // Live mode reloads the displayed window, more often when it changes
+    private JToggleButton liveButton;
+    private Timer liveTimer;
+    private int liveDelay = LIVE_MIN_DELAY;
 
     private ActionMap actionsMap;
     private JPanel mainPanel;
@@ -170,6 +195,7 @@ public class Workspace extends JFrame {
     private JToggleButton graphViewButton;
     private JToggleButton pixelPerfectViewButton;
     private JMenuItem saveMenuItem;
+    private JMenuItem saveSnapshotMenuItem;
     private JMenuItem showDevicesMenuItem;
     private JMenuItem loadMenuItem;
     private JMenuItem startMenuItem;
@@ -180,10 +206,17 @@ public class Workspace extends JFrame {
     private JLabel maxZoomLabel;
     private JTextField filterText;
     private JLabel filterLabel;
+    // Number of views matching the filter, -1 if there is none
+    private int filterMatches = -1;
+    private Timer filterTimer;
+    private FilterTask filterTask;
+    private LayoutTask layoutTask;
 
     private int protocolVersion;
     private int serverVersion;
 
+    private final List<DeviceTask<?, ?>> deviceTasks = new ArrayList<DeviceTask<?, ?>>();
+
     public Workspace() {
         super("Hierarchy Viewer");
 
@@ -203,6 +236,8 @@ public class Workspace extends JFrame {
         actionsMap.put(ShowDevicesAction.ACTION_NAME, new ShowDevicesAction(this));
         actionsMap.put(LoadGraphAction.ACTION_NAME, new LoadGraphAction(this));
         actionsMap.put(SaveSceneAction.ACTION_NAME, new SaveSceneAction(this));
+        actionsMap.put(OpenSnapshotAction.ACTION_NAME, new OpenSnapshotAction(this));
+        actionsMap.put(SaveSnapshotAction.ACTION_NAME, new SaveSnapshotAction(this));
         actionsMap.put(StartServerAction.ACTION_NAME, new StartServerAction(this));
         actionsMap.put(StopServerAction.ACTION_NAME, new StopServerAction(this));
         actionsMap.put(InvalidateAction.ACTION_NAME, new InvalidateAction(this));
@@ -229,6 +264,14 @@ public class Workspace extends JFrame {
     private JComponent buildGraphPanel() {
         sceneScroller = new JScrollPane();
         sceneScroller.setBorder(null);
+        sceneScroller.getViewport().addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                // Only the views near the visible part of the scene have widgets
+                if (scene != null) {
+                    scene.updateVisibleWidgets();
+                }
+            }
+        });
 
         mainSplitter = new JSplitPane();
         mainSplitter.setResizeWeight(1.0);
@@ -381,7 +424,11 @@ public class Workspace extends JFrame {
             }
         });
 
-        filterLabel = new JLabel("Filter by class or id:");
+        filterText.setToolTipText("<html>A class name or id, or a query on the properties " +
+                "of the views:<br>visibility=GONE AND getWidth()&gt;1000, class~TextView, " +
+                "ancestor(class~ListView)...<br>Combine terms with AND, OR, NOT and " +
+                "parentheses</html>");
+        filterLabel = new JLabel("Filter by class, id or property:");
         filterLabel.putClientProperty("JComponent.sizeVariant", "small");
         filterLabel.setBorder(BorderFactory.createEmptyBorder(0, 6, 0, 6));
 
@@ -397,7 +444,7 @@ public class Workspace extends JFrame {
         zoomSlider = new JSlider();
         zoomSlider.putClientProperty("JComponent.sizeVariant", "small");
         zoomSlider.setMaximum(200);
-        zoomSlider.setMinimum(20);
+        zoomSlider.setMinimum(2);
         zoomSlider.setValue(100);
         zoomSlider.addChangeListener(new ChangeListener() {
             public void stateChanged(ChangeEvent evt) {
@@ -479,9 +526,29 @@ public class Workspace extends JFrame {
         loadButton = new JButton();
         loadButton.setAction(actionsMap.get(LoadGraphAction.ACTION_NAME));
         loadButton.putClientProperty("JButton.buttonType", "segmentedTextured");
-        loadButton.putClientProperty("JButton.segmentPosition", "last");
+        loadButton.putClientProperty("JButton.segmentPosition", "middle");
         toolBar.add(loadButton);
 
+        liveButton = new JToggleButton("Live");
+        liveButton.setToolTipText("Reload the view hierarchy as it changes");
+        liveButton.putClientProperty("JButton.buttonType", "segmentedTextured");
+        liveButton.putClientProperty("JButton.segmentPosition", "last");
+        liveButton.setEnabled(false);
+        toggleColorOnSelect(liveButton);
+        liveButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                setLive(liveButton.isSelected());
+            }
+        });
+        toolBar.add(liveButton);
+
+        liveTimer = new Timer(LIVE_MIN_DELAY, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                reloadLive();
+            }
+        });
+        liveTimer.setRepeats(false);
+
         displayNodeButton = new JButton();
         displayNodeButton.setAction(actionsMap.get(CaptureNodeAction.ACTION_NAME));
         displayNodeButton.putClientProperty("JButton.buttonType", "segmentedTextured");
@@ -534,6 +601,8 @@ public class Workspace extends JFrame {
         JMenu serverMenu = new JMenu();
 
         saveMenuItem = new JMenuItem();
+        JMenuItem openSnapshotMenuItem = new JMenuItem();
+        saveSnapshotMenuItem = new JMenuItem();
         JMenuItem exitMenuItem = new JMenuItem();
 
         showDevicesMenuItem = new JMenuItem();
@@ -545,6 +614,13 @@ public class Workspace extends JFrame {
 
         fileMenu.setText("File");
 
+        openSnapshotMenuItem.setAction(actionsMap.get(OpenSnapshotAction.ACTION_NAME));
+        fileMenu.add(openSnapshotMenuItem);
+
+        saveSnapshotMenuItem.setAction(actionsMap.get(SaveSnapshotAction.ACTION_NAME));
+        saveSnapshotMenuItem.setEnabled(false);
+        fileMenu.add(saveSnapshotMenuItem);
+
         saveMenuItem.setAction(actionsMap.get(SaveSceneAction.ACTION_NAME));
         fileMenu.add(saveMenuItem);
 
@@ -656,6 +732,7 @@ public class Workspace extends JFrame {
         JSlider slider = (JSlider) evt.getSource();
         if (sceneView != null) {
             scene.setZoomFactor(slider.getValue() / 100.0d);
+            scene.updateVisibleWidgets();
             sceneView.repaint();
         }
     }
@@ -740,22 +817,74 @@ public class Workspace extends JFrame {
         mainSplitter.setDividerLocation(getWidth() - mainSplitter.getDividerSize() -
                 buttonsPanel.getPreferredSize().width);
 
-        captureLayersButton.setEnabled(true);        
+        captureLayersButton.setEnabled(!sceneFromSnapshot);
+        liveButton.setEnabled(!sceneFromSnapshot);
+        if (sceneFromSnapshot) {
+            setLive(false);
+        }
         saveMenuItem.setEnabled(true);
+        saveSnapshotMenuItem.setEnabled(true);
         showPixelPerfectTree();
 
         updateStatus();
         layoutScene();
     }
 
+    /**
+     * Refreshes the views showing the scene after it was updated in place. Only the
+     * subtrees that changed are laid out again.
+     */
+    private void refreshGraph(boolean structureChanged) {
+        if (structureChanged) {
+            showPixelPerfectTree();
+            updateStatus();
+        } else if (pixelPerfectTree != null) {
+            pixelPerfectTree.repaint();
+        }
+        // Boxes are resized when their labels change
+        layoutScene();
+        reapplyFilter();
+
+        ViewNode focused = (ViewNode) scene.getFocusedObject();
+        if (focused != null && scene.isNode(focused)) {
+            showProperties(focused);
+        }
+
+        scene.validate();
+        if (layoutView != null) {
+            layoutView.repaint();
+        }
+    }
+
+    /**
+     * Refreshes the views showing the scene after views were added to it.
+     */
+    private void updateGraph() {
+        showPixelPerfectTree();
+        updateStatus();
+        layoutScene();
+        scene.validate();
+        if (layoutView != null) {
+            layoutView.repaint();
+        }
+    }
+
     private void layoutScene() {
-        TreeGraphLayout<ViewNode, String> layout =
-                new TreeGraphLayout<ViewNode, String>(scene, 50, 50, 70, 30, true);
-        layout.layout(scene.getRoot());
+        if (layoutTask != null) {
+            // Superseded by the new layout
+            layoutTask.cancel(false);
+        }
+        layoutTask = new LayoutTask();
+        layoutTask.execute();
     }
 
     private void updateStatus() {
-        viewCountLabel.setText("" + scene.getNodes().size() + " views");
+        if (filterMatches == -1) {
+            viewCountLabel.setText("" + scene.getNodes().size() + " views");
+        } else {
+            viewCountLabel.setText("" + filterMatches + " of " + scene.getNodes().size() +
+                    " views");
+        }
         zoomSlider.setEnabled(scene.getNodes().size() > 0);
     }
 
@@ -903,6 +1032,9 @@ public class Workspace extends JFrame {
             hideStatusBarComponents();
 
             saveMenuItem.setEnabled(false);
+            saveSnapshotMenuItem.setEnabled(false);
+            setLive(false);
+            liveButton.setEnabled(false);
             showDevicesMenuItem.setEnabled(false);
             showDevicesButton.setEnabled(false);
             displayNodeButton.setEnabled(false);
@@ -927,6 +1059,9 @@ public class Workspace extends JFrame {
     }
 
     private void currentDeviceChanged() {
+        cancelDeviceTasks(null);
+        setLive(false);
+
         if (currentDevice == null) {
             startButton.setEnabled(false);
             startMenuItem.setEnabled(false);
@@ -934,6 +1069,7 @@ public class Workspace extends JFrame {
             stopMenuItem.setEnabled(false);
             refreshButton.setEnabled(false);
             saveMenuItem.setEnabled(false);
+            saveSnapshotMenuItem.setEnabled(false);
             loadButton.setEnabled(false);
             displayNodeButton.setEnabled(false);
             captureLayersButton.setEnabled(false);
@@ -968,6 +1104,7 @@ public class Workspace extends JFrame {
     }
 
     public void cleanupDevices() {
+        cancelDeviceTasks(null);
         for (IDevice device : devicesTableModel.getDevices()) {
             DeviceBridge.removeDeviceForward(device);
         }
@@ -991,30 +1128,36 @@ public class Workspace extends JFrame {
     }
 
     private void updateFilter(DocumentEvent e) {
-        final Document document = e.getDocument();
-        try {
-            updateFilteredNodes(document.getText(0, document.getLength()));
-        } catch (BadLocationException e1) {
-            e1.printStackTrace();
+        // The query runs once typing pauses
+        if (filterTimer == null) {
+            filterTimer = new Timer(FILTER_DELAY, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    updateFilteredNodes(filterText.getText());
+                }
+            });
+            filterTimer.setRepeats(false);
         }
+        filterTimer.restart();
     }
 
     private void updateFilteredNodes(String filterText) {
-        final ViewNode root = scene.getRoot();
-        try {
-            final Pattern pattern = Pattern.compile(filterText, Pattern.CASE_INSENSITIVE);
-            filterNodes(pattern, root);
-        } catch (PatternSyntaxException e) {
-            filterNodes(null, root);
+        if (filterTimer != null) {
+            filterTimer.stop();
         }
-        repaint();
+        if (filterTask != null) {
+            // Superseded by the new query
+            filterTask.cancel(false);
+        }
+        filterTask = new FilterTask(filterText);
+        filterTask.execute();
     }
 
-    private void filterNodes(Pattern pattern, ViewNode root) {
-        root.filter(pattern);
-
-        for (ViewNode node : root.children) {
-            filterNodes(pattern, node);
+    /**
+     * Filters the views of the scene again, after it was loaded or updated.
+     */
+    private void reapplyFilter() {
+        if (filterText.getText().length() > 0) {
+            updateFilteredNodes(filterText.getText());
         }
     }
 
@@ -1060,11 +1203,79 @@ public class Workspace extends JFrame {
     }
 
     public SwingWorker<?, ?> loadWindows() {
+        cancelDeviceTasks(LoadWindowsTask.class);
         return new LoadWindowsTask();
     }
 
     public SwingWorker<?, ?> loadGraph() {
-        return new LoadGraphTask();
+        cancelDeviceTasks(LoadGraphTask.class);
+        return new LoadGraphTask(currentDevice, currentWindow, false);
+    }
+
+    private void setLive(boolean live) {
+        liveButton.setSelected(live);
+        if (live) {
+            liveDelay = LIVE_MIN_DELAY;
+            liveTimer.setInitialDelay(liveDelay);
+            liveTimer.restart();
+        } else {
+            liveTimer.stop();
+        }
+    }
+
+    /**
+     * Loads the displayed window again and updates the scene in place. The properties of
+     * the changed views are added to the symbol table of the scene, which compacts it once
+     * it doubled, so live mode can run for any number of reloads.
+     */
+    private void reloadLive() {
+        if (!liveButton.isSelected() || sceneDevice == null) {
+            return;
+        }
+        if (hasDeviceTask(LoadGraphTask.class)) {
+            // Only one dump in flight, the running one reschedules the next reload
+            return;
+        }
+        new LoadGraphTask(sceneDevice, sceneWindow, true).execute();
+    }
+
+    /**
+     * Schedules the next reload of the live mode, sooner if the last one found changes.
+     */
+    private void scheduleLiveReload(boolean changed) {
+        if (!liveButton.isSelected()) {
+            return;
+        }
+        liveDelay = changed ? LIVE_MIN_DELAY : Math.min(liveDelay * 2, LIVE_MAX_DELAY);
+        liveTimer.setInitialDelay(liveDelay);
+        liveTimer.restart();
+    }
+
+    public SwingWorker<?, ?> saveSnapshot() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new SnapshotFileFilter());
+        int choice = chooser.showSaveDialog(sceneView);
+        if (choice == JFileChooser.APPROVE_OPTION) {
+            File file = chooser.getSelectedFile();
+            if (!file.getName().toLowerCase().endsWith(SnapshotFileFilter.EXTENSION)) {
+                file = new File(file.getPath() + SnapshotFileFilter.EXTENSION);
+            }
+            return new SaveSnapshotTask(file);
+        } else {
+            return null;
+        }
+    }
+
+    public SwingWorker<?, ?> openSnapshot() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new SnapshotFileFilter());
+        int choice = chooser.showOpenDialog(this);
+        if (choice == JFileChooser.APPROVE_OPTION) {
+            cancelDeviceTasks(LoadGraphTask.class);
+            return new OpenSnapshotTask(chooser.getSelectedFile());
+        } else {
+            return null;
+        }
     }
 
     public SwingWorker<?, ?> invalidateView() {
@@ -1092,7 +1303,85 @@ public class Workspace extends JFrame {
         }
     }
 
-    private class InvalidateTask extends SwingWorker<Object, Void> {
+    private boolean hasDeviceTask(Class<?> type) {
+        synchronized (deviceTasks) {
+            for (DeviceTask<?, ?> task : deviceTasks) {
+                if (type.isInstance(task)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cancels the running view server tasks of the specified type, or all of them if the
+     * type is null.
+     */
+    private void cancelDeviceTasks(Class<?> type) {
+        List<DeviceTask<?, ?>> tasks;
+        synchronized (deviceTasks) {
+            tasks = new ArrayList<DeviceTask<?, ?>>(deviceTasks);
+        }
+        for (DeviceTask<?, ?> task : tasks) {
+            if (type == null || type.isInstance(task)) {
+                task.cancelTask();
+            }
+        }
+    }
+
+    /**
+     * Task talking to the view server of a device. Cancelling it also closes the
+     * connections its worker thread is blocked on, so that it stops right away.
+     */
+    private abstract class DeviceTask<T, V> extends SwingWorker<T, V> {
+        private Thread worker;
+
+        DeviceTask() {
+            synchronized (deviceTasks) {
+                deviceTasks.add(this);
+            }
+            addPropertyChangeListener(new PropertyChangeListener() {
+                public void propertyChange(PropertyChangeEvent event) {
+                    if ("state".equals(event.getPropertyName()) &&
+                            event.getNewValue() == StateValue.DONE) {
+                        synchronized (deviceTasks) {
+                            deviceTasks.remove(DeviceTask.this);
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        @WorkerThread
+        protected final T doInBackground() throws Exception {
+            synchronized (this) {
+                worker = Thread.currentThread();
+            }
+            try {
+                return load();
+            } finally {
+                synchronized (this) {
+                    worker = null;
+                }
+            }
+        }
+
+        @WorkerThread
+        protected abstract T load() throws Exception;
+
+        void cancelTask() {
+            cancel(true);
+            synchronized (this) {
+                if (worker != null) {
+                    DeviceConnectionPool.cancel(worker);
+                }
+            }
+        }
+    }
+
+    private class InvalidateTask extends DeviceTask<Object, Void> {
         private String captureParams;
 
         private InvalidateTask() {
@@ -1102,7 +1391,7 @@ public class Workspace extends JFrame {
 
         @Override
         @WorkerThread
-        protected Object doInBackground() throws Exception {
+        protected Object load() throws Exception {
             ViewManager.invalidate(currentDevice, currentWindow, captureParams);
             return null;
         }
@@ -1113,7 +1402,7 @@ public class Workspace extends JFrame {
         }
     }
 
-    private class DumpDisplayListTask extends SwingWorker<Object, Void> {
+    private class DumpDisplayListTask extends DeviceTask<Object, Void> {
         private String captureParams;
 
         private DumpDisplayListTask() {
@@ -1123,7 +1412,7 @@ public class Workspace extends JFrame {
 
         @Override
         @WorkerThread
-        protected Object doInBackground() throws Exception {
+        protected Object load() throws Exception {
             ViewManager.outputDisplayList(currentDevice, currentWindow, captureParams);
             return null;
         }
@@ -1134,7 +1423,7 @@ public class Workspace extends JFrame {
         }
     }
 
-    private class RequestLayoutTask extends SwingWorker<Object, Void> {
+    private class RequestLayoutTask extends DeviceTask<Object, Void> {
         private String captureParams;
 
         private RequestLayoutTask() {
@@ -1144,7 +1433,7 @@ public class Workspace extends JFrame {
 
         @Override
         @WorkerThread
-        protected Object doInBackground() throws Exception {
+        protected Object load() throws Exception {
             ViewManager.requestLayout(currentDevice, currentWindow, captureParams);
             return null;
         }
@@ -1155,7 +1444,7 @@ public class Workspace extends JFrame {
         }
     }
     
-    private class CaptureLayersTask extends SwingWorker<Boolean, Void> {
+    private class CaptureLayersTask extends DeviceTask<Boolean, Void> {
         private File file;
 
         private CaptureLayersTask(File file) {
@@ -1165,7 +1454,7 @@ public class Workspace extends JFrame {
 
         @Override
         @WorkerThread
-        protected Boolean doInBackground() throws Exception {
+        protected Boolean load() throws Exception {
             return CaptureLoader.saveLayers(currentDevice, currentWindow, file);
         }
 
@@ -1175,7 +1464,7 @@ public class Workspace extends JFrame {
         }
     }
 
-    private class CaptureNodeTask extends SwingWorker<Image, Void> {
+    private class CaptureNodeTask extends DeviceTask<Image, Void> {
         private String captureParams;
         private ViewNode node;
 
@@ -1187,7 +1476,7 @@ public class Workspace extends JFrame {
 
         @Override
         @WorkerThread
-        protected Image doInBackground() throws Exception {
+        protected Image load() throws Exception {
             node.image = CaptureLoader.loadCapture(currentDevice, currentWindow, captureParams);
             return node.image;
         }
@@ -1195,6 +1484,9 @@ public class Workspace extends JFrame {
         @Override
         protected void done() {
             try {
+                if (isCancelled()) {
+                    return;
+                }
                 Image image = get();
                 showCaptureWindow(node, captureParams, image);
             } catch (InterruptedException e) {
@@ -1213,25 +1505,54 @@ public class Workspace extends JFrame {
         int protocolVersion;
     }
 
-    private class LoadWindowsTask extends SwingWorker<WindowsResult, Void> {
+    private class LoadWindowsTask extends DeviceTask<WindowsResult, Void> {
+        private final IDevice device;
+
         private LoadWindowsTask() {
+            device = currentDevice;
             beginTask();
         }
 
         @Override
         @WorkerThread
-        protected WindowsResult doInBackground() throws Exception {
+        protected WindowsResult load() throws Exception {
             WindowsResult r = new WindowsResult();
-            r.protocolVersion = VersionLoader.loadProtocolVersion(currentDevice);
-            r.serverVersion = VersionLoader.loadServerVersion(currentDevice);
-            r.windows = WindowsLoader.loadWindows(currentDevice,
-                    r.protocolVersion, r.serverVersion);
+            r.protocolVersion = DeviceBridge.getProtocolVersion(device);
+            r.serverVersion = DeviceBridge.getServerVersion(device);
+
+            // Only ask for the versions when they are not cached already
+            ViewServerPipeline pipeline = new ViewServerPipeline(device);
+            int protocol = -1;
+            int server = -1;
+            if (r.protocolVersion == -1 || r.serverVersion == -1) {
+                protocol = pipeline.addCommand("PROTOCOL");
+                server = pipeline.addCommand("SERVER");
+            }
+            int list = pipeline.addMultiLineCommand("LIST");
+            pipeline.execute();
+
+            if (protocol != -1) {
+                String[] reply = pipeline.getReply(protocol);
+                r.protocolVersion = VersionLoader.parseVersion(reply);
+                r.serverVersion = VersionLoader.parseVersion(pipeline.getReply(server));
+                if (reply != null && reply.length > 0) {
+                    DeviceBridge.setViewServerVersions(device,
+                            r.protocolVersion, r.serverVersion);
+                }
+            }
+            r.windows = WindowsLoader.parseWindows(pipeline.getReply(list), r.serverVersion);
+            if (r.windows == null) {
+                throw new IOException("Could not list the windows of " + device);
+            }
             return r;
         }
 
         @Override
         protected void done() {
             try {
+                if (isCancelled()) {
+                    return;
+                }
                 WindowsResult result = get();
                 protocolVersion = result.protocolVersion;
                 serverVersion = result.serverVersion;
@@ -1262,7 +1583,7 @@ public class Workspace extends JFrame {
 
         @Override
         protected void done() {
-            new LoadWindowsTask().execute();
+            loadWindows().execute();
             windowsTableModel.setVisible(true);
             checkForServerOnCurrentDevice();
             endTask();
@@ -1290,34 +1611,180 @@ public class Workspace extends JFrame {
         }
     }
 
-    private class LoadGraphTask extends SwingWorker<double[], Void> {
-        public LoadGraphTask() {
-            beginTask();
+    /**
+     * Loads the views of a window. Views are added to the scene, and displayed, as they are
+     * read from the device, while the profiles are loaded concurrently. Live reloads skip
+     * the profiles and are silent.
+     */
+    private class LoadGraphTask extends DeviceTask<double[], ViewHierarchyLoader.Batch> {
+        private final IDevice device;
+        private final Window window;
+        private final boolean live;
+        private volatile LoadProfilesTask profilesTask;
+        private ViewHierarchyScene loadedScene;
+
+        // When the displayed window is loaded again, its scene is updated in place with
+        // the new tree rather than rebuilt
+        private final ViewHierarchyScene refreshedScene;
+        private ViewNode refreshedRoot;
+
+        // Views of a new scene, in the order of the dump, indexed once they are all loaded
+        private final List<ViewNode> loadedNodes = new ArrayList<ViewNode>();
+        private volatile ViewIndex loadedIndex;
+        // Numbers of views added to the new scene, and shown when the graph was last updated
+        private int addedNodes;
+        private int shownNodes;
+
+        public LoadGraphTask(IDevice device, Window window, boolean live) {
+            this.device = device;
+            this.window = window;
+            this.live = live;
+            refreshedScene = scene != null && !sceneFromSnapshot && device == sceneDevice &&
+                    sceneWindow != null && window.getHashCode() == sceneWindow.getHashCode() ?
+                    scene : null;
+            if (!live) {
+                beginTask();
+            }
         }
 
         @Override
         @WorkerThread
-        protected double[] doInBackground() {
-            scene = ViewHierarchyLoader.loadScene(currentDevice, currentWindow);
-            return ProfilesLoader.loadProfiles(currentDevice, currentWindow,
-                    scene.getRoot().toString());
+        protected double[] load() throws Exception {
+            ViewHierarchyLoader.LoadListener listener = new ViewHierarchyLoader.LoadListener() {
+                public void nodesLoaded(ViewHierarchyLoader.Batch batch) {
+                    if (profilesTask == null && !live) {
+                        // The first batch holds the root, which names the profiled view
+                        profilesTask = new LoadProfilesTask(device, window,
+                                batch.getNodes().get(0).toString());
+                        profilesTask.execute();
+                    }
+                    if (refreshedScene == null) {
+                        loadedNodes.addAll(batch.getNodes());
+                        publish(batch);
+                    }
+                }
+            };
+
+            ViewNode root;
+            if (refreshedScene != null) {
+                root = refreshedRoot = ViewHierarchyLoader.loadTree(device, window, listener);
+            } else {
+                root = ViewHierarchyLoader.loadHierarchy(device, window, listener);
+            }
+            if (root == null) {
+                throw new IOException("Could not load the views of " + window);
+            }
+            if (refreshedScene == null) {
+                loadedIndex = new ViewIndex(loadedNodes);
+            }
+            return profilesTask == null ? null : profilesTask.get();
+        }
+
+        @Override
+        protected void process(List<ViewHierarchyLoader.Batch> batches) {
+            if (isCancelled()) {
+                return;
+            }
+
+            boolean created = loadedScene == null;
+            if (created) {
+                loadedScene = new ViewHierarchyScene();
+            }
+            for (ViewHierarchyLoader.Batch batch : batches) {
+                batch.addTo(loadedScene);
+                addedNodes += batch.getNodes().size();
+            }
+
+            if (created) {
+                scene = loadedScene;
+                sceneFromSnapshot = false;
+                sceneDevice = device;
+                sceneWindow = window;
+                createGraph(scene);
+                shownNodes = addedNodes;
+            } else if (loadedScene == scene) {
+                // Showing the whole scene again takes longer as it grows, so it is only done
+                // once it grew by half, which keeps the total cost of a load linear
+                if (isDone() || addedNodes >= shownNodes + shownNodes / 2) {
+                    updateGraph();
+                    shownNodes = addedNodes;
+                } else {
+                    updateStatus();
+                }
+            }
+        }
+
+        @Override
+        void cancelTask() {
+            super.cancelTask();
+            if (profilesTask != null) {
+                profilesTask.cancelTask();
+            }
         }
 
         @Override
         protected void done() {
+            boolean changed = false;
             try {
-                createGraph(scene);
-                updateProfiles(get());
+                if (isCancelled()) {
+                    return;
+                }
+                double[] profiles = get();
+                if (refreshedScene != null) {
+                    if (refreshedScene != scene) {
+                        // Another scene was displayed in the meantime
+                        return;
+                    }
+                    loadedScene = scene;
+                    changed = !scene.isSameHierarchy(refreshedRoot);
+                    if (changed) {
+                        refreshGraph(scene.update(refreshedRoot) > 0);
+                    }
+                } else {
+                    loadedScene.setIndex(loadedIndex);
+                    if (loadedScene == scene && shownNodes != addedNodes) {
+                        updateGraph();
+                        shownNodes = addedNodes;
+                    }
+                    reapplyFilter();
+                }
+                if (profiles != null) {
+                    loadedScene.setProfiles(profiles);
+                    updateProfiles(profiles);
+                }
             } catch (InterruptedException e) {
                 e.printStackTrace();
             } catch (ExecutionException e) {
                 e.printStackTrace();
             } finally {
-                endTask();
+                if (!live) {
+                    endTask();
+                }
+                if (!isCancelled()) {
+                    scheduleLiveReload(changed);
+                }
             }
         }
     }
 
+    private class LoadProfilesTask extends DeviceTask<double[], Void> {
+        private final IDevice device;
+        private final Window window;
+        private final String params;
+
+        LoadProfilesTask(IDevice device, Window window, String params) {
+            this.device = device;
+            this.window = window;
+            this.params = params;
+        }
+
+        @Override
+        @WorkerThread
+        protected double[] load() {
+            return ProfilesLoader.loadProfiles(device, window, params);
+        }
+    }
+
     private class SaveSceneTask extends SwingWorker<Object, Void> {
         private File file;
 
@@ -1352,6 +1819,191 @@ public class Workspace extends JFrame {
         }
     }
 
+    private class SaveSnapshotTask extends SwingWorker<Boolean, Void> {
+        private final ViewHierarchyScene savedScene;
+        private final File file;
+
+        private SaveSnapshotTask(File file) {
+            this.savedScene = scene;
+            this.file = file;
+            beginTask();
+        }
+
+        @Override
+        @WorkerThread
+        protected Boolean doInBackground() {
+            return SnapshotLoader.saveSnapshot(savedScene, file);
+        }
+
+        @Override
+        protected void done() {
+            endTask();
+        }
+    }
+
+    private class OpenSnapshotTask extends SwingWorker<ViewHierarchyScene, Void> {
+        private final File file;
+
+        private OpenSnapshotTask(File file) {
+            this.file = file;
+            beginTask();
+        }
+
+        @Override
+        @WorkerThread
+        protected ViewHierarchyScene doInBackground() throws IOException {
+            ViewHierarchyScene scene = SnapshotLoader.loadSnapshot(file);
+            // Indexed before the scene is displayed, to filter it right away
+            scene.getIndex();
+            return scene;
+        }
+
+        @Override
+        protected void done() {
+            try {
+                ViewHierarchyScene loadedScene = get();
+                scene = loadedScene;
+                sceneFromSnapshot = true;
+                sceneDevice = null;
+                sceneWindow = null;
+                createGraph(scene);
+                reapplyFilter();
+                if (scene.getProfiles() != null) {
+                    updateProfiles(scene.getProfiles());
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            } finally {
+                endTask();
+            }
+        }
+    }
+
+    /**
+     * Evaluates the filter against the index of the scene, which is built first if the
+     * views changed. The views are only highlighted if the scene did not change meanwhile.
+     */
+    private class FilterTask extends SwingWorker<BitSet, Void> {
+        private final String text;
+        private final ViewHierarchyScene filteredScene;
+        private final int version;
+        private final ViewQuery previous;
+        private final BitSet previousMatches;
+
+        private ViewIndex index;
+        private final ViewIndex.Views views;
+        private ViewQuery query;
+
+        private FilterTask(String text) {
+            this.text = text;
+            filteredScene = scene;
+            version = scene.getVersion();
+            if (scene.hasIndex()) {
+                index = scene.getIndex();
+                views = null;
+            } else {
+                // The views may be updated while they are indexed
+                views = new ViewIndex.Views(scene.listNodes());
+            }
+            previous = scene.getFilter();
+            previousMatches = scene.getFilterMatches();
+        }
+
+        @Override
+        @WorkerThread
+        protected BitSet doInBackground() {
+            if (index == null) {
+                index = new ViewIndex(views);
+            }
+            if (text.trim().length() > 0) {
+                try {
+                    query = ViewQuery.compile(text);
+                } catch (IllegalArgumentException e) {
+                    // The query is still being typed, nothing matches
+                    return new BitSet();
+                }
+                return query.evaluate(index, previous, previousMatches);
+            }
+            return new BitSet();
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() || filteredScene != scene ||
+                    version != filteredScene.getVersion()) {
+                // Superseded by another query, or the scene will be filtered again
+                return;
+            }
+            try {
+                BitSet matches = get();
+                if (!filteredScene.hasIndex() || filteredScene.getIndex() != index) {
+                    filteredScene.setIndex(index);
+                }
+                filteredScene.setFilter(query, matches);
+                filterMatches = query == null ? -1 : matches.cardinality();
+                updateStatus();
+                filteredScene.validate();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            } finally {
+                if (filterTask == this) {
+                    filterTask = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Lays out the graph of the scene. The boxes are only moved if the scene did not change
+     * meanwhile, in which case it will be laid out again.
+     */
+    private class LayoutTask extends SwingWorker<Object, Void> {
+        private final ViewHierarchyScene laidOutScene;
+        private final TreeLayout layout;
+
+        private LayoutTask() {
+            laidOutScene = scene;
+            layout = scene.createLayout();
+        }
+
+        @Override
+        @WorkerThread
+        protected Object doInBackground() {
+            if (layout != null) {
+                layout.run();
+            }
+            return null;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() || laidOutScene != scene) {
+                return;
+            }
+            try {
+                get();
+                if (layout != null && laidOutScene.applyLayout(layout)) {
+                    laidOutScene.validate();
+                    if (layoutView != null) {
+                        layoutView.repaint();
+                    }
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            } finally {
+                if (layoutTask == this) {
+                    layoutTask = null;
+                }
+            }
+        }
+    }
+
     private class SceneFocusListener implements ObjectSceneListener {
 
         public void objectAdded(ObjectSceneEvent arg0, Object arg1) {
@@ -1375,10 +2027,11 @@ public class Workspace extends JFrame {
         }
 
         public void focusChanged(ObjectSceneEvent e, Object oldFocus, Object newFocus) {
-            displayNodeButton.setEnabled(true);
-            invalidateButton.setEnabled(true);
-            dumpDisplayListButton.setEnabled(true);
-            requestLayoutButton.setEnabled(true);
+            // The views of a snapshot may not exist on the device anymore
+            displayNodeButton.setEnabled(!sceneFromSnapshot);
+            invalidateButton.setEnabled(!sceneFromSnapshot);
+            dumpDisplayListButton.setEnabled(!sceneFromSnapshot);
+            requestLayoutButton.setEnabled(!sceneFromSnapshot);
 
             Set<Object> selection = new HashSet<Object>();
             selection.add(newFocus);
@@ -1392,7 +2045,7 @@ public class Workspace extends JFrame {
     private class NodeClickListener extends MouseAdapter {
         @Override
         public void mouseClicked(MouseEvent e) {
-            if (e.getClickCount() == 2) {
+            if (e.getClickCount() == 2 && !sceneFromSnapshot) {
                 showNodeCapture().execute();
             }
         }
@@ -1402,7 +2055,8 @@ public class Workspace extends JFrame {
         public void mouseWheelMoved(MouseWheelEvent e) {
             if (zoomSlider != null) {
                 int val = zoomSlider.getValue();
-                val -= e.getWheelRotation() * 10;
+                // Finer steps when zoomed out on large hierarchies
+                val -= e.getWheelRotation() * (val > 20 ? 10 : 2);
                 zoomSlider.setValue(val);
             }
         }
@@ -1438,6 +2092,7 @@ public class Workspace extends JFrame {
 
         @WorkerThread
         public void deviceConnected(final IDevice device) {
+            DeviceBridge.invalidateViewServerState(device);
             DeviceBridge.setupDeviceForward(device);
 
             SwingUtilities.invokeLater(new Runnable() {
@@ -1449,6 +2104,7 @@ public class Workspace extends JFrame {
 
         @WorkerThread
         public void deviceDisconnected(final IDevice device) {
+            DeviceBridge.invalidateViewServerState(device);
             DeviceBridge.removeDeviceForward(device);
 
             SwingUtilities.invokeLater(new Runnable() {
@@ -1478,6 +2134,10 @@ public class Workspace extends JFrame {
 
         @WorkerThread
         public void deviceChanged(IDevice device, int changeMask) {
+            if ((changeMask & IDevice.CHANGE_STATE) != 0) {
+                DeviceBridge.invalidateViewServerState(device);
+            }
+
             if ((changeMask & IDevice.CHANGE_STATE) != 0 &&
                     device.isOnline()) {
                 // if the device state changed and it's now online, we set up its port forwarding.
@@ -27,7 +27,7 @@ public class PropertiesTableModel extends DefaultTableModel {
     private List<ViewNode.Property> privateProperties = new ArrayList<ViewNode.Property>();
 
     public PropertiesTableModel(ViewNode node) {
-        properties = node.properties;
+        properties = node.getProperties();
         loadPrivateProperties(node);
     }
 
@@ -50,8 +50,8 @@ public class ViewsTreeModel implements TreeModel {
     }
 
     public int getIndexOfChild(Object parent, Object child) {
-        //noinspection SuspiciousMethodCalls
-        return ((ViewNode) parent).children.indexOf(child);
+        ViewNode node = (ViewNode) child;
+        return node.parent == parent ? node.getIndex() : -1;
     }
 
     public void addTreeModelListener(TreeModelListener treeModelListener) {
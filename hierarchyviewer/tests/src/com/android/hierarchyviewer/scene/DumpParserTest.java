@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class DumpParserTest {
+    @Test
+    public void countsValueLengthsInUtf16Characters() throws IOException {
+        // 2 bytes in UTF-8 for the accent, 4 bytes and a surrogate pair for the emoji
+        String text = "Caf\u00e9 \ud83d\ude00!";
+        DumpParser parser = createParser("android.widget.TextView@41 " +
+                property("text:mText", text) + " " + property("mID", "id/title") + "\n");
+
+        ViewNode node = parser.nextNode();
+        assertEquals(text, node.getProperty("mText").value);
+        assertEquals("id/title", node.getProperty("mID").value);
+        assertEquals("id/title", node.id);
+        assertNull(parser.nextNode());
+    }
+
+    @Test
+    public void readsValuesAcrossBufferRefills() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50 * 1000; i++) {
+            text.append(i % 2 == 0 ? "\u00e9" : "\ud83d\ude00");
+        }
+        String dump = "android.widget.TextView@41 " + property("mText", text.toString()) +
+                " " + property("mID", "id/title") + "\n android.view.View@42\n";
+
+        for (InputStream in : new InputStream[] {
+                new ByteArrayInputStream(encode(dump)), new TrickleInputStream(encode(dump)) }) {
+            DumpParser parser = new DumpParser(in);
+            ViewNode node = parser.nextNode();
+            assertEquals(text.toString(), node.getProperty("mText").value);
+            assertEquals("id/title", node.getProperty("mID").value);
+            assertEquals("android.view.View@42", parser.nextNode().name);
+            assertEquals(1, parser.getDepth());
+        }
+    }
+
+    @Test
+    public void keepsLineBreaksInsideValues() throws IOException {
+        String text = "first line\n second line\r\nmID=3,abc";
+        DumpParser parser = createParser("android.widget.LinearLayout@1 " +
+                property("mText", text) + " " + property("mID", "NO_ID") + "\n" +
+                " android.widget.TextView@2 " + property("mText", "\n") + "\n");
+
+        ViewNode node = parser.nextNode();
+        assertEquals(0, parser.getDepth());
+        assertEquals(text, node.getProperty("mText").value);
+        assertEquals("NO_ID", node.getProperty("mID").value);
+
+        node = parser.nextNode();
+        assertEquals(1, parser.getDepth());
+        assertEquals("android.widget.TextView@2", node.name);
+        assertEquals("\n", node.getProperty("mText").value);
+        assertNull(parser.nextNode());
+    }
+
+    @Test
+    public void sharesSymbolsBetweenViews() throws IOException {
+        DumpParser parser = createParser(
+                "android.view.View@1 " + property("mID", "NO_ID") + "\n" +
+                " android.view.View@2 " + property("mID", "NO_ID") + "\n");
+
+        ViewNode first = parser.nextNode();
+        ViewNode second = parser.nextNode();
+        assertEquals(first.getPropertyValues()[0], second.getPropertyValues()[0]);
+        assertEquals(2, parser.getSymbols().size());
+    }
+
+    @Test
+    public void failsOnTruncatedReplies() {
+        String node = "android.widget.TextView@41 " + property("mText", "Hello") + "\n";
+        // Cut within the name, the length and the value of the property
+        for (int end : new int[] { 30, 33, 35, 38 }) {
+            DumpParser parser = createParser(node.substring(0, end));
+            try {
+                parser.nextNode();
+                fail("Parsed " + node.substring(0, end));
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Truncated property"));
+            }
+        }
+    }
+
+    @Test
+    public void failsOnMalformedProperties() {
+        String[] dumps = {
+            "android.view.View@1 mText=x,Hello\n",
+            "android.view.View@1 mText\n",
+            "android.view.View@1 mText 5,Hello\n",
+        };
+        for (String dump : dumps) {
+            try {
+                createParser(dump).nextNode();
+                fail("Parsed " + dump);
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Malformed property"));
+            }
+        }
+    }
+
+    @Test
+    public void stopsAtDoneTerminator() throws IOException {
+        DumpParser parser = createParser("android.view.View@1\n" +
+                " android.widget.TextView@2 " + property("mText", "DONE.") + "\n" +
+                "\n" +
+                "DONE.\n" +
+                "android.view.View@3\n");
+
+        assertEquals("android.view.View@1", parser.nextNode().name);
+        assertEquals("DONE.", parser.nextNode().getProperty("mText").value);
+        assertFalse(parser.isDone());
+        assertNull(parser.nextNode());
+        assertTrue(parser.isDone());
+    }
+
+    @Test
+    public void endsWithoutDoneTerminator() throws IOException {
+        DumpParser parser = createParser("android.view.View@1\n android.view.View@2");
+
+        assertEquals("android.view.View@1", parser.nextNode().name);
+        assertEquals("android.view.View@2", parser.nextNode().name);
+        assertNull(parser.nextNode());
+        assertFalse(parser.isDone());
+    }
+
+    @Test
+    public void parsesRangeOfArray() throws IOException {
+        byte[] data = encode("DONE.\nandroid.view.View@1 " + property("mID", "NO_ID") +
+                "\nandroid.view.View@2\n");
+        int start = "DONE.\n".length();
+        int end = data.length - "android.view.View@2\n".length();
+        DumpParser parser = new DumpParser(data, start, end);
+
+        assertEquals("NO_ID", parser.nextNode().getProperty("mID").value);
+        assertNull(parser.nextNode());
+        assertFalse(parser.isDone());
+    }
+
+    /**
+     * Formats a property the way the view server does, with the length of its value in
+     * UTF-16 characters.
+     */
+    private static String property(String name, String value) {
+        return name + "=" + value.length() + "," + value;
+    }
+
+    private static DumpParser createParser(String dump) {
+        return new DumpParser(new ByteArrayInputStream(encode(dump)));
+    }
+
+    private static byte[] encode(String text) {
+        try {
+            return text.getBytes("utf-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a single byte from each read, like a slow connection.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        TrickleInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            return super.read(buffer, offset, Math.min(length, 1));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SymbolTableTest {
+    @Test
+    public void internsEachSymbolOnce() {
+        SymbolTable table = new SymbolTable();
+        int visible = table.intern("VISIBLE");
+        int gone = table.intern("GONE");
+        int empty = table.intern("");
+        int text = table.intern("Caf\u00e9 \ud83d\ude00");
+
+        assertEquals(visible, table.intern("VISIBLE"));
+        assertEquals(gone, table.intern("GONE"));
+        assertEquals(empty, table.intern(""));
+        assertEquals(text, table.intern("Caf\u00e9 \ud83d\ude00"));
+        assertEquals(4, table.size());
+
+        assertEquals("VISIBLE", table.get(visible));
+        assertEquals("", table.get(empty));
+        assertEquals("Caf\u00e9 \ud83d\ude00", table.get(text));
+    }
+
+    @Test
+    public void findsWithoutAdding() {
+        SymbolTable table = new SymbolTable();
+        int id = table.intern("NO_ID");
+
+        assertEquals(id, table.find("NO_ID"));
+        assertEquals(-1, table.find("NO_ID "));
+        assertEquals(-1, table.find("INVISIBLE"));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        SymbolTable table = new SymbolTable();
+        for (int i = 0; i < 100 * 1000; i++) {
+            assertEquals(i, table.intern(symbol(i)));
+        }
+        for (int i = 0; i < 100 * 1000; i++) {
+            assertEquals(symbol(i), table.get(i));
+            assertEquals(i, table.find(symbol(i)));
+        }
+    }
+
+    @Test
+    public void mergesTables() {
+        SymbolTable table = new SymbolTable();
+        table.intern("true");
+        table.intern("false");
+        SymbolTable other = new SymbolTable();
+        other.intern("0");
+        other.intern("false");
+        other.intern("true");
+
+        int[] ids = table.merge(other);
+        assertEquals(3, ids.length);
+        assertEquals(3, table.size());
+        for (int id = 0; id < ids.length; id++) {
+            assertEquals(other.get(id), table.get(ids[id]));
+            assertEquals(other.getHash(id), table.getHash(ids[id]));
+        }
+        assertEquals(table.find("true"), ids[2]);
+        assertEquals(table.find("false"), ids[1]);
+        assertEquals(2, ids[0]);
+
+        // Merging again adds nothing
+        assertEquals(ids[0], table.merge(other)[0]);
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    public void readsWrittenTable() throws IOException {
+        SymbolTable table = new SymbolTable();
+        for (int i = 0; i < 5000; i++) {
+            table.intern(symbol(i));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.write(new DataOutputStream(bytes));
+        SymbolTable read = new SymbolTable(ByteBuffer.wrap(bytes.toByteArray()));
+
+        assertEquals(table.size(), read.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(symbol(i), read.get(i));
+            assertEquals(table.getHash(i), read.getHash(i));
+            assertEquals(i, read.find(symbol(i)));
+        }
+        assertEquals(5000, read.intern("added"));
+    }
+
+    @Test
+    public void readsWhileAppending() throws InterruptedException {
+        final int count = 200 * 1000;
+        final SymbolTable table = new SymbolTable();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    table.intern(symbol(i));
+                    // Symbols already stored, that readers may look up
+                    table.intern(symbol(i / 2));
+                }
+            }
+        });
+
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            final Random random = new Random(r);
+            readers[r] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        int size;
+                        do {
+                            size = table.size();
+                            if (size == 0) {
+                                continue;
+                            }
+                            int id = random.nextInt(size);
+                            assertEquals(symbol(id), table.get(id));
+                            assertEquals(id, table.find(symbol(id)));
+                        } while (size < count);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(count, table.size());
+    }
+
+    @Test
+    public void rejectsMalformedTables() {
+        byte[][] tables = {
+            // Too short for the header
+            { 0, 0, 0, 1 },
+            // Negative count
+            { (byte) 0xff, 0, 0, 0, 0, 0, 0, 0 },
+            // Offsets and data past the end
+            { 0, 0, 0, 2, 0, 0, 0, 4, 0, 0, 0, 0 },
+            // Second symbol starting before the first one
+            { 0, 0, 0, 2, 0, 0, 0, 2, 0, 0, 0, 1, 0, 0, 0, 0, 'a', 'b' },
+            // First symbol starting past the data
+            { 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 'a' },
+        };
+        for (byte[] bytes : tables) {
+            try {
+                new SymbolTable(ByteBuffer.wrap(bytes));
+                fail("Read a malformed table");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static String symbol(int i) {
+        return "symbol " + i;
+    }
+}
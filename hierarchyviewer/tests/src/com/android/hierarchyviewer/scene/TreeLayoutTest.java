@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class TreeLayoutTest {
+    private static final Font TITLE_FONT = new Font(Font.DIALOG, Font.PLAIN, 12);
+    private static final Font DETAIL_FONT = new Font(Font.DIALOG, Font.PLAIN, 10);
+
+    private static final int MAX_ROUNDING_DRIFT = 4;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void stacksLeavesOfOneParent() {
+        ViewNode root = createNode(null, "android.widget.LinearLayout");
+        for (int i = 0; i < 3; i++) {
+            createNode(root, "android.widget.TextView");
+        }
+        TreeLayout layout = layout(listSubtree(root));
+
+        int height = layout.height[1];
+        assertEquals(TreeLayout.MARGIN, layout.y[1]);
+        assertEquals(TreeLayout.MARGIN + height + TreeLayout.SIBLING_GAP, layout.y[2]);
+        assertEquals(TreeLayout.MARGIN + 2 * (height + TreeLayout.SIBLING_GAP), layout.y[3]);
+        // The parent is centered on its children
+        assertEquals(layout.y[2], layout.y[0]);
+        assertEquals(TreeLayout.MARGIN, layout.x[0]);
+        assertEquals(TreeLayout.MARGIN + layout.width[0] + TreeLayout.LEVEL_GAP, layout.x[1]);
+    }
+
+    @Test
+    public void packsSubtreesAlongTheirContours() {
+        // A deep subtree followed by a leaf, which fits next to the deep levels
+        ViewNode root = createNode(null, "android.widget.FrameLayout");
+        ViewNode deep = createNode(root, "android.widget.LinearLayout");
+        for (int i = 0; i < 4; i++) {
+            createNode(deep, "android.widget.TextView");
+        }
+        createNode(root, "android.view.View");
+        TreeLayout layout = layout(listSubtree(root));
+
+        int leaf = 6;
+        int bottom = layout.y[1] + layout.height[1];
+        assertEquals(bottom + TreeLayout.SIBLING_GAP, layout.y[leaf]);
+        assertTrue(layout.y[leaf] < layout.y[5]);
+        assertLaidOut(listSubtree(root), layout);
+    }
+
+    @Test
+    public void laysOutRandomTrees() {
+        for (int i = 0; i < 20; i++) {
+            List<ViewNode> nodes = listSubtree(createTree(300));
+            assertLaidOut(nodes, layout(nodes));
+        }
+    }
+
+    @Test
+    public void reusesUnchangedSubtrees() {
+        ViewNode root = createTree(500);
+        List<ViewNode> nodes = listSubtree(root);
+        apply(layout(nodes));
+
+        // Nothing changed
+        TreeLayout layout = layout(nodes);
+        assertSameLayout(layout, relayout(nodes));
+        apply(layout);
+
+        for (int i = 0; i < 10; i++) {
+            // Adds a view somewhere, which changes the hashes of its ancestors
+            ViewNode parent = nodes.get(random.nextInt(nodes.size()));
+            createNode(parent, "android.widget.ImageView");
+            for (ViewNode node = parent; node != null; node = node.parent) {
+                node.treeHash = random.nextLong();
+            }
+            nodes = listSubtree(root);
+
+            layout = layout(nodes);
+            assertLaidOut(nodes, layout);
+            assertSimilarLayout(relayout(nodes), layout);
+            apply(layout);
+        }
+    }
+
+    @Test
+    public void keepsOffsetsOfUnchangedSubtrees() {
+        ViewNode root = createTree(200);
+        List<ViewNode> nodes = listSubtree(root);
+        apply(layout(nodes));
+
+        // The views of an unchanged subtree keep their positions relative to its root
+        ViewNode changed = root.children.get(0);
+        changed.treeHash = random.nextLong();
+        root.treeHash = random.nextLong();
+        TreeLayout layout = layout(nodes);
+        for (int i = 0; i < nodes.size(); i++) {
+            ViewNode node = nodes.get(i);
+            if (node.parent != null && node.parent != root && !isInside(node, changed)) {
+                assertEquals(node.layoutOffset, layout.offsets[i]);
+                assertEquals(node.box.width, layout.width[i]);
+            }
+        }
+        assertLaidOut(nodes, layout);
+    }
+
+    /**
+     * Checks that boxes of the same depth do not overlap, that parents are centered on
+     * their children and that subtree boxes hold the boxes of their views.
+     */
+    private static void assertLaidOut(List<ViewNode> nodes, TreeLayout layout) {
+        int size = nodes.size();
+        int[] depths = new int[size];
+        int top = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            ViewNode node = nodes.get(i);
+            if (node.parent != null) {
+                int parent = nodes.indexOf(node.parent);
+                depths[i] = depths[parent] + 1;
+                assertTrue(layout.x[i] >= layout.x[parent] + layout.width[parent] +
+                        TreeLayout.LEVEL_GAP);
+                assertEquals(center(layout, i) - center(layout, parent), layout.offsets[i]);
+            }
+            top = Math.min(top, layout.y[i]);
+        }
+        assertEquals(TreeLayout.MARGIN, top);
+
+        // Views of each depth follow each other from top to bottom, in depth-first order
+        int[] bottoms = new int[size];
+        int[] lastAtDepth = new int[size];
+        Arrays.fill(lastAtDepth, -1);
+        for (int i = 0; i < size; i++) {
+            int previous = lastAtDepth[depths[i]];
+            if (previous != -1) {
+                // Centers are rounded to whole pixels
+                assertTrue("View " + i + " overlaps view " + previous,
+                        layout.y[i] - bottoms[previous] >= TreeLayout.SIBLING_GAP - 1);
+            }
+            bottoms[i] = layout.y[i] + layout.height[i];
+            lastAtDepth[depths[i]] = i;
+        }
+
+        for (int i = 0; i < size; i++) {
+            ViewNode node = nodes.get(i);
+            if (!node.children.isEmpty()) {
+                int first = nodes.indexOf(node.children.get(0));
+                int last = nodes.indexOf(node.children.get(node.children.size() - 1));
+                double middle = (center(layout, first) + center(layout, last)) / 2.0;
+                assertTrue("View " + i + " is not centered",
+                        Math.abs(center(layout, i) - middle) <= 1);
+            }
+
+            Rectangle subtree = new Rectangle(layout.subtreeX[i], layout.subtreeY[i],
+                    layout.subtreeWidth[i], layout.subtreeHeight[i]);
+            for (ViewNode parent = node; parent != null; parent = parent.parent) {
+                int p = nodes.indexOf(parent);
+                Rectangle parentSubtree = new Rectangle(layout.subtreeX[p],
+                        layout.subtreeY[p], layout.subtreeWidth[p], layout.subtreeHeight[p]);
+                assertTrue(parentSubtree.contains(subtree));
+            }
+        }
+    }
+
+    private static void assertSameLayout(TreeLayout expected, TreeLayout actual) {
+        assertArrayEquals(expected.x, actual.x);
+        assertArrayEquals(expected.y, actual.y);
+        assertArrayEquals(expected.width, actual.width);
+        assertArrayEquals(expected.height, actual.height);
+        assertArrayEquals(expected.offsets, actual.offsets);
+        assertArrayEquals(expected.subtreeY, actual.subtreeY);
+        assertArrayEquals(expected.subtreeHeight, actual.subtreeHeight);
+    }
+
+    /**
+     * Checks that a layout reusing unchanged subtrees matches a layout from scratch. The
+     * subtrees are placed from the rounded offsets of their views, which may move views of
+     * the same column by a pixel each.
+     */
+    private static void assertSimilarLayout(TreeLayout expected, TreeLayout actual) {
+        assertArrayEquals(expected.x, actual.x);
+        assertArrayEquals(expected.width, actual.width);
+        assertArrayEquals(expected.height, actual.height);
+        for (int i = 0; i < expected.y.length; i++) {
+            assertTrue("View " + i + " moved from " + expected.y[i] + " to " + actual.y[i],
+                    Math.abs(expected.y[i] - actual.y[i]) <= MAX_ROUNDING_DRIFT);
+        }
+    }
+
+    private static int center(TreeLayout layout, int i) {
+        return layout.y[i] + layout.height[i] / 2;
+    }
+
+    private static boolean isInside(ViewNode node, ViewNode ancestor) {
+        for (; node != null; node = node.parent) {
+            if (node == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static TreeLayout layout(List<ViewNode> nodes) {
+        TreeLayout layout = new TreeLayout(nodes, 0, TITLE_FONT, DETAIL_FONT);
+        layout.run();
+        return layout;
+    }
+
+    /**
+     * Lays out the views from scratch, as if none was laid out before.
+     */
+    private static TreeLayout relayout(List<ViewNode> nodes) {
+        int[] sizes = new int[nodes.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = nodes.get(i).layoutSize;
+            nodes.get(i).layoutSize = 0;
+        }
+        TreeLayout layout = layout(nodes);
+        for (int i = 0; i < sizes.length; i++) {
+            nodes.get(i).layoutSize = sizes[i];
+        }
+        return layout;
+    }
+
+    /**
+     * Moves the views like {@link ViewHierarchyScene#applyLayout(TreeLayout)}.
+     */
+    private static void apply(TreeLayout layout) {
+        ViewNode[] nodes = layout.nodes;
+        for (int i = 0; i < nodes.length; i++) {
+            ViewNode node = nodes[i];
+            node.box.setBounds(layout.x[i], layout.y[i], layout.width[i], layout.height[i]);
+            node.subtreeBox.setBounds(layout.subtreeX[i], layout.subtreeY[i],
+                    layout.subtreeWidth[i], layout.subtreeHeight[i]);
+            node.layoutOffset = layout.offsets[i];
+            node.layoutHash = node.treeHash;
+        }
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            ViewNode node = nodes[i];
+            node.layoutSize = 1;
+            for (ViewNode child : node.children) {
+                node.layoutSize += child.layoutSize;
+            }
+        }
+    }
+
+    /**
+     * Creates a random hierarchy, with views of various widths and subtrees of various
+     * depths.
+     */
+    private ViewNode createTree(int size) {
+        String[] names = {
+            "android.view.View", "android.widget.TextView", "android.widget.LinearLayout",
+            "android.widget.FrameLayout", "com.android.internal.widget.ActionBarContainer",
+        };
+        List<ViewNode> nodes = new ArrayList<ViewNode>();
+        ViewNode root = createNode(null, names[0]);
+        nodes.add(root);
+        while (nodes.size() < size) {
+            // Favors recent views, to get deep subtrees
+            int parent = nodes.size() - 1 - (int) Math.abs(random.nextGaussian() * 10);
+            ViewNode node = createNode(nodes.get(Math.max(parent, 0)),
+                    names[random.nextInt(names.length)]);
+            nodes.add(node);
+        }
+        return root;
+    }
+
+    private ViewNode createNode(ViewNode parent, String name) {
+        ViewNode node = new ViewNode();
+        node.name = name + "@" + Integer.toHexString(random.nextInt());
+        node.id = random.nextBoolean() ? "NO_ID" : "id/view" + random.nextInt(1000);
+        node.treeHash = random.nextLong();
+        if (parent != null) {
+            node.parent = parent;
+            node.index = parent.children.size();
+            parent.children.add(node);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the views of a subtree in depth-first order.
+     */
+    private static List<ViewNode> listSubtree(ViewNode root) {
+        List<ViewNode> nodes = new ArrayList<ViewNode>();
+        addSubtree(root, nodes);
+        return nodes;
+    }
+
+    private static void addSubtree(ViewNode node, List<ViewNode> nodes) {
+        nodes.add(node);
+        for (ViewNode child : node.children) {
+            addSubtree(child, nodes);
+        }
+    }
+}
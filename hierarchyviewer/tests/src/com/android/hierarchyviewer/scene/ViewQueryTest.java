@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.hierarchyviewer.scene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+public class ViewQueryTest {
+    // Views numbered in depth-first order, see the comments
+    private static final String[] DUMP = {
+        // 0
+        "com.android.internal.policy.DecorView@1 mID=5,NO_ID getVisibility()=7,VISIBLE " +
+                "getWidth()=4,1080",
+        // 1
+        " android.widget.LinearLayout@2 mID=10,id/content getVisibility()=7,VISIBLE " +
+                "getWidth()=4,1080",
+        // 2
+        "  android.widget.TextView@3 mID=8,id/title text:mText=5,Hello " +
+                "getVisibility()=7,VISIBLE getWidth()=3,500",
+        // 3
+        "  android.widget.Button@4 mID=7,id/send text:mText=9,Send now! " +
+                "getVisibility()=4,GONE getWidth()=3,200",
+        // 4
+        " android.widget.FrameLayout@5 mID=5,NO_ID getVisibility()=7,VISIBLE",
+        // 5
+        "  android.widget.TextView@6 mID=9,id/status text:mText=11,Hello world " +
+                "getVisibility()=7,VISIBLE",
+        // 6
+        "  android.widget.TextView@7 mID=9,id/quoted text:mText=14,say \"hi\" (now)",
+    };
+
+    private ViewIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        StringBuilder dump = new StringBuilder();
+        for (String line : DUMP) {
+            dump.append(line).append('\n');
+        }
+        index = new ViewIndex(loadNodes(dump.toString()));
+    }
+
+    @Test
+    public void matchesProperties() {
+        assertMatches("mID=id/title", 2);
+        assertMatches("getVisibility()=GONE", 3);
+        assertMatches("mID!=NO_ID", 1, 2, 3, 5, 6);
+        assertMatches("mText~hello", 2, 5);
+        assertMatches("mText~^hello$", 2);
+        assertMatches("class=android.widget.Button", 3);
+        assertMatches("id=id/status", 5);
+        assertMatches("mText=Hello", 2);
+        assertMatches("mText=hello");
+        assertMatches("unknown=1");
+    }
+
+    @Test
+    public void comparesNumbers() {
+        assertMatches("getWidth()>=500", 0, 1, 2);
+        assertMatches("getWidth()>500", 0, 1);
+        assertMatches("getWidth()<500", 3);
+        assertMatches("getWidth()<=500", 2, 3);
+    }
+
+    @Test
+    public void matchesNames() {
+        assertMatches("TextView", 2, 5, 6);
+        assertMatches("^Text", 2, 5, 6);
+        assertMatches("Layout", 1, 4);
+        assertMatches("status", 5);
+        // Ids match too, class names only without their package
+        assertMatches("widget");
+    }
+
+    @Test
+    public void combinesTerms() {
+        assertMatches("TextView mText~world", 5);
+        assertMatches("TextView AND mText~world", 5);
+        assertMatches("Button OR status", 3, 5);
+        assertMatches("(Button OR status) getVisibility()=VISIBLE", 5);
+        assertMatches("Button OR status getVisibility()=VISIBLE", 3, 5);
+    }
+
+    @Test
+    public void negatesTerms() {
+        assertMatches("NOT TextView", 0, 1, 3, 4);
+        assertMatches("^TextView NOT mText~world", 2, 6);
+        assertMatches("NOT (Layout OR TextView)", 0, 3);
+        assertMatches("NOT NOT Button", 3);
+    }
+
+    @Test
+    public void matchesAncestorsAndDescendants() {
+        assertMatches("ancestor(LinearLayout)", 2, 3);
+        assertMatches("ancestor(DecorView)", 1, 2, 3, 4, 5, 6);
+        assertMatches("ancestor(Button)");
+        assertMatches("descendant(id=id/status)", 0, 4);
+        assertMatches("descendant(Button) NOT DecorView", 1);
+        assertMatches("TextView ancestor(FrameLayout)", 5, 6);
+        assertMatches("ancestor(descendant(getVisibility()=GONE))", 1, 2, 3, 4, 5, 6);
+    }
+
+    @Test
+    public void readsQuotedValues() {
+        assertMatches("mText=\"Send now!\"", 3);
+        assertMatches("mText=\"Hello world\"", 5);
+        assertMatches("mText=\"say \\\"hi\\\" (now)\"", 6);
+        assertMatches("ancestor(mID=\"id/content\")", 2, 3);
+        assertMatches("\"^TextView$\"", 2, 5, 6);
+    }
+
+    @Test
+    public void rejectsMalformedQueries() {
+        String[] queries = {
+            "",
+            "(",
+            "(TextView",
+            "TextView)",
+            "mID=",
+            "NOT",
+            "TextView AND",
+            "ancestor(TextView",
+            "parent(TextView)",
+            "getWidth()>wide",
+            "mText=\"Hello",
+            "mText~[",
+        };
+        for (String query : queries) {
+            try {
+                ViewQuery.compile(query);
+                fail("Compiled " + query);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void refinesPreviousMatches() {
+        String[][] refinements = {
+            { "TextView", "TextView" },
+            { "Text", "TextView" },
+            { "text", "TextView" },
+            { "mText~Hel", "mText~Hello" },
+            { "TextView", "TextView mText~world" },
+            { "TextView mText~o", "TextView mText~wor" },
+            { "TextView mText~o", "TextViews mText~wor getWidth()<1" },
+            { "mID!=NO_ID", "mID!=NO_ID Button" },
+        };
+        for (String[] refinement : refinements) {
+            ViewQuery previous = ViewQuery.compile(refinement[0]);
+            ViewQuery query = ViewQuery.compile(refinement[1]);
+            BitSet previousMatches = previous.evaluate(index);
+
+            assertEquals(refinement[1], query.evaluate(index),
+                    query.evaluate(index, previous, previousMatches));
+            // Only the previous matches are considered
+            assertTrue(refinement[1], query.evaluate(index, previous, new BitSet()).isEmpty());
+        }
+    }
+
+    @Test
+    public void evaluatesQueriesNotRefiningPreviousOnes() {
+        String[][] queries = {
+            { "TextView", "Text" },
+            { "Text.*", "TextView" },
+            { "e.t", "e.tView" },
+            { "mText~Hello", "mText~Hel" },
+            { "mText~o", "mID~o" },
+            { "TextView", "TextView OR Button" },
+            { "TextView", "NOT Button" },
+            { "TextView mText~world", "TextView" },
+            { "getWidth()>500", "getWidth()>200" },
+        };
+        for (String[] pair : queries) {
+            ViewQuery previous = ViewQuery.compile(pair[0]);
+            ViewQuery query = ViewQuery.compile(pair[1]);
+
+            assertEquals(pair[1], query.evaluate(index),
+                    query.evaluate(index, previous, new BitSet()));
+        }
+    }
+
+    private void assertMatches(String query, int... nodes) {
+        BitSet expected = new BitSet();
+        for (int node : nodes) {
+            expected.set(node);
+        }
+        assertEquals(query, expected, ViewQuery.compile(query).evaluate(index));
+    }
+
+    /**
+     * Parses a dump and links its views to their parents, like {@link ViewHierarchyLoader}.
+     */
+    private static List<ViewNode> loadNodes(String dump) throws IOException {
+        DumpParser parser = new DumpParser(new ByteArrayInputStream(dump.getBytes("utf-8")));
+        List<ViewNode> nodes = new ArrayList<ViewNode>();
+        List<ViewNode> ancestors = new ArrayList<ViewNode>();
+        ViewNode node;
+        while ((node = parser.nextNode()) != null) {
+            int depth = parser.getDepth();
+            while (ancestors.size() > depth) {
+                ancestors.remove(ancestors.size() - 1);
+            }
+            if (depth > 0) {
+                node.parent = ancestors.get(depth - 1);
+                node.index = node.parent.children.size();
+                node.parent.children.add(node);
+            }
+            ancestors.add(node);
+            nodes.add(node);
+        }
+        return nodes;
+    }
+}